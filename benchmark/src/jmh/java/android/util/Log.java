@@ -0,0 +1,29 @@
+package android.util;
+
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int e(final String tag,
+                        final String message,
+                        final Throwable throwable) {
+        System.err.println(tag + ": " + message);
+        if (throwable != null) {
+            throwable.printStackTrace();
+        }
+
+        return 0;
+    }
+
+    public static int e(final String tag,
+                        final String message) {
+        return e(tag, message, null);
+    }
+
+    public static int w(final String tag,
+                        final String message) {
+        System.err.println(tag + ": " + message);
+        return 0;
+    }
+}
@@ -0,0 +1,77 @@
+package com.sengami.keystoresharedpreferences.benchmark;
+
+import android.content.SharedPreferences;
+
+import com.sengami.keystoresharedpreferences.CryptoBackend;
+import com.sengami.keystoresharedpreferences.KeystoreSharedPreferences;
+import com.sengami.keystoresharedpreferences.KeystoreSharedPreferencesEditor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BackupBenchmark {
+
+    private static final char[] PASSPHRASE = "benchmark".toCharArray();
+
+    @Param({ "1000", "10000" })
+    public int size;
+
+    private CryptoBackend backend;
+    private KeystoreSharedPreferences sharedPreferences;
+    private KeystoreSharedPreferences emptySharedPreferences;
+    private byte[] backup;
+
+    @Setup
+    public void setup() throws IOException {
+        backend = SoftwareBackends.get();
+        final SharedPreferences plaintextSharedPreferences = new InMemorySharedPreferences();
+        final SharedPreferences.Editor editor = new KeystoreSharedPreferencesEditor(backend, plaintextSharedPreferences, plaintextSharedPreferences.edit(), null);
+        for (int i = 0; i < size; i++) {
+            editor.putString("key_" + i, "value_" + i);
+        }
+        editor.commit();
+
+        sharedPreferences = new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences)
+            .setBackend(backend)
+            .build();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        if (!sharedPreferences.exportTo(output, PASSPHRASE)) {
+            throw new IOException("Could not export store");
+        }
+        backup = output.toByteArray();
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        emptySharedPreferences = new KeystoreSharedPreferences.Builder(null, new InMemorySharedPreferences())
+            .setBackend(backend)
+            .build();
+    }
+
+    @Benchmark
+    public byte[] exportStore() {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(backup.length);
+        sharedPreferences.exportTo(output, PASSPHRASE);
+        return output.toByteArray();
+    }
+
+    @Benchmark
+    public boolean importStore() {
+        return emptySharedPreferences.importFrom(new ByteArrayInputStream(backup), PASSPHRASE);
+    }
+}
@@ -0,0 +1,59 @@
+package com.sengami.keystoresharedpreferences.benchmark;
+
+import android.content.SharedPreferences;
+
+import com.sengami.keystoresharedpreferences.CryptoBackend;
+import com.sengami.keystoresharedpreferences.DataKeyProxy;
+import com.sengami.keystoresharedpreferences.KeyStoreProxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CryptoBenchmark {
+
+    private static final String VALUE = "string_value";
+
+    private CryptoBackend backend;
+    private SharedPreferences sharedPreferences;
+    private String keyStoreCiphertext;
+    private String dataKeyCiphertext;
+
+    @Setup
+    public void setup() throws IOException {
+        backend = SoftwareBackends.get();
+        sharedPreferences = new InMemorySharedPreferences();
+        keyStoreCiphertext = KeyStoreProxy.encryptString(backend, VALUE);
+        dataKeyCiphertext = DataKeyProxy.encryptString(backend, sharedPreferences, VALUE);
+    }
+
+    @Benchmark
+    public String keyStoreEncryptString() {
+        return KeyStoreProxy.encryptString(backend, VALUE);
+    }
+
+    @Benchmark
+    public String keyStoreDecryptString() {
+        return KeyStoreProxy.decryptString(backend, keyStoreCiphertext);
+    }
+
+    @Benchmark
+    public String dataKeyEncryptString() {
+        return DataKeyProxy.encryptString(backend, sharedPreferences, VALUE);
+    }
+
+    @Benchmark
+    public String dataKeyDecryptString() {
+        return DataKeyProxy.decryptString(backend, sharedPreferences, dataKeyCiphertext);
+    }
+}
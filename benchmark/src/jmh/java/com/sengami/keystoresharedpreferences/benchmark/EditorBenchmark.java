@@ -0,0 +1,55 @@
+package com.sengami.keystoresharedpreferences.benchmark;
+
+import android.content.SharedPreferences;
+
+import com.sengami.keystoresharedpreferences.CryptoBackend;
+import com.sengami.keystoresharedpreferences.KeystoreSharedPreferences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EditorBenchmark {
+
+    @Param({ "1", "10", "100" })
+    public int batchSize;
+
+    private SharedPreferences sharedPreferences;
+    private String[] keys;
+    private long invocation;
+
+    @Setup
+    public void setup() throws IOException {
+        final CryptoBackend backend = SoftwareBackends.get();
+        sharedPreferences = new KeystoreSharedPreferences.Builder(null, new InMemorySharedPreferences())
+            .setBackend(backend)
+            .build();
+        keys = new String[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            keys[i] = "key_" + i;
+        }
+    }
+
+    @Benchmark
+    public boolean commitBatch() {
+        // Rewriting a value the store already holds is skipped, so every invocation writes a new one.
+        final String value = "string_value_" + invocation++;
+        final SharedPreferences.Editor editor = sharedPreferences.edit();
+        for (final String key : keys) {
+            editor.putString(key, value);
+        }
+
+        return editor.commit();
+    }
+}
@@ -0,0 +1,58 @@
+package com.sengami.keystoresharedpreferences.benchmark;
+
+import android.content.SharedPreferences;
+
+import com.sengami.keystoresharedpreferences.CryptoBackend;
+import com.sengami.keystoresharedpreferences.KeystoreSharedPreferences;
+import com.sengami.keystoresharedpreferences.KeystoreSharedPreferencesEditor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GetAllBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int size;
+
+    @Param({ "false", "true" })
+    public boolean lazy;
+
+    private SharedPreferences sharedPreferences;
+
+    @Setup
+    public void setup() throws IOException {
+        final CryptoBackend backend = SoftwareBackends.get();
+        final SharedPreferences plaintextSharedPreferences = new InMemorySharedPreferences();
+        final SharedPreferences.Editor editor = new KeystoreSharedPreferencesEditor(backend, plaintextSharedPreferences, plaintextSharedPreferences.edit(), null);
+        for (int i = 0; i < size; i++) {
+            editor.putString("key_" + i, "value_" + i);
+        }
+        editor.commit();
+
+        sharedPreferences = new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences)
+            .setBackend(backend)
+            .setLazyDecryption(lazy)
+            .build();
+    }
+
+    @Benchmark
+    public void getAll(final Blackhole blackhole) {
+        for (final Map.Entry<String, ?> entry : sharedPreferences.getAll().entrySet()) {
+            blackhole.consume(entry.getValue());
+        }
+    }
+}
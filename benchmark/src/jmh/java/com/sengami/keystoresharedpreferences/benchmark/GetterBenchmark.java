@@ -0,0 +1,75 @@
+package com.sengami.keystoresharedpreferences.benchmark;
+
+import android.content.SharedPreferences;
+
+import com.sengami.keystoresharedpreferences.CryptoBackend;
+import com.sengami.keystoresharedpreferences.DecryptedValueCache;
+import com.sengami.keystoresharedpreferences.KeystoreSharedPreferences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GetterBenchmark {
+
+    private static final int CACHE_SIZE = 16;
+
+    @Param({ "false", "true" })
+    public boolean cached;
+
+    private SharedPreferences sharedPreferences;
+
+    @Setup
+    public void setup() throws IOException {
+        final CryptoBackend backend = SoftwareBackends.get();
+        final DecryptedValueCache cache = cached ? new DecryptedValueCache(CACHE_SIZE, false) : null;
+        sharedPreferences = new KeystoreSharedPreferences.Builder(null, new InMemorySharedPreferences())
+            .setBackend(backend)
+            .setCache(cache)
+            .build();
+        sharedPreferences
+            .edit()
+            .putString("string_key", "string_value")
+            .putInt("int_key", 1)
+            .putLong("long_key", 2L)
+            .putFloat("float_key", 3F)
+            .putBoolean("boolean_key", true)
+            .commit();
+    }
+
+    @Benchmark
+    public String getString() {
+        return sharedPreferences.getString("string_key", null);
+    }
+
+    @Benchmark
+    public int getInt() {
+        return sharedPreferences.getInt("int_key", 0);
+    }
+
+    @Benchmark
+    public long getLong() {
+        return sharedPreferences.getLong("long_key", 0L);
+    }
+
+    @Benchmark
+    public float getFloat() {
+        return sharedPreferences.getFloat("float_key", 0F);
+    }
+
+    @Benchmark
+    public boolean getBoolean() {
+        return sharedPreferences.getBoolean("boolean_key", false);
+    }
+}
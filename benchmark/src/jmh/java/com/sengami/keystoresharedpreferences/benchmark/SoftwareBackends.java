@@ -0,0 +1,33 @@
+package com.sengami.keystoresharedpreferences.benchmark;
+
+import com.sengami.keystoresharedpreferences.CryptoBackend;
+import com.sengami.keystoresharedpreferences.SoftwareKeyStoreBackend;
+
+import java.io.File;
+import java.io.IOException;
+
+final class SoftwareBackends {
+
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+
+    private static CryptoBackend backend;
+
+    private SoftwareBackends() {
+    }
+
+    static synchronized CryptoBackend get() throws IOException {
+        if (backend == null) {
+            final File directory = File.createTempFile("keystore", "");
+            if (!directory.delete() || !directory.mkdir()) {
+                throw new IOException("Could not create " + directory);
+            }
+
+            final File file = new File(directory, "benchmark.p12");
+            file.deleteOnExit();
+            directory.deleteOnExit();
+            backend = new SoftwareKeyStoreBackend(file, PASSWORD);
+        }
+
+        return backend;
+    }
+}
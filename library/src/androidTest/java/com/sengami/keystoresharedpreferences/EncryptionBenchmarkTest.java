@@ -0,0 +1,54 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class EncryptionBenchmarkTest {
+
+    private static final int ITERATIONS = 50;
+    private static final String VALUE = "benchmark_value";
+
+    private final Context context = InstrumentationRegistry.getTargetContext();
+    private final SharedPreferences plaintextSharedPreferences = context.getSharedPreferences("benchmark_preferences", Context.MODE_PRIVATE);
+
+    @Before
+    public void before() {
+        plaintextSharedPreferences
+            .edit()
+            .clear()
+            .commit();
+    }
+
+    @Test
+    public void dataKeyIsFasterPerValueThanKeystoreKey() {
+        final String keystoreCiphertext = KeyStoreProxy.encryptString(context, VALUE);
+        final String dataKeyCiphertext = DataKeyProxy.encryptString(context, plaintextSharedPreferences, VALUE);
+        DataKeyProxy.decryptString(context, plaintextSharedPreferences, dataKeyCiphertext);
+
+        final long keystoreStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertEquals(VALUE, KeyStoreProxy.decryptString(context, keystoreCiphertext));
+        }
+        final long keystoreNanos = (System.nanoTime() - keystoreStart) / ITERATIONS;
+
+        final long dataKeyStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertEquals(VALUE, DataKeyProxy.decryptString(context, plaintextSharedPreferences, dataKeyCiphertext));
+        }
+        final long dataKeyNanos = (System.nanoTime() - dataKeyStart) / ITERATIONS;
+
+        Log.i(Constants.TAG, "Keystore key decrypt: " + keystoreNanos / 1000 + " us per value");
+        Log.i(Constants.TAG, "Data key decrypt: " + dataKeyNanos / 1000 + " us per value");
+        Log.i(Constants.TAG, "Speedup: " + (double) keystoreNanos / dataKeyNanos + "x");
+    }
+}
@@ -2,6 +2,7 @@ package com.sengami.keystoresharedpreferences;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Debug;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 
@@ -14,12 +15,18 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
 public class KeystoreSharedPreferencesTest {
 
+    private static final int MAX_ALLOCATIONS_PER_READ = 64;
+
     private final Context context = InstrumentationRegistry.getTargetContext();
     private final SharedPreferences plaintextSharedPreferences = context.getSharedPreferences("test_preferences", Context.MODE_PRIVATE);
     private final SharedPreferences sharedPreferences = new KeystoreSharedPreferences(context, plaintextSharedPreferences);
@@ -147,4 +154,260 @@ public class KeystoreSharedPreferencesTest {
 
         assertEquals(5, allEntries.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void longStringSavesSuccessfully() {
+        final String key = "long_string_key";
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append(i);
+        }
+        final String expectedValue = builder.toString();
+        final String defaultValue = "wrong";
+
+        sharedPreferences
+            .edit()
+            .putString(key, expectedValue)
+            .commit();
+
+        final String actualValue = sharedPreferences.getString(key, defaultValue);
+
+        assertEquals(expectedValue, actualValue);
+    }
+
+    @Test
+    public void legacyValueIsStillReadable() {
+        final String key = "legacy_key";
+        final String expectedValue = "legacy_value";
+        final String defaultValue = "wrong";
+
+        plaintextSharedPreferences
+            .edit()
+            .putString(key, KeyStoreProxy.encryptString(context, expectedValue))
+            .commit();
+
+        final String actualValue = sharedPreferences.getString(key, defaultValue);
+
+        assertEquals(expectedValue, actualValue);
+    }
+
+    @Test
+    public void concurrentAccessSavesSuccessfully() throws InterruptedException {
+        final int threadCount = 8;
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final String key = "concurrent_key_" + i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sharedPreferences
+                        .edit()
+                        .putString(key, key)
+                        .commit();
+                }
+            });
+        }
+
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < threadCount; i++) {
+            final String key = "concurrent_key_" + i;
+            assertEquals(key, sharedPreferences.getString(key, "wrong"));
+        }
+    }
+
+    @Test
+    public void stringReadAllocationsAreBounded() {
+        final String key = "allocation_key";
+        final int reads = 100;
+
+        sharedPreferences
+            .edit()
+            .putString(key, "allocation_value")
+            .commit();
+
+        for (int i = 0; i < reads; i++) {
+            sharedPreferences.getString(key, null);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < reads; i++) {
+            sharedPreferences.getString(key, null);
+        }
+        Debug.stopAllocCounting();
+
+        final int allocationsPerRead = Debug.getThreadAllocCount() / reads;
+
+        assertTrue("Allocations per read: " + allocationsPerRead, allocationsPerRead <= MAX_ALLOCATIONS_PER_READ);
+    }
+
+    @Test
+    public void cachedValueIsInvalidatedOnWrite() {
+        final String key = "cached_key";
+        final DecryptedValueCache cache = new DecryptedValueCache(10, true);
+        final SharedPreferences cachedSharedPreferences = new KeystoreSharedPreferences.Builder(context, plaintextSharedPreferences)
+            .setCache(cache)
+            .build();
+
+        cachedSharedPreferences
+            .edit()
+            .putString(key, "first_value")
+            .commit();
+
+        assertEquals("first_value", cachedSharedPreferences.getString(key, "wrong"));
+        assertEquals(1, cache.size());
+
+        cachedSharedPreferences
+            .edit()
+            .putString(key, "second_value")
+            .commit();
+
+        assertEquals("second_value", cachedSharedPreferences.getString(key, "wrong"));
+    }
+
+    @Test
+    public void canGetMapOfEveryEntryAsynchronously() throws InterruptedException {
+        final int entryCount = 50;
+        final SharedPreferences.Editor editor = sharedPreferences.edit();
+        for (int i = 0; i < entryCount; i++) {
+            editor.putString("async_key_" + i, "async_value_" + i);
+        }
+        editor.commit();
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Map<String, ?>> allEntries = new AtomicReference<>();
+        ((KeystoreSharedPreferences) sharedPreferences).getAllAsync(new ValueCallback<Map<String, ?>>() {
+            @Override
+            public void onValue(final Map<String, ?> value) {
+                allEntries.set(value);
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertEquals(entryCount, allEntries.get().size());
+        for (int i = 0; i < entryCount; i++) {
+            assertEquals("async_value_" + i, allEntries.get().get("async_key_" + i));
+        }
+    }
+
+    @Test
+    public void canGetValuesAsynchronously() throws Exception {
+        sharedPreferences
+            .edit()
+            .putString("async_string_key", "async_value")
+            .putInt("async_int_key", 42)
+            .commit();
+
+        final KeystoreSharedPreferences keystoreSharedPreferences = (KeystoreSharedPreferences) sharedPreferences;
+        final AsyncValue<String> first = keystoreSharedPreferences.getStringAsync("async_string_key", "wrong");
+        final AsyncValue<String> second = keystoreSharedPreferences.getStringAsync("async_string_key", "wrong");
+        final AsyncValue<Integer> number = keystoreSharedPreferences.getIntAsync("async_int_key", -1);
+        final AsyncValue<Integer> missing = keystoreSharedPreferences.getIntAsync("async_missing_key", -1);
+
+        assertEquals("async_value", first.get(30, TimeUnit.SECONDS));
+        assertEquals("async_value", second.get(30, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(42), number.get(30, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(-1), missing.get(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void appliedValuesAreReadableImmediately() {
+        final SharedPreferences.Editor editor = sharedPreferences.edit();
+        for (int i = 0; i < 50; i++) {
+            editor.putString("applied_key_" + i, "overwritten_value");
+            editor.putInt("applied_key_" + i, i);
+        }
+        editor.remove("applied_key_0");
+        editor.apply();
+
+        assertEquals(false, sharedPreferences.contains("applied_key_0"));
+        for (int i = 1; i < 50; i++) {
+            assertEquals(i, sharedPreferences.getInt("applied_key_" + i, -1));
+        }
+        assertEquals(49, sharedPreferences.getAll().size());
+    }
+
+    @Test
+    public void commitReturnsResult() {
+        final boolean result = sharedPreferences
+            .edit()
+            .putString("commit_key", "commit_value")
+            .commit();
+
+        assertTrue(result);
+    }
+
+    @Test
+    public void mapOfEveryEntryIsTyped() {
+        final Set<String> set = Collections.singleton("set_value");
+
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .putInt("b", 1)
+            .putFloat("c", 2F)
+            .putLong("d", 3L)
+            .putBoolean("e", true)
+            .putStringSet("f", set)
+            .commit();
+
+        final Map<String, ?> allEntries = sharedPreferences.getAll();
+
+        assertEquals("asd", allEntries.get("a"));
+        assertEquals(1, allEntries.get("b"));
+        assertEquals(2F, allEntries.get("c"));
+        assertEquals(3L, allEntries.get("d"));
+        assertEquals(true, allEntries.get("e"));
+        assertEquals(set, allEntries.get("f"));
+    }
+
+    @Test
+    public void legacyIntIsStillReadable() {
+        final String key = "legacy_int_key";
+        final int expectedValue = 123;
+
+        plaintextSharedPreferences
+            .edit()
+            .putString(key, KeyStoreProxy.encryptString(context, String.valueOf(expectedValue)))
+            .commit();
+
+        final int actualValue = sharedPreferences.getInt(key, 666);
+
+        assertEquals(expectedValue, actualValue);
+    }
+
+    @Test
+    public void lazyMapOfEveryEntryDecryptsOnAccess() {
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .putInt("b", 1)
+            .putStringSet("c", Collections.singleton("set_value"))
+            .commit();
+
+        final SharedPreferences lazySharedPreferences = new KeystoreSharedPreferences.Builder(context, plaintextSharedPreferences)
+            .setExecutor(null)
+            .setLazyDecryption(true)
+            .build();
+        lazySharedPreferences
+            .edit()
+            .putLong("d", 3L)
+            .apply();
+
+        final Map<String, ?> allEntries = lazySharedPreferences.getAll();
+
+        assertEquals(4, allEntries.size());
+        assertEquals("asd", allEntries.get("a"));
+        assertEquals(1, allEntries.get("b"));
+        assertEquals(Collections.singleton("set_value"), allEntries.get("c"));
+        assertEquals(3L, allEntries.get("d"));
+        assertEquals("asd", lazySharedPreferences.getString("a", "wrong"));
+    }
+}
@@ -0,0 +1,77 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class SnapshotBenchmarkTest {
+
+    private static final int[] KEY_COUNTS = { 10, 100, 1000 };
+
+    private final Context context = InstrumentationRegistry.getTargetContext();
+
+    @Test
+    public void compareLoadTimeAndFileSize() throws Exception {
+        for (final int keyCount : KEY_COUNTS) {
+            benchmarkPerValueStore(keyCount);
+            benchmarkSnapshotStore(keyCount);
+        }
+    }
+
+    private void benchmarkPerValueStore(final int keyCount) {
+        final String name = "benchmark_per_value_" + keyCount;
+        final SharedPreferences plaintextSharedPreferences = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+        final SharedPreferences sharedPreferences = new KeystoreSharedPreferences(context, plaintextSharedPreferences);
+        fill(sharedPreferences.edit().clear(), keyCount).commit();
+
+        final long start = System.nanoTime();
+        final int loadedCount = sharedPreferences.getAll().size();
+        final long nanos = System.nanoTime() - start;
+
+        final File file = new File(new File(context.getApplicationInfo().dataDir, "shared_prefs"), name + ".xml");
+        assertEquals(keyCount, loadedCount);
+        log("Per-value store", keyCount, nanos, file.length());
+    }
+
+    private void benchmarkSnapshotStore(final int keyCount) throws Exception {
+        final File file = new File(context.getFilesDir(), "benchmark_snapshot_" + keyCount + ".snapshot");
+        final SharedPreferences dataKeyPreferences = context.getSharedPreferences("benchmark_snapshot_data_key", Context.MODE_PRIVATE);
+        final SecretKey key = DataKeyProxy.getDataKey(context, dataKeyPreferences);
+        fill(SnapshotSharedPreferences.open(file, key, null).edit().clear(), keyCount).commit();
+
+        final long start = System.nanoTime();
+        final int loadedCount = SnapshotSharedPreferences.open(file, key, null).getAll().size();
+        final long nanos = System.nanoTime() - start;
+
+        assertEquals(keyCount, loadedCount);
+        log("Snapshot store", keyCount, nanos, file.length());
+    }
+
+    private static SharedPreferences.Editor fill(final SharedPreferences.Editor editor,
+                                                 final int keyCount) {
+        for (int i = 0; i < keyCount; i++) {
+            editor.putString("key_" + i, "value_" + i);
+        }
+
+        return editor;
+    }
+
+    private static void log(final String store,
+                            final int keyCount,
+                            final long nanos,
+                            final long fileSize) {
+        Log.i(Constants.TAG, store + ", " + keyCount + " keys: load " + nanos / 1000 + " us, file " + fileSize + " bytes");
+    }
+}
@@ -0,0 +1,88 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+final class AesGcm {
+
+    private static final int TAG_SIZE_BITS = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<>();
+    private static final boolean GCM_PARAMETER_SPEC_AVAILABLE = isGcmParameterSpecAvailable();
+
+    static byte[] newIv() {
+        final byte[] iv = new byte[Constants.DATA_KEY_IV_SIZE_BYTES];
+        RANDOM.nextBytes(iv);
+        return iv;
+    }
+
+    static Cipher getCipher(final int mode,
+                            final SecretKey key,
+                            final byte[] iv,
+                            final int ivOffset) throws GeneralSecurityException {
+        Cipher cipher = CIPHERS.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(Constants.DATA_KEY_TRANSFORMATION);
+            CIPHERS.set(cipher);
+        }
+
+        cipher.init(mode, key, getParameterSpec(iv, ivOffset));
+        return cipher;
+    }
+
+    static byte[] encrypt(final SecretKey key,
+                          final byte[] bytes,
+                          final int offset,
+                          final int length) throws GeneralSecurityException {
+        final byte[] iv = newIv();
+        final Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, key, iv, 0);
+        final byte[] payload = new byte[iv.length + cipher.getOutputSize(length)];
+        System.arraycopy(iv, 0, payload, 0, iv.length);
+        final int encryptedLength = cipher.doFinal(bytes, offset, length, payload, iv.length);
+        if (iv.length + encryptedLength == payload.length) {
+            return payload;
+        }
+
+        final byte[] trimmedPayload = new byte[iv.length + encryptedLength];
+        System.arraycopy(payload, 0, trimmedPayload, 0, trimmedPayload.length);
+        return trimmedPayload;
+    }
+
+    static byte[] decrypt(final SecretKey key,
+                          final byte[] payload,
+                          final int offset,
+                          final int length) throws GeneralSecurityException {
+        final int ivLength = Constants.DATA_KEY_IV_SIZE_BYTES;
+        if (length < ivLength) {
+            throw new GeneralSecurityException("Ciphertext too short");
+        }
+
+        final Cipher cipher = getCipher(Cipher.DECRYPT_MODE, key, payload, offset);
+        return cipher.doFinal(payload, offset + ivLength, length - ivLength);
+    }
+
+    // GCMParameterSpec needs API 19, older Android providers accept a plain IV with a 128-bit tag.
+    private static AlgorithmParameterSpec getParameterSpec(final byte[] iv,
+                                                           final int ivOffset) {
+        if (GCM_PARAMETER_SPEC_AVAILABLE) {
+            return new GCMParameterSpec(TAG_SIZE_BITS, iv, ivOffset, Constants.DATA_KEY_IV_SIZE_BYTES);
+        }
+
+        return new IvParameterSpec(iv, ivOffset, Constants.DATA_KEY_IV_SIZE_BYTES);
+    }
+
+    private static boolean isGcmParameterSpecAvailable() {
+        try {
+            Class.forName("javax.crypto.spec.GCMParameterSpec");
+            return true;
+        } catch (final ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.Context;
+import android.security.KeyPairGeneratorSpec;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+
+import javax.crypto.Cipher;
+import javax.security.auth.x500.X500Principal;
+
+public final class AndroidKeyStoreBackend extends KeyMaterial {
+
+    private static KeyStore keyStore;
+
+    private final Context context;
+    private final String alias;
+
+    public AndroidKeyStoreBackend(final Context context) {
+        this(context, Constants.KEYSTORE_ALIAS);
+    }
+
+    public AndroidKeyStoreBackend(final Context context,
+                                  final String alias) {
+        this.context = context;
+        this.alias = alias;
+    }
+
+    @Override
+    KeyStore.PrivateKeyEntry loadEntry() throws GeneralSecurityException,
+                                                IOException {
+        final CryptoMetrics metrics = Metrics.getRecorder();
+        long time = Metrics.start(metrics);
+        final KeyStore loadedKeyStore = getKeyStore();
+        time = Metrics.phase(metrics, CryptoMetrics.Phase.KEYSTORE_LOAD, time);
+
+        if (!loadedKeyStore.containsAlias(alias)) {
+            createNewKeyPair(context, alias);
+            time = Metrics.phase(metrics, CryptoMetrics.Phase.KEY_GENERATION, time);
+        }
+
+        final KeyStore.PrivateKeyEntry entry = getExistingKeyStoreEntry(loadedKeyStore, alias);
+        Metrics.phase(metrics, CryptoMetrics.Phase.ENTRY_FETCH, time);
+        return entry;
+    }
+
+    @Override
+    Cipher newCipher() throws GeneralSecurityException {
+        return Cipher.getInstance(Constants.KEYSTORE_TRANSFORMATION, Constants.KEYSTORE_PROVIDER);
+    }
+
+    // Loaded once and shared by the backends of every alias.
+    private static synchronized KeyStore getKeyStore() throws CertificateException,
+                                                              NoSuchAlgorithmException,
+                                                              IOException,
+                                                              KeyStoreException {
+        if (keyStore == null) {
+            final KeyStore newKeyStore = KeyStore.getInstance(Constants.KEYSTORE_NAME);
+            newKeyStore.load(null);
+            keyStore = newKeyStore;
+        }
+
+        return keyStore;
+    }
+
+    private static KeyStore.PrivateKeyEntry getExistingKeyStoreEntry(final KeyStore keyStore,
+                                                                     final String alias) throws UnrecoverableEntryException,
+                                                                                                NoSuchAlgorithmException,
+                                                                                                KeyStoreException {
+        return (KeyStore.PrivateKeyEntry) keyStore.getEntry(alias, null);
+    }
+
+    private static void createNewKeyPair(final Context context,
+                                         final String alias) throws NoSuchAlgorithmException,
+                                                                    InvalidAlgorithmParameterException,
+                                                                    NoSuchProviderException {
+        final KeyPairGenerator generator = getKeyPairGenerator();
+        final KeyPairGeneratorSpec spec = getKeyPairGeneratorSpec(context, alias);
+        generator.initialize(spec);
+        generator.generateKeyPair();
+    }
+
+    private static KeyPairGenerator getKeyPairGenerator() throws NoSuchProviderException,
+                                                                 NoSuchAlgorithmException {
+        return KeyPairGenerator.getInstance(Constants.KEYSTORE_ALGORITHM, Constants.KEYSTORE_NAME);
+    }
+
+    private static KeyPairGeneratorSpec getKeyPairGeneratorSpec(final Context context,
+                                                                final String alias) {
+        return new KeyPairGeneratorSpec.Builder(context)
+                .setAlias(alias)
+                .setSubject(new X500Principal(Constants.KEYSTORE_CERTIFICATE_SUBJECT))
+                .setSerialNumber(BigInteger.ONE)
+                .setStartDate(getCertificateStartDate())
+                .setEndDate(getCertificateEndDate())
+                .build();
+    }
+}
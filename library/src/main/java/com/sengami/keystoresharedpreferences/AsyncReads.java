@@ -0,0 +1,127 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+final class AsyncReads {
+
+    interface Loader {
+
+        Object load(String key);
+    }
+
+    private final Executor executor;
+    private final Loader loader;
+    private final ConcurrentMap<String, Read> queuedReads = new ConcurrentHashMap<>();
+
+    AsyncReads(final Executor executor,
+               final Loader loader) {
+        this.executor = executor;
+        this.loader = loader;
+    }
+
+    <T> AsyncValue<T> read(final String key,
+                           final AsyncValue.Converter<T> converter) {
+        final AsyncValue<T> value = new AsyncValue<>(converter);
+        while (true) {
+            final Read queuedRead = queuedReads.get(key);
+            if (queuedRead != null && queuedRead.subscribe(value)) {
+                return value;
+            }
+
+            final Read newRead = new Read(key);
+            newRead.subscribe(value);
+            final boolean queued = queuedRead == null ? queuedReads.putIfAbsent(key, newRead) == null : queuedReads.replace(key, queuedRead, newRead);
+            if (queued) {
+                execute(newRead);
+                return value;
+            }
+        }
+    }
+
+    int getQueuedCount() {
+        return queuedReads.size();
+    }
+
+    private void execute(final Read read) {
+        if (executor == null) {
+            read.run();
+            return;
+        }
+
+        try {
+            executor.execute(read);
+        } catch (final RejectedExecutionException e) {
+            read.run();
+        }
+    }
+
+    final class Read implements Runnable {
+
+        private final String key;
+        private final List<AsyncValue<?>> subscribers = new ArrayList<>();
+        // Set once the read starts or is abandoned, after which nobody may join it.
+        private boolean closed;
+
+        private Read(final String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            // Only queued reads are joined, so every subscriber sees a value loaded after its request.
+            queuedReads.remove(key, this);
+
+            Object decryptedValue;
+            try {
+                decryptedValue = loader.load(key);
+            } catch (final RuntimeException e) {
+                KeyStoreProxy.logError("Error reading value", e);
+                decryptedValue = null;
+            }
+
+            final AsyncValue<?>[] currentSubscribers;
+            synchronized (this) {
+                currentSubscribers = subscribers.toArray(new AsyncValue<?>[0]);
+                subscribers.clear();
+            }
+
+            for (final AsyncValue<?> subscriber : currentSubscribers) {
+                subscriber.complete(decryptedValue);
+            }
+        }
+
+        private synchronized boolean subscribe(final AsyncValue<?> value) {
+            if (closed) {
+                return false;
+            }
+
+            subscribers.add(value);
+            value.attach(this);
+            return true;
+        }
+
+        void unsubscribe(final AsyncValue<?> value) {
+            synchronized (this) {
+                subscribers.remove(value);
+                if (closed || !subscribers.isEmpty()) {
+                    return;
+                }
+                closed = true;
+            }
+
+            // Nobody is waiting for this read any more, so it is skipped when its turn comes.
+            queuedReads.remove(key, this);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public final class AsyncValue<T> implements Future<T> {
+
+    interface Converter<T> {
+
+        T convert(Object decryptedValue);
+    }
+
+    private final Converter<T> converter;
+    private final List<ValueCallback<T>> callbacks = new ArrayList<>();
+    private AsyncReads.Read read;
+    private boolean done;
+    private boolean cancelled;
+    private T value;
+
+    AsyncValue(final Converter<T> converter) {
+        this.converter = converter;
+    }
+
+    public AsyncValue<T> addCallback(final ValueCallback<T> callback) {
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return this;
+            }
+
+            if (cancelled) {
+                return this;
+            }
+        }
+
+        callback.onValue(value);
+        return this;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        final AsyncReads.Read currentRead;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+
+            done = true;
+            cancelled = true;
+            callbacks.clear();
+            currentRead = read;
+            notifyAll();
+        }
+
+        if (currentRead != null) {
+            currentRead.unsubscribe(this);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException {
+        while (!done) {
+            wait();
+        }
+
+        return getDoneValue();
+    }
+
+    @Override
+    public synchronized T get(final long timeout,
+                              final TimeUnit unit) throws InterruptedException,
+                                                          TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            final long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        }
+
+        return getDoneValue();
+    }
+
+    synchronized void attach(final AsyncReads.Read read) {
+        this.read = read;
+    }
+
+    void complete(final Object decryptedValue) {
+        T convertedValue;
+        try {
+            convertedValue = converter.convert(decryptedValue);
+        } catch (final RuntimeException e) {
+            KeyStoreProxy.logError("Error converting value", e);
+            convertedValue = converter.convert(null);
+        }
+
+        final List<ValueCallback<T>> currentCallbacks;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+
+            done = true;
+            value = convertedValue;
+            currentCallbacks = new ArrayList<>(callbacks);
+            callbacks.clear();
+            notifyAll();
+        }
+
+        for (final ValueCallback<T> callback : currentCallbacks) {
+            callback.onValue(convertedValue);
+        }
+    }
+
+    private T getDoneValue() {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+
+        return value;
+    }
+}
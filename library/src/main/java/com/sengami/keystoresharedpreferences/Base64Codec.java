@@ -0,0 +1,94 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.util.Arrays;
+
+final class Base64Codec {
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] VALUES = new int[128];
+    private static final int SKIP = -1;
+    private static final int INVALID = -2;
+    private static final int LINE_LENGTH = 76;
+
+    static {
+        Arrays.fill(VALUES, INVALID);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+        VALUES[' '] = SKIP;
+        VALUES['\t'] = SKIP;
+        VALUES['\r'] = SKIP;
+        VALUES['\n'] = SKIP;
+        VALUES['='] = SKIP;
+    }
+
+    // Wrapped output matches android.util.Base64.DEFAULT: 76 character lines, each terminated by a newline.
+    static String encode(final byte[] bytes,
+                         final int offset,
+                         final int length,
+                         final boolean wrap) {
+        final int encodedLength = (length + 2) / 3 * 4;
+        final int lineCount = wrap ? (encodedLength + LINE_LENGTH - 1) / LINE_LENGTH : 0;
+        final char[] chars = new char[encodedLength + lineCount];
+        final int end = offset + length;
+        int position = 0;
+        int lineLength = 0;
+        for (int i = offset; i < end; i += 3) {
+            final int remaining = end - i;
+            final int block = (bytes[i] & 0xFF) << 16
+                | (remaining > 1 ? (bytes[i + 1] & 0xFF) << 8 : 0)
+                | (remaining > 2 ? bytes[i + 2] & 0xFF : 0);
+            chars[position++] = ALPHABET[(block >>> 18) & 0x3F];
+            chars[position++] = ALPHABET[(block >>> 12) & 0x3F];
+            chars[position++] = remaining > 1 ? ALPHABET[(block >>> 6) & 0x3F] : '=';
+            chars[position++] = remaining > 2 ? ALPHABET[block & 0x3F] : '=';
+
+            lineLength += 4;
+            if (wrap && (lineLength == LINE_LENGTH || remaining <= 3)) {
+                chars[position++] = '\n';
+                lineLength = 0;
+            }
+        }
+
+        return new String(chars, 0, position);
+    }
+
+    static byte[] decode(final String value,
+                         final int start) {
+        final int length = value.length();
+        final byte[] bytes = new byte[(length - start) / 4 * 3 + 3];
+        int position = 0;
+        int block = 0;
+        int blockLength = 0;
+        for (int i = start; i < length; i++) {
+            final char c = value.charAt(i);
+            final int digit = c < VALUES.length ? VALUES[c] : INVALID;
+            if (digit == SKIP) {
+                continue;
+            }
+            if (digit == INVALID) {
+                throw new IllegalArgumentException("bad base-64");
+            }
+
+            block = block << 6 | digit;
+            if (++blockLength == 4) {
+                bytes[position++] = (byte) (block >>> 16);
+                bytes[position++] = (byte) (block >>> 8);
+                bytes[position++] = (byte) block;
+                block = 0;
+                blockLength = 0;
+            }
+        }
+
+        if (blockLength == 1) {
+            throw new IllegalArgumentException("bad base-64");
+        } else if (blockLength == 2) {
+            bytes[position++] = (byte) (block >>> 4);
+        } else if (blockLength == 3) {
+            bytes[position++] = (byte) (block >>> 10);
+            bytes[position++] = (byte) (block >>> 2);
+        }
+
+        return position == bytes.length ? bytes : Arrays.copyOf(bytes, position);
+    }
+}
@@ -0,0 +1,31 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.util.Arrays;
+
+final class Buffers {
+
+    private static final int MAX_RETAINED_SIZE_BYTES = 16 * 1024;
+    private static final int MIN_SIZE_BYTES = 512;
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<>();
+
+    static byte[] get(final int size) {
+        if (size > MAX_RETAINED_SIZE_BYTES) {
+            return new byte[size];
+        }
+
+        final byte[] buffer = BUFFERS.get();
+        if (buffer != null && buffer.length >= size) {
+            return buffer;
+        }
+
+        final byte[] newBuffer = new byte[Math.min(MAX_RETAINED_SIZE_BYTES, Math.max(MIN_SIZE_BYTES, Integer.highestOneBit(size) << 1))];
+        BUFFERS.set(newBuffer);
+        return newBuffer;
+    }
+
+    // Buffers outlive the call that used them, so what was written to them is wiped once it has been read.
+    static void clear(final byte[] buffer,
+                      final int length) {
+        Arrays.fill(buffer, 0, Math.min(length, buffer.length), (byte) 0);
+    }
+}
@@ -0,0 +1,43 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+public final class ChangeBatch {
+
+    private final boolean cleared;
+    private final Map<String, Object> oldValues;
+    private final Map<String, Object> newValues;
+
+    ChangeBatch(final boolean cleared,
+                final Map<String, Object> oldValues,
+                final Map<String, Object> newValues) {
+        this.cleared = cleared;
+        this.oldValues = oldValues;
+        this.newValues = newValues;
+    }
+
+    // True when the batch cleared the store first; keys it removed that way are not listed.
+    public boolean isCleared() {
+        return cleared;
+    }
+
+    public Set<String> getKeys() {
+        return Collections.unmodifiableSet(newValues.keySet());
+    }
+
+    // The old value is only known when this process read or wrote the entry before, since finding it out would take a decryption.
+    public boolean isOldValueKnown(final String key) {
+        return oldValues.containsKey(key);
+    }
+
+    public Object getOldValue(final String key) {
+        return StreamManifest.withoutKey(oldValues.get(key));
+    }
+
+    // Null for a removed entry.
+    public Object getNewValue(final String key) {
+        return StreamManifest.withoutKey(newValues.get(key));
+    }
+}
@@ -0,0 +1,198 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+final class ChangeTracker {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int FINGERPRINT_KEY_SIZE_BYTES = 32;
+
+    // Fingerprints never leave memory, so a random key per store is enough to keep them from being matched against guesses.
+    private final SecretKey fingerprintKey;
+    private final ConcurrentMap<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+    private final ThreadLocal<Mac> macs = new ThreadLocal<>();
+    private final List<ValueCallback<ChangeBatch>> callbacks = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<ChangeBatch> reports = new ConcurrentLinkedQueue<>();
+
+    ChangeTracker() {
+        final byte[] keyBytes = new byte[FINGERPRINT_KEY_SIZE_BYTES];
+        RANDOM.nextBytes(keyBytes);
+        this.fingerprintKey = new SecretKeySpec(keyBytes, Constants.FINGERPRINT_KEY_ALGORITHM);
+    }
+
+    // Remembers which plaintext a ciphertext holds, learned from a decryption or write that happened anyway.
+    void record(final String storedKey,
+                final Object encryptedValue,
+                final Object value) {
+        final byte[] fingerprint = fingerprint(value);
+        if (storedKey != null && encryptedValue != null && fingerprint != null) {
+            fingerprints.put(storedKey, new Fingerprint(encryptedValue, fingerprint, callbacks.isEmpty() ? null : value));
+        }
+    }
+
+    void clear() {
+        fingerprints.clear();
+    }
+
+    Changes newChanges(final boolean cleared) {
+        return new Changes(cleared);
+    }
+
+    void addCallback(final ValueCallback<ChangeBatch> callback) {
+        callbacks.add(callback);
+    }
+
+    void removeCallback(final ValueCallback<ChangeBatch> callback) {
+        callbacks.remove(callback);
+    }
+
+    void commit(final Changes changes) {
+        if (changes.cleared) {
+            fingerprints.clear();
+        }
+
+        for (final Map.Entry<String, Object> entry : changes.encryptedValues.entrySet()) {
+            if (entry.getValue() == WriteBatch.REMOVED) {
+                fingerprints.remove(entry.getKey());
+            } else {
+                final byte[] fingerprint = changes.newFingerprints.get(entry.getKey());
+                if (fingerprint != null) {
+                    fingerprints.put(entry.getKey(), new Fingerprint(entry.getValue(), fingerprint, callbacks.isEmpty() ? null : changes.writtenValues.get(entry.getKey())));
+                }
+            }
+        }
+
+        if (!callbacks.isEmpty() && (changes.cleared || !changes.newValues.isEmpty())) {
+            reports.add(new ChangeBatch(changes.cleared, changes.oldValues, changes.newValues));
+        }
+    }
+
+    // Called once the write lock is released, so callbacks may write to the store again.
+    void deliver() {
+        if (reports.isEmpty()) {
+            return;
+        }
+
+        synchronized (reports) {
+            ChangeBatch batch;
+            while ((batch = reports.poll()) != null) {
+                for (final ValueCallback<ChangeBatch> callback : callbacks) {
+                    callback.onValue(batch);
+                }
+            }
+        }
+    }
+
+    private Fingerprint getFingerprint(final String storedKey,
+                                       final Object currentEncryptedValue) {
+        final Fingerprint fingerprint = storedKey != null ? fingerprints.get(storedKey) : null;
+        // Anything written behind this store's back, such as by a rotation, no longer matches its ciphertext.
+        return fingerprint != null && fingerprint.encryptedValue.equals(currentEncryptedValue) ? fingerprint : null;
+    }
+
+    private byte[] fingerprint(final Object value) {
+        if (value == null || value == WriteBatch.REMOVED) {
+            return null;
+        }
+
+        try {
+            // Equal sets must hash the same whatever order they iterate in.
+            return getMac().doFinal(ValueCodec.encode(value instanceof Set ? new TreeSet<>((Set<?>) value) : value));
+        } catch (final Exception e) {
+            KeyStoreProxy.logError("Error fingerprinting value", e);
+            return null;
+        }
+    }
+
+    private Mac getMac() throws GeneralSecurityException {
+        Mac mac = macs.get();
+        if (mac == null) {
+            mac = Mac.getInstance(Constants.FINGERPRINT_KEY_ALGORITHM);
+            mac.init(fingerprintKey);
+            macs.set(mac);
+        }
+
+        return mac;
+    }
+
+    final class Changes {
+
+        private final boolean cleared;
+        private final Map<String, Object> encryptedValues = new HashMap<>();
+        private final Map<String, byte[]> newFingerprints = new HashMap<>();
+        private final Map<String, Object> writtenValues = new HashMap<>();
+        private final Map<String, Object> oldValues = new HashMap<>();
+        private final Map<String, Object> newValues = new LinkedHashMap<>();
+
+        private Changes(final boolean cleared) {
+            this.cleared = cleared;
+        }
+
+        // Returns false for a mutation that would leave the entry as it is, which is then not written at all.
+        boolean add(final String key,
+                    final String storedKey,
+                    final Object currentEncryptedValue,
+                    final Object value) {
+            final byte[] fingerprint = fingerprint(value);
+            if (!cleared) {
+                if (currentEncryptedValue == null && value == WriteBatch.REMOVED) {
+                    return false;
+                }
+
+                final Fingerprint currentFingerprint = getFingerprint(storedKey, currentEncryptedValue);
+                if (currentFingerprint != null && fingerprint != null && Arrays.equals(currentFingerprint.fingerprint, fingerprint)) {
+                    return false;
+                }
+
+                if (currentEncryptedValue == null) {
+                    oldValues.put(key, null);
+                } else if (currentFingerprint != null && currentFingerprint.value != null) {
+                    oldValues.put(key, currentFingerprint.value);
+                }
+            }
+
+            if (fingerprint != null) {
+                newFingerprints.put(storedKey, fingerprint);
+                writtenValues.put(storedKey, value);
+            }
+            newValues.put(key, value != WriteBatch.REMOVED ? value : null);
+            return true;
+        }
+
+        void setEncryptedValue(final String storedKey,
+                               final Object encryptedValue) {
+            encryptedValues.put(storedKey, encryptedValue);
+        }
+    }
+
+    private static final class Fingerprint {
+
+        private final Object encryptedValue;
+        private final byte[] fingerprint;
+        private final Object value;
+
+        private Fingerprint(final Object encryptedValue,
+                            final byte[] fingerprint,
+                            final Object value) {
+            this.encryptedValue = encryptedValue;
+            this.fingerprint = fingerprint;
+            this.value = value;
+        }
+    }
+}
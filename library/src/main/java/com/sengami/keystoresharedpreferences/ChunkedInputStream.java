@@ -0,0 +1,135 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+final class ChunkedInputStream extends InputStream {
+
+    private final RandomAccessFile file;
+    private final StreamManifest manifest;
+    private final SecretKey key;
+    private final byte[] encryptedChunk;
+    private final byte[] chunk;
+    private long position;
+    // Index of the chunk held in the buffer, or -1 when the buffer is empty.
+    private int bufferedIndex = -1;
+    private int bufferedLength;
+
+    ChunkedInputStream(final File file,
+                       final StreamManifest manifest) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.manifest = manifest;
+        this.key = StreamFiles.getKey(manifest);
+        this.encryptedChunk = new byte[manifest.chunkSize + StreamFiles.TAG_LENGTH];
+        this.chunk = new byte[manifest.chunkSize];
+
+        final long expectedLength = StreamFiles.HEADER_LENGTH + manifest.length + (long) manifest.getChunkCount() * StreamFiles.TAG_LENGTH;
+        final byte[] header = new byte[StreamFiles.HEADER_LENGTH];
+        try {
+            if (this.file.length() != expectedLength) {
+                throw new IOException("Unexpected stream file length: " + this.file.length());
+            }
+            this.file.readFully(header);
+            if (!Arrays.equals(StreamFiles.MAGIC, Arrays.copyOf(header, StreamFiles.MAGIC.length)) || header[StreamFiles.MAGIC.length] != StreamFiles.FORMAT_VERSION) {
+                throw new IOException("Not a stream file: " + file);
+            }
+        } catch (final IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] singleByte = new byte[1];
+        return read(singleByte, 0, 1) < 0 ? -1 : singleByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] buffer,
+                    final int offset,
+                    final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position >= manifest.length) {
+            return -1;
+        }
+
+        final int index = (int) (position / manifest.chunkSize);
+        final int chunkOffset = (int) (position % manifest.chunkSize);
+        final int chunkLength = getChunkLength(index);
+        if (bufferedIndex != index && chunkOffset == 0 && length >= chunkLength) {
+            // A whole chunk fits, so it is decrypted straight into the caller's buffer.
+            decryptChunk(index, buffer, offset);
+            position += chunkLength;
+            return chunkLength;
+        }
+
+        if (bufferedIndex != index) {
+            bufferedLength = decryptChunk(index, chunk, 0);
+            bufferedIndex = index;
+        }
+
+        final int count = Math.min(length, bufferedLength - chunkOffset);
+        System.arraycopy(chunk, chunkOffset, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    // Skipped chunks are never read or decrypted.
+    @Override
+    public long skip(final long count) {
+        final long skipped = Math.max(0, Math.min(count, manifest.length - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        if (bufferedIndex < 0 || bufferedIndex != (int) (position / manifest.chunkSize)) {
+            return 0;
+        }
+
+        return bufferedLength - (int) (position % manifest.chunkSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        Arrays.fill(chunk, (byte) 0);
+        bufferedIndex = -1;
+        file.close();
+    }
+
+    private int getChunkLength(final int index) {
+        return (int) Math.min(manifest.chunkSize, manifest.length - (long) index * manifest.chunkSize);
+    }
+
+    private int decryptChunk(final int index,
+                             final byte[] output,
+                             final int outputOffset) throws IOException {
+        final int encryptedLength = getChunkLength(index) + StreamFiles.TAG_LENGTH;
+        file.seek(StreamFiles.HEADER_LENGTH + (long) index * (manifest.chunkSize + StreamFiles.TAG_LENGTH));
+        file.readFully(encryptedChunk, 0, encryptedLength);
+
+        final CryptoMetrics metrics = Metrics.getRecorder();
+        final long start = Metrics.start(metrics);
+        try {
+            final boolean last = index == manifest.getChunkCount() - 1;
+            final Cipher cipher = AesGcm.getCipher(Cipher.DECRYPT_MODE, key, StreamFiles.getNonce(index, last), 0);
+            final int length = cipher.doFinal(encryptedChunk, 0, encryptedLength, output, outputOffset);
+            Metrics.operation(metrics, CryptoMetrics.Operation.AES_DECRYPT, start, encryptedLength, true);
+            return length;
+        } catch (final GeneralSecurityException e) {
+            Metrics.operation(metrics, CryptoMetrics.Operation.AES_DECRYPT, start, encryptedLength, false);
+            throw new IOException("Corrupted stream chunk " + index, e);
+        }
+    }
+}
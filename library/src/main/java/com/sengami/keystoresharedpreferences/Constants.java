@@ -1,5 +1,7 @@
 package com.sengami.keystoresharedpreferences;
 
+import java.nio.charset.Charset;
+
 public interface Constants {
 
     String TAG = "KEYSTORE_SHARED_PREFS";
@@ -10,5 +12,29 @@ public interface Constants {
     String KEYSTORE_TRANSFORMATION = "RSA/ECB/PKCS1Padding";
     String KEYSTORE_PROVIDER = "AndroidKeyStoreBCWorkaround";
     String KEYSTORE_CHARSET = "UTF-8";
+    Charset CHARSET = Charset.forName(KEYSTORE_CHARSET);
     int KEYSTORE_CERTIFICATE_VALIDITY_YEARS = 100;
+    String DATA_KEY_PREFERENCE = "KEYSTORE_SHARED_PREFERENCES_DATA_KEY";
+    String DATA_KEY_VERSION_PREFERENCE = DATA_KEY_PREFERENCE + "_VERSION";
+    String DATA_KEY_ROTATION_PREFERENCE = DATA_KEY_PREFERENCE + "_ROTATION";
+    String DATA_KEY_ALGORITHM = "AES";
+    String DATA_KEY_TRANSFORMATION = "AES/GCM/NoPadding";
+    String DATA_KEY_CIPHERTEXT_PREFIX = "$";
+    String TYPED_CIPHERTEXT_PREFIX = "#";
+    String VERSIONED_CIPHERTEXT_PREFIX = "@";
+    int DATA_KEY_SIZE_BITS = 256;
+    int DATA_KEY_IV_SIZE_BYTES = 12;
+    int KEY_ROTATION_CHUNK_SIZE = 64;
+    String NAME_KEY_ALGORITHM = "HmacSHA256";
+    String NAME_KEY_LABEL = "KEYSTORE_SHARED_PREFERENCES_NAME_KEY";
+    String FINGERPRINT_KEY_ALGORITHM = "HmacSHA256";
+    int COMPRESSION_DISABLED = 0;
+    int MAX_INFLATED_VALUE_BYTES = 8 * 1024 * 1024;
+    int STREAM_CHUNK_SIZE_BYTES = 64 * 1024;
+    String STREAM_FILE_KEY_LABEL = "KEYSTORE_SHARED_PREFERENCES_STREAM_FILE_KEY";
+    // PBKDF2 with SHA-1 is the variant every supported API level provides.
+    String BACKUP_KDF_ALGORITHM = "PBKDF2WithHmacSHA1";
+    int BACKUP_KDF_ITERATIONS = 100000;
+    int BACKUP_MAX_KDF_ITERATIONS = 10000000;
+    int BACKUP_CHUNK_SIZE = 64;
 }
\ No newline at end of file
@@ -0,0 +1,35 @@
+package com.sengami.keystoresharedpreferences;
+
+public final class CorruptionEvent {
+
+    public enum Action {
+        QUARANTINED,
+        DELETED,
+        STORE_RESET
+    }
+
+    private final String key;
+    private final Action action;
+    private final boolean dataKeyLost;
+
+    CorruptionEvent(final String key,
+                    final Action action,
+                    final boolean dataKeyLost) {
+        this.key = key;
+        this.action = action;
+        this.dataKeyLost = dataKeyLost;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    // True when the data key itself could not be loaded, as after a keystore reset, rather than one damaged entry.
+    public boolean isDataKeyLost() {
+        return dataKeyLost;
+    }
+}
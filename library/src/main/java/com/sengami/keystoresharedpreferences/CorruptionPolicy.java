@@ -0,0 +1,7 @@
+package com.sengami.keystoresharedpreferences;
+
+public enum CorruptionPolicy {
+    QUARANTINE,
+    DELETE_ENTRY,
+    RESET_STORE
+}
@@ -0,0 +1,19 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+public interface CryptoBackend {
+
+    Cipher getEncryptingCipher() throws GeneralSecurityException,
+                                        IOException;
+
+    Cipher getDecryptingCipher() throws GeneralSecurityException,
+                                        IOException;
+
+    void invalidate();
+
+    void handleFailure(Throwable throwable);
+}
@@ -0,0 +1,58 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class CryptoExecutors {
+
+    private static volatile ExecutorService defaultExecutor;
+    private static volatile ExecutorService asyncReadExecutor;
+
+    public static ExecutorService getDefault() {
+        if (defaultExecutor == null) {
+            synchronized (CryptoExecutors.class) {
+                if (defaultExecutor == null) {
+                    defaultExecutor = newExecutor(Runtime.getRuntime().availableProcessors());
+                }
+            }
+        }
+
+        return defaultExecutor;
+    }
+
+    // Kept apart from the default executor so queued async reads never starve the parallel decryption they fan out to.
+    public static ExecutorService getAsyncReadDefault() {
+        if (asyncReadExecutor == null) {
+            synchronized (CryptoExecutors.class) {
+                if (asyncReadExecutor == null) {
+                    asyncReadExecutor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), new CryptoThreadFactory(Constants.TAG + "-async-"));
+                }
+            }
+        }
+
+        return asyncReadExecutor;
+    }
+
+    public static ExecutorService newExecutor(final int threadCount) {
+        return Executors.newFixedThreadPool(threadCount, new CryptoThreadFactory(Constants.TAG + "-"));
+    }
+
+    private static final class CryptoThreadFactory implements ThreadFactory {
+
+        private final String namePrefix;
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        private CryptoThreadFactory(final String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
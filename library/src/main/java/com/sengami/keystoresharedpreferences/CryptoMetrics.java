@@ -0,0 +1,33 @@
+package com.sengami.keystoresharedpreferences;
+
+public interface CryptoMetrics {
+
+    enum Phase {
+        KEYSTORE_LOAD,
+        ENTRY_FETCH,
+        KEY_GENERATION,
+        CIPHER_INIT,
+        DO_FINAL,
+        CODEC,
+        COMPRESSION,
+        KEY_DERIVATION
+    }
+
+    enum Operation {
+        RSA_ENCRYPT,
+        RSA_DECRYPT,
+        AES_ENCRYPT,
+        AES_DECRYPT
+    }
+
+    void onPhase(Phase phase,
+                 long nanos);
+
+    // Sizes are ciphertext byte counts; plaintext never reaches a recorder.
+    void onOperation(Operation operation,
+                     long nanos,
+                     int payloadBytes,
+                     boolean success);
+
+    void onCacheLookup(boolean hit);
+}
@@ -0,0 +1,368 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+public final class DataKeyProxy {
+
+    private static final Map<String, CachedDataKey> DATA_KEYS = new ConcurrentHashMap<>();
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    public static String encryptString(final Context context,
+                                       final SharedPreferences sharedPreferences,
+                                       final String value) {
+        return encryptString(KeyStoreProxy.getDefaultBackend(context), sharedPreferences, value);
+    }
+
+    public static String decryptString(final Context context,
+                                       final SharedPreferences sharedPreferences,
+                                       final String value) {
+        return decryptString(KeyStoreProxy.getDefaultBackend(context), sharedPreferences, value);
+    }
+
+    public static String encryptValue(final Context context,
+                                      final SharedPreferences sharedPreferences,
+                                      final Object value) {
+        return encryptValue(KeyStoreProxy.getDefaultBackend(context), sharedPreferences, value);
+    }
+
+    public static Object decryptValue(final Context context,
+                                      final SharedPreferences sharedPreferences,
+                                      final String value) {
+        return decryptValue(KeyStoreProxy.getDefaultBackend(context), sharedPreferences, value);
+    }
+
+    public static String encryptString(final CryptoBackend backend,
+                                       final SharedPreferences sharedPreferences,
+                                       final String value) {
+        return encryptValue(backend, sharedPreferences, value);
+    }
+
+    public static String decryptString(final CryptoBackend backend,
+                                       final SharedPreferences sharedPreferences,
+                                       final String value) {
+        final Object decryptedValue = decryptValue(backend, sharedPreferences, value);
+        return decryptedValue instanceof String ? (String) decryptedValue : String.valueOf(decryptedValue);
+    }
+
+    public static String encryptValue(final CryptoBackend backend,
+                                      final SharedPreferences sharedPreferences,
+                                      final Object value) {
+        return encryptValue(backend, sharedPreferences, value, Constants.COMPRESSION_DISABLED);
+    }
+
+    static String encryptValue(final CryptoBackend backend,
+                               final SharedPreferences sharedPreferences,
+                               final Object value,
+                               final int compressionThreshold) {
+        final CryptoMetrics metrics = Metrics.getRecorder();
+        final long start = Metrics.start(metrics);
+        try {
+            final int version = getCurrentVersion(sharedPreferences);
+            final SecretKey dataKey = getDataKey(backend, sharedPreferences, version);
+            long time = Metrics.start(metrics);
+            byte[] bytes = ValueCodec.encode(value);
+            time = Metrics.phase(metrics, CryptoMetrics.Phase.CODEC, time);
+            if (compressionThreshold > 0 && bytes.length >= compressionThreshold) {
+                final byte[] deflatedBytes = ValueCodec.deflate(bytes);
+                if (deflatedBytes != null) {
+                    bytes = deflatedBytes;
+                }
+                time = Metrics.phase(metrics, CryptoMetrics.Phase.COMPRESSION, time);
+            }
+            final byte[] iv = AesGcm.newIv();
+            final Cipher cipher = AesGcm.getCipher(Cipher.ENCRYPT_MODE, dataKey, iv, 0);
+            time = Metrics.phase(metrics, CryptoMetrics.Phase.CIPHER_INIT, time);
+            final byte[] payload = Buffers.get(iv.length + cipher.getOutputSize(bytes.length));
+            System.arraycopy(iv, 0, payload, 0, iv.length);
+            final int encryptedLength = cipher.doFinal(bytes, 0, bytes.length, payload, iv.length);
+            time = Metrics.phase(metrics, CryptoMetrics.Phase.DO_FINAL, time);
+            // Version 0 is the data key every store starts with, so its ciphertexts keep their untagged form.
+            final String header = version == 0 ? Constants.TYPED_CIPHERTEXT_PREFIX : Constants.VERSIONED_CIPHERTEXT_PREFIX + version + Constants.TYPED_CIPHERTEXT_PREFIX;
+            final String encryptedValue = header + Base64Codec.encode(payload, 0, iv.length + encryptedLength, false);
+            Buffers.clear(payload, iv.length + encryptedLength);
+            Metrics.phase(metrics, CryptoMetrics.Phase.CODEC, time);
+            Metrics.operation(metrics, CryptoMetrics.Operation.AES_ENCRYPT, start, iv.length + encryptedLength, true);
+            return encryptedValue;
+        } catch (final Exception e) {
+            Metrics.operation(metrics, CryptoMetrics.Operation.AES_ENCRYPT, start, 0, false);
+            KeyStoreProxy.logError("Error encrypting value", e);
+            // Handing back the value would let callers store it in plaintext.
+            return null;
+        }
+    }
+
+    public static Object decryptValue(final CryptoBackend backend,
+                                      final SharedPreferences sharedPreferences,
+                                      final String value) {
+        final int markerIndex = getMarkerIndex(value);
+        if (markerIndex < 0) {
+            return KeyStoreProxy.decryptString(backend, value);
+        }
+
+        final CryptoMetrics metrics = Metrics.getRecorder();
+        final long start = Metrics.start(metrics);
+        int payloadBytes = 0;
+        try {
+            final SecretKey dataKey = getDataKey(backend, sharedPreferences, getVersion(value, markerIndex));
+            long time = Metrics.start(metrics);
+            final byte[] payload = Base64Codec.decode(value, markerIndex + 1);
+            payloadBytes = payload.length;
+            time = Metrics.phase(metrics, CryptoMetrics.Phase.CODEC, time);
+            final Cipher cipher = AesGcm.getCipher(Cipher.DECRYPT_MODE, dataKey, payload, 0);
+            time = Metrics.phase(metrics, CryptoMetrics.Phase.CIPHER_INIT, time);
+            final int ivLength = Constants.DATA_KEY_IV_SIZE_BYTES;
+            final int outputSize = cipher.getOutputSize(payload.length - ivLength);
+            final byte[] bytes = Buffers.get(outputSize);
+            final Object decryptedValue;
+            try {
+                final int length = cipher.doFinal(payload, ivLength, payload.length - ivLength, bytes, 0);
+                time = Metrics.phase(metrics, CryptoMetrics.Phase.DO_FINAL, time);
+                decryptedValue = value.startsWith(Constants.TYPED_CIPHERTEXT_PREFIX, markerIndex) ? ValueCodec.decode(bytes, 0, length) : new String(bytes, 0, length, Constants.CHARSET);
+            } finally {
+                Buffers.clear(bytes, outputSize);
+            }
+            Metrics.phase(metrics, CryptoMetrics.Phase.CODEC, time);
+            Metrics.operation(metrics, CryptoMetrics.Operation.AES_DECRYPT, start, payloadBytes, true);
+            return decryptedValue;
+        } catch (final Exception e) {
+            Metrics.operation(metrics, CryptoMetrics.Operation.AES_DECRYPT, start, payloadBytes, false);
+            KeyStoreProxy.logError("Error decrypting value", e);
+            return value;
+        }
+    }
+
+    // Returns the data key version of a ciphertext, or -1 for a legacy ciphertext encrypted with the key pair alone.
+    static int getVersion(final String value) {
+        final int markerIndex = getMarkerIndex(value);
+        return markerIndex < 0 ? -1 : getVersion(value, markerIndex);
+    }
+
+    static int getCurrentVersion(final SharedPreferences sharedPreferences) {
+        final String version = sharedPreferences.getString(Constants.DATA_KEY_VERSION_PREFERENCE, null);
+        return version != null ? Integer.parseInt(version) : 0;
+    }
+
+    static boolean isInternalPreference(final String key) {
+        return key != null && key.startsWith(Constants.DATA_KEY_PREFERENCE);
+    }
+
+    static Map<String, String> getInternalPreferences(final CryptoBackend backend,
+                                                      final SharedPreferences sharedPreferences) throws GeneralSecurityException,
+                                                                                                        IOException {
+        synchronized (DATA_KEYS) {
+            getDataKey(backend, sharedPreferences);
+            final Map<String, String> internalPreferences = new HashMap<>();
+            for (final Map.Entry<String, ?> entry : sharedPreferences.getAll().entrySet()) {
+                if (isInternalPreference(entry.getKey()) && entry.getValue() instanceof String) {
+                    internalPreferences.put(entry.getKey(), (String) entry.getValue());
+                }
+            }
+
+            return internalPreferences;
+        }
+    }
+
+    // Tells a lost data key, as after a keystore reset, apart from a single damaged ciphertext.
+    static boolean isDataKeyAvailable(final CryptoBackend backend,
+                                      final SharedPreferences sharedPreferences,
+                                      final int version) {
+        if (version < 0) {
+            return true;
+        }
+
+        // Only the stored key is tried; a missing one is as lost as one that cannot be unwrapped, and creating it would hide that.
+        final String wrappedDataKey = sharedPreferences.getString(getDataKeyPreference(version), null);
+        if (wrappedDataKey == null) {
+            return false;
+        }
+
+        try {
+            getStoredDataKey(backend, wrappedDataKey);
+            return true;
+        } catch (final Exception e) {
+            return false;
+        }
+    }
+
+    // Derived from the first data key, which a rotation never replaces, so hashed names stay the same.
+    static SecretKey deriveNameKey(final CryptoBackend backend,
+                                   final SharedPreferences sharedPreferences,
+                                   final String label) throws GeneralSecurityException,
+                                                              IOException {
+        final Mac mac = Mac.getInstance(Constants.NAME_KEY_ALGORITHM);
+        mac.init(new SecretKeySpec(getDataKey(backend, sharedPreferences, 0).getEncoded(), Constants.NAME_KEY_ALGORITHM));
+        return new SecretKeySpec(mac.doFinal(label.getBytes(Constants.CHARSET)), Constants.NAME_KEY_ALGORITHM);
+    }
+
+    static int rotateDataKey(final CryptoBackend backend,
+                             final SharedPreferences sharedPreferences) throws GeneralSecurityException,
+                                                                               IOException {
+        synchronized (DATA_KEYS) {
+            final int version = getCurrentVersion(sharedPreferences) + 1;
+            final SecretKey dataKey = generateDataKey();
+            final String wrappedDataKey = wrapDataKey(backend, dataKey);
+            final boolean saved = sharedPreferences
+                .edit()
+                .putString(getDataKeyPreference(version), wrappedDataKey)
+                .putString(Constants.DATA_KEY_VERSION_PREFERENCE, String.valueOf(version))
+                .putString(Constants.DATA_KEY_ROTATION_PREFERENCE, String.valueOf(version))
+                .commit();
+            if (!saved) {
+                throw new IOException("Could not save data key");
+            }
+
+            DATA_KEYS.put(wrappedDataKey, new CachedDataKey(backend, dataKey));
+            return version;
+        }
+    }
+
+    static SecretKey getDataKey(final Context context,
+                                final SharedPreferences sharedPreferences) throws GeneralSecurityException,
+                                                                                  IOException {
+        return getDataKey(KeyStoreProxy.getDefaultBackend(context), sharedPreferences);
+    }
+
+    static SecretKey getDataKey(final CryptoBackend backend,
+                                final SharedPreferences sharedPreferences) throws GeneralSecurityException,
+                                                                                  IOException {
+        return getDataKey(backend, sharedPreferences, getCurrentVersion(sharedPreferences));
+    }
+
+    private static SecretKey getDataKey(final CryptoBackend backend,
+                                        final SharedPreferences sharedPreferences,
+                                        final int version) throws GeneralSecurityException,
+                                                                  IOException {
+        final String preference = getDataKeyPreference(version);
+        final String cachedWrappedDataKey = sharedPreferences.getString(preference, null);
+        final SecretKey cachedDataKey = cachedWrappedDataKey != null ? getCachedDataKey(backend, cachedWrappedDataKey) : null;
+        if (cachedDataKey != null) {
+            return cachedDataKey;
+        }
+
+        synchronized (DATA_KEYS) {
+            final String wrappedDataKey = sharedPreferences.getString(preference, null);
+            if (wrappedDataKey == null) {
+                // Later versions are only ever created by a rotation, so a missing one cannot be replaced.
+                if (version != 0) {
+                    throw new GeneralSecurityException("Missing data key version " + version);
+                }
+                return createDataKey(backend, sharedPreferences);
+            }
+
+            return getStoredDataKey(backend, wrappedDataKey);
+        }
+    }
+
+    private static SecretKey getStoredDataKey(final CryptoBackend backend,
+                                              final String wrappedDataKey) throws GeneralSecurityException,
+                                                                                  IOException {
+        synchronized (DATA_KEYS) {
+            SecretKey dataKey = getCachedDataKey(backend, wrappedDataKey);
+            if (dataKey == null) {
+                dataKey = unwrapDataKey(backend, wrappedDataKey);
+                DATA_KEYS.put(wrappedDataKey, new CachedDataKey(backend, dataKey));
+            }
+
+            return dataKey;
+        }
+    }
+
+    private static SecretKey createDataKey(final CryptoBackend backend,
+                                           final SharedPreferences sharedPreferences) throws GeneralSecurityException,
+                                                                                             IOException {
+        final SecretKey dataKey = generateDataKey();
+        final String wrappedDataKey = wrapDataKey(backend, dataKey);
+        final boolean saved = sharedPreferences
+            .edit()
+            .putString(Constants.DATA_KEY_PREFERENCE, wrappedDataKey)
+            .commit();
+        if (!saved) {
+            throw new IOException("Could not save data key");
+        }
+
+        DATA_KEYS.put(wrappedDataKey, new CachedDataKey(backend, dataKey));
+        return dataKey;
+    }
+
+    // A key unwrapped by one alias must not be handed to a store using another, even for a copied ciphertext.
+    private static SecretKey getCachedDataKey(final CryptoBackend backend,
+                                              final String wrappedDataKey) {
+        final CachedDataKey cachedDataKey = DATA_KEYS.get(wrappedDataKey);
+        return cachedDataKey != null && cachedDataKey.backend == backend ? cachedDataKey.dataKey : null;
+    }
+
+    private static String getDataKeyPreference(final int version) {
+        return version == 0 ? Constants.DATA_KEY_PREFERENCE : Constants.DATA_KEY_PREFERENCE + "_" + version;
+    }
+
+    private static int getMarkerIndex(final String value) {
+        if (value == null) {
+            return -1;
+        }
+
+        int index = 0;
+        if (value.startsWith(Constants.VERSIONED_CIPHERTEXT_PREFIX)) {
+            index = 1;
+            while (index < value.length() && Character.isDigit(value.charAt(index))) {
+                index++;
+            }
+            if (index == 1) {
+                return -1;
+            }
+        }
+
+        return value.startsWith(Constants.TYPED_CIPHERTEXT_PREFIX, index) || value.startsWith(Constants.DATA_KEY_CIPHERTEXT_PREFIX, index) ? index : -1;
+    }
+
+    private static int getVersion(final String value,
+                                  final int markerIndex) {
+        return markerIndex == 0 ? 0 : Integer.parseInt(value.substring(1, markerIndex));
+    }
+
+    static SecretKey generateDataKey() throws NoSuchAlgorithmException {
+        final KeyGenerator generator = KeyGenerator.getInstance(Constants.DATA_KEY_ALGORITHM);
+        generator.init(Constants.DATA_KEY_SIZE_BITS, RANDOM);
+        return generator.generateKey();
+    }
+
+    private static String wrapDataKey(final CryptoBackend backend,
+                                      final SecretKey dataKey) throws GeneralSecurityException,
+                                                                      IOException {
+        final byte[] wrappedBytes = KeyStoreProxy.encryptBytes(backend, dataKey.getEncoded());
+        return Base64Codec.encode(wrappedBytes, 0, wrappedBytes.length, false);
+    }
+
+    private static SecretKey unwrapDataKey(final CryptoBackend backend,
+                                           final String wrappedDataKey) throws GeneralSecurityException,
+                                                                               IOException {
+        final byte[] keyBytes = KeyStoreProxy.decryptBytes(backend, Base64Codec.decode(wrappedDataKey, 0));
+        return new SecretKeySpec(keyBytes, Constants.DATA_KEY_ALGORITHM);
+    }
+
+    private static final class CachedDataKey {
+
+        private final CryptoBackend backend;
+        private final SecretKey dataKey;
+
+        private CachedDataKey(final CryptoBackend backend,
+                              final SecretKey dataKey) {
+            this.backend = backend;
+            this.dataKey = dataKey;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.ComponentCallbacks2;
+import android.content.SharedPreferences;
+import android.content.res.Configuration;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class DecryptedValueCache implements SharedPreferences.OnSharedPreferenceChangeListener,
+                                                  ComponentCallbacks2 {
+
+    private final boolean clearOnTrimMemory;
+    private final Map<String, CachedValue> entries;
+
+    public DecryptedValueCache(final int maxEntries,
+                               final boolean clearOnTrimMemory) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+
+        this.clearOnTrimMemory = clearOnTrimMemory;
+        this.entries = new LinkedHashMap<String, CachedValue>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedValue> eldest) {
+                if (size() > maxEntries) {
+                    eldest.getValue().clear();
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    public synchronized void invalidate(final String key) {
+        final CachedValue cachedValue = entries.remove(key);
+        if (cachedValue != null) {
+            cachedValue.clear();
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        for (final CachedValue cachedValue : entries.values()) {
+            cachedValue.clear();
+        }
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences,
+                                          final String key) {
+        if (key == null) {
+            invalidateAll();
+        } else {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(final int level) {
+        if (clearOnTrimMemory && level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        if (clearOnTrimMemory) {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public void onConfigurationChanged(final Configuration configuration) {
+    }
+
+    boolean isClearedOnTrimMemory() {
+        return clearOnTrimMemory;
+    }
+
+    synchronized Object get(final String key,
+                            final String encryptedValue) {
+        final CachedValue cachedValue = entries.get(key);
+        if (cachedValue == null || !cachedValue.encryptedValue.equals(encryptedValue)) {
+            return null;
+        }
+
+        return cachedValue.getDecryptedValue();
+    }
+
+    synchronized void put(final String key,
+                          final String encryptedValue,
+                          final Object decryptedValue) {
+        final CachedValue previousValue = entries.put(key, new CachedValue(encryptedValue, decryptedValue));
+        if (previousValue != null) {
+            previousValue.clear();
+        }
+    }
+
+    private static final class CachedValue {
+
+        private final String encryptedValue;
+        private final Object decryptedValue;
+        private final char[] decryptedString;
+
+        private CachedValue(final String encryptedValue,
+                            final Object decryptedValue) {
+            this.encryptedValue = encryptedValue;
+            if (decryptedValue instanceof String) {
+                this.decryptedValue = null;
+                this.decryptedString = ((String) decryptedValue).toCharArray();
+            } else {
+                this.decryptedValue = decryptedValue;
+                this.decryptedString = null;
+            }
+        }
+
+        private Object getDecryptedValue() {
+            return decryptedString != null ? new String(decryptedString) : decryptedValue;
+        }
+
+        private void clear() {
+            if (decryptedString != null) {
+                Arrays.fill(decryptedString, '\0');
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+final class Histogram {
+
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MIN_EXPONENT = 4;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - MIN_EXPONENT) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(final long value) {
+        final long clampedValue = Math.max(value, 0L);
+        buckets.incrementAndGet(bucketIndex(clampedValue));
+        count.incrementAndGet();
+        sum.addAndGet(clampedValue);
+
+        long currentMax;
+        while ((currentMax = max.get()) < clampedValue && !max.compareAndSet(currentMax, clampedValue)) {
+            // Retry until this value is recorded or a larger one wins.
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getSum() {
+        return sum.get();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    // Returns the upper bound of the bucket holding the percentile, within 1/8 of the true value.
+    long getPercentile(final double percentile) {
+        final long total = count.get();
+        if (total == 0) {
+            return 0L;
+        }
+
+        final long rank = Math.max(1L, (long) Math.ceil(percentile / 100D * total));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += buckets.get(i);
+            if (cumulative >= rank) {
+                return Math.min(bucketUpperBound(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0L);
+        }
+        count.set(0L);
+        sum.set(0L);
+        max.set(0L);
+    }
+
+    private static int bucketIndex(final long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketUpperBound(final int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+
+        final int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + MIN_EXPONENT;
+        final int subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        final long lowerBound = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,147 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class InMemoryMetricsRecorder implements CryptoMetrics {
+
+    private static final double[] DUMPED_PERCENTILES = { 50D, 90D, 99D };
+
+    private final Histogram[] phaseLatencies = newHistograms(Phase.values().length);
+    private final Histogram[] operationLatencies = newHistograms(Operation.values().length);
+    private final Histogram[] payloadSizes = newHistograms(Operation.values().length);
+    private final AtomicLongArray failureCounts = new AtomicLongArray(Operation.values().length);
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    @Override
+    public void onPhase(final Phase phase,
+                        final long nanos) {
+        phaseLatencies[phase.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void onOperation(final Operation operation,
+                            final long nanos,
+                            final int payloadBytes,
+                            final boolean success) {
+        operationLatencies[operation.ordinal()].record(nanos);
+        payloadSizes[operation.ordinal()].record(payloadBytes);
+        if (!success) {
+            failureCounts.incrementAndGet(operation.ordinal());
+        }
+    }
+
+    @Override
+    public void onCacheLookup(final boolean hit) {
+        (hit ? cacheHits : cacheMisses).incrementAndGet();
+    }
+
+    public long getPhaseCount(final Phase phase) {
+        return phaseLatencies[phase.ordinal()].getCount();
+    }
+
+    public long getPhasePercentileNanos(final Phase phase,
+                                        final double percentile) {
+        return phaseLatencies[phase.ordinal()].getPercentile(percentile);
+    }
+
+    public long getOperationCount(final Operation operation) {
+        return operationLatencies[operation.ordinal()].getCount();
+    }
+
+    public long getOperationPercentileNanos(final Operation operation,
+                                            final double percentile) {
+        return operationLatencies[operation.ordinal()].getPercentile(percentile);
+    }
+
+    public long getPayloadSizePercentile(final Operation operation,
+                                         final double percentile) {
+        return payloadSizes[operation.ordinal()].getPercentile(percentile);
+    }
+
+    public long getTotalPayloadBytes(final Operation operation) {
+        return payloadSizes[operation.ordinal()].getSum();
+    }
+
+    public long getFailureCount(final Operation operation) {
+        return failureCounts.get(operation.ordinal());
+    }
+
+    public long getCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMissCount() {
+        return cacheMisses.get();
+    }
+
+    public double getCacheHitRate() {
+        final long hits = cacheHits.get();
+        final long lookups = hits + cacheMisses.get();
+        return lookups > 0 ? (double) hits / lookups : 0D;
+    }
+
+    public void reset() {
+        for (final Histogram histogram : phaseLatencies) {
+            histogram.reset();
+        }
+        for (int i = 0; i < operationLatencies.length; i++) {
+            operationLatencies[i].reset();
+            payloadSizes[i].reset();
+            failureCounts.set(i, 0L);
+        }
+        cacheHits.set(0L);
+        cacheMisses.set(0L);
+    }
+
+    public String dump() {
+        final StringBuilder builder = new StringBuilder();
+        for (final Phase phase : Phase.values()) {
+            appendLatencies(builder, "phase " + phase, phaseLatencies[phase.ordinal()]);
+        }
+        for (final Operation operation : Operation.values()) {
+            final Histogram latencies = operationLatencies[operation.ordinal()];
+            appendLatencies(builder, "operation " + operation, latencies);
+            if (latencies.getCount() > 0) {
+                final Histogram sizes = payloadSizes[operation.ordinal()];
+                builder.append(String.format(Locale.US,
+                                             "  failures=%d payload p50=%dB p99=%dB total=%dB%n",
+                                             failureCounts.get(operation.ordinal()),
+                                             sizes.getPercentile(50D),
+                                             sizes.getPercentile(99D),
+                                             sizes.getSum()));
+            }
+        }
+        builder.append(String.format(Locale.US,
+                                     "cache hits=%d misses=%d rate=%.3f%n",
+                                     cacheHits.get(),
+                                     cacheMisses.get(),
+                                     getCacheHitRate()));
+        return builder.toString();
+    }
+
+    private static void appendLatencies(final StringBuilder builder,
+                                        final String name,
+                                        final Histogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+
+        builder.append(String.format(Locale.US, "%s count=%d", name, histogram.getCount()));
+        for (final double percentile : DUMPED_PERCENTILES) {
+            builder.append(String.format(Locale.US, " p%.0f=%dus", percentile, histogram.getPercentile(percentile) / 1000));
+        }
+        builder.append(String.format(Locale.US, " max=%dus%n", histogram.getMax() / 1000));
+    }
+
+    private static Histogram[] newHistograms(final int count) {
+        final Histogram[] histograms = new Histogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new Histogram();
+        }
+
+        return histograms;
+    }
+}
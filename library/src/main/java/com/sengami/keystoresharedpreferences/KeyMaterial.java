@@ -0,0 +1,130 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.util.Calendar;
+import java.util.Date;
+
+import javax.crypto.Cipher;
+
+abstract class KeyMaterial implements CryptoBackend {
+
+    private final ThreadLocal<InitializedCipher> encryptingCiphers = new ThreadLocal<>();
+    private final ThreadLocal<InitializedCipher> decryptingCiphers = new ThreadLocal<>();
+    private volatile KeyStore.PrivateKeyEntry entry;
+
+    @Override
+    public Cipher getEncryptingCipher() throws GeneralSecurityException,
+                                               IOException {
+        try {
+            return getCipher(encryptingCiphers, Cipher.ENCRYPT_MODE);
+        } catch (final InvalidKeyException e) {
+            invalidate();
+            return getCipher(encryptingCiphers, Cipher.ENCRYPT_MODE);
+        }
+    }
+
+    @Override
+    public Cipher getDecryptingCipher() throws GeneralSecurityException,
+                                               IOException {
+        try {
+            return getCipher(decryptingCiphers, Cipher.DECRYPT_MODE);
+        } catch (final InvalidKeyException e) {
+            invalidate();
+            return getCipher(decryptingCiphers, Cipher.DECRYPT_MODE);
+        }
+    }
+
+    @Override
+    public synchronized void invalidate() {
+        entry = null;
+    }
+
+    @Override
+    public void handleFailure(final Throwable throwable) {
+        encryptingCiphers.remove();
+        decryptingCiphers.remove();
+        if (isKeyFailure(throwable)) {
+            invalidate();
+        }
+    }
+
+    private static boolean isKeyFailure(final Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InvalidKeyException || cause instanceof KeyStoreException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private Cipher getCipher(final ThreadLocal<InitializedCipher> ciphers,
+                             final int mode) throws GeneralSecurityException,
+                                                    IOException {
+        final KeyStore.PrivateKeyEntry currentEntry = getEntry();
+        final InitializedCipher initializedCipher = ciphers.get();
+        if (initializedCipher != null && initializedCipher.entry == currentEntry) {
+            return initializedCipher.cipher;
+        }
+
+        final CryptoMetrics metrics = Metrics.getRecorder();
+        final long start = Metrics.start(metrics);
+        final Cipher cipher = initializedCipher != null ? initializedCipher.cipher : newCipher();
+        if (mode == Cipher.ENCRYPT_MODE) {
+            cipher.init(mode, currentEntry.getCertificate().getPublicKey());
+        } else {
+            cipher.init(mode, currentEntry.getPrivateKey());
+        }
+        Metrics.phase(metrics, CryptoMetrics.Phase.CIPHER_INIT, start);
+        ciphers.set(new InitializedCipher(cipher, currentEntry));
+        return cipher;
+    }
+
+    private KeyStore.PrivateKeyEntry getEntry() throws GeneralSecurityException,
+                                                       IOException {
+        final KeyStore.PrivateKeyEntry currentEntry = entry;
+        if (currentEntry != null) {
+            return currentEntry;
+        }
+
+        synchronized (this) {
+            if (entry == null) {
+                entry = loadEntry();
+            }
+
+            return entry;
+        }
+    }
+
+    abstract KeyStore.PrivateKeyEntry loadEntry() throws GeneralSecurityException,
+                                                         IOException;
+
+    abstract Cipher newCipher() throws GeneralSecurityException;
+
+    static Date getCertificateStartDate() {
+        final Calendar start = Calendar.getInstance();
+        return start.getTime();
+    }
+
+    static Date getCertificateEndDate() {
+        final Calendar end = Calendar.getInstance();
+        end.add(Calendar.YEAR, Constants.KEYSTORE_CERTIFICATE_VALIDITY_YEARS);
+        return end.getTime();
+    }
+
+    private static final class InitializedCipher {
+
+        private final Cipher cipher;
+        private final KeyStore.PrivateKeyEntry entry;
+
+        private InitializedCipher(final Cipher cipher,
+                                  final KeyStore.PrivateKeyEntry entry) {
+            this.cipher = cipher;
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+final class KeyNames {
+
+    private final CryptoBackend backend;
+    private final SharedPreferences sharedPreferences;
+    private final ConcurrentMap<String, String> storedKeys = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> names = new ConcurrentHashMap<>();
+    private final ThreadLocal<KeyedMac> macs = new ThreadLocal<>();
+    private volatile SecretKey nameKey;
+
+    KeyNames(final CryptoBackend backend,
+             final SharedPreferences sharedPreferences) {
+        this.backend = backend;
+        this.sharedPreferences = sharedPreferences;
+    }
+
+    String getStoredKey(final String name) {
+        if (name == null) {
+            return null;
+        }
+
+        final String cachedStoredKey = storedKeys.get(name);
+        if (cachedStoredKey != null) {
+            return cachedStoredKey;
+        }
+
+        try {
+            final byte[] digest = getMac().doFinal(name.getBytes(Constants.CHARSET));
+            final String storedKey = Base64Codec.encode(digest, 0, digest.length, false);
+            storedKeys.put(name, storedKey);
+            names.put(storedKey, name);
+            return storedKey;
+        } catch (final Exception e) {
+            KeyStoreProxy.logError("Error hashing key", e);
+            return null;
+        }
+    }
+
+    // Only names hashed by this process are known; anything else is returned as stored.
+    String getName(final String storedKey) {
+        final String name = storedKey != null ? names.get(storedKey) : null;
+        return name != null ? name : storedKey;
+    }
+
+    SecretKey getNameKey() throws GeneralSecurityException,
+                                  IOException {
+        final SecretKey currentNameKey = nameKey;
+        if (currentNameKey != null) {
+            return currentNameKey;
+        }
+
+        synchronized (this) {
+            if (nameKey == null) {
+                nameKey = DataKeyProxy.deriveNameKey(backend, sharedPreferences, Constants.NAME_KEY_LABEL);
+            }
+
+            return nameKey;
+        }
+    }
+
+    // Forgets the name key after the store has been reset with a new data key.
+    synchronized void reset() {
+        nameKey = null;
+        storedKeys.clear();
+        names.clear();
+    }
+
+    private Mac getMac() throws GeneralSecurityException,
+                                IOException {
+        final SecretKey currentNameKey = getNameKey();
+        // Each thread keeps its Mac together with the key it was initialised with, so a reset is noticed.
+        final KeyedMac keyedMac = macs.get();
+        if (keyedMac != null && keyedMac.key == currentNameKey) {
+            return keyedMac.mac;
+        }
+
+        final Mac mac = Mac.getInstance(Constants.NAME_KEY_ALGORITHM);
+        mac.init(currentNameKey);
+        macs.set(new KeyedMac(currentNameKey, mac));
+        return mac;
+    }
+
+    private static final class KeyedMac {
+
+        private final SecretKey key;
+        private final Mac mac;
+
+        private KeyedMac(final SecretKey key,
+                         final Mac mac) {
+            this.key = key;
+            this.mac = mac;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+public final class KeyRotation {
+
+    private static final String CHECKPOINT_SEPARATOR = ":";
+
+    private final CryptoBackend backend;
+    private final SharedPreferences sharedPreferences;
+    private final WriteQueue writeQueue;
+    private final Executor executor;
+    private final int chunkSize;
+    private final int compressionThreshold;
+    private final int version;
+    private final List<String> keys;
+    private final int previouslyProcessedCount;
+    private final long startNanos = System.nanoTime();
+    private final List<ValueCallback<KeyRotation>> progressCallbacks = new CopyOnWriteArrayList<>();
+    private final AsyncValue<Boolean> result = new AsyncValue<>(new AsyncValue.Converter<Boolean>() {
+        @Override
+        public Boolean convert(final Object completed) {
+            return Boolean.TRUE.equals(completed);
+        }
+    });
+    private final Runnable task = new Runnable() {
+        @Override
+        public void run() {
+            runChunks();
+        }
+    };
+    private volatile int nextIndex;
+    private volatile int reencryptedCount;
+    private volatile int failedCount;
+
+    private KeyRotation(final CryptoBackend backend,
+                        final SharedPreferences sharedPreferences,
+                        final WriteQueue writeQueue,
+                        final Executor executor,
+                        final int chunkSize,
+                        final int compressionThreshold,
+                        final String checkpoint) {
+        this.backend = backend;
+        this.sharedPreferences = sharedPreferences;
+        this.writeQueue = writeQueue;
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+        this.compressionThreshold = compressionThreshold;
+
+        final String[] parts = checkpoint.split(CHECKPOINT_SEPARATOR, 3);
+        this.version = Integer.parseInt(parts[0]);
+        this.previouslyProcessedCount = parts.length == 3 ? Integer.parseInt(parts[1]) : 0;
+        final String cursor = parts.length == 3 ? parts[2] : null;
+
+        // Keys written after this point are already encrypted with the new version.
+        final TreeSet<String> sortedKeys = new TreeSet<>();
+        for (final String key : sharedPreferences.getAll().keySet()) {
+            if (!DataKeyProxy.isInternalPreference(key) && (cursor == null || key.compareTo(cursor) > 0)) {
+                sortedKeys.add(key);
+            }
+        }
+        this.keys = new ArrayList<>(sortedKeys);
+    }
+
+    static KeyRotation start(final CryptoBackend backend,
+                             final SharedPreferences sharedPreferences,
+                             final WriteQueue writeQueue,
+                             final Executor executor,
+                             final int compressionThreshold) {
+        if (sharedPreferences.getString(Constants.DATA_KEY_ROTATION_PREFERENCE, null) == null) {
+            try {
+                DataKeyProxy.rotateDataKey(backend, sharedPreferences);
+            } catch (final Exception e) {
+                KeyStoreProxy.logError("Error rotating data key", e);
+                return null;
+            }
+        }
+
+        return resume(backend, sharedPreferences, writeQueue, executor, compressionThreshold);
+    }
+
+    static KeyRotation resume(final CryptoBackend backend,
+                              final SharedPreferences sharedPreferences,
+                              final WriteQueue writeQueue,
+                              final Executor executor,
+                              final int compressionThreshold) {
+        final String checkpoint = sharedPreferences.getString(Constants.DATA_KEY_ROTATION_PREFERENCE, null);
+        if (checkpoint == null) {
+            return null;
+        }
+
+        final KeyRotation rotation = new KeyRotation(backend, sharedPreferences, writeQueue, executor, Constants.KEY_ROTATION_CHUNK_SIZE, compressionThreshold, checkpoint);
+        if (!rotation.schedule()) {
+            rotation.runChunks();
+        }
+        return rotation;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getProcessedCount() {
+        return previouslyProcessedCount + nextIndex;
+    }
+
+    public int getRemainingCount() {
+        return keys.size() - nextIndex;
+    }
+
+    public int getReencryptedCount() {
+        return reencryptedCount;
+    }
+
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    public double getEntriesPerSecond() {
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        return elapsedNanos > 0 ? nextIndex * 1e9D / elapsedNanos : 0D;
+    }
+
+    public boolean isFinished() {
+        return result.isDone();
+    }
+
+    public AsyncValue<Boolean> getResult() {
+        return result;
+    }
+
+    public KeyRotation addProgressCallback(final ValueCallback<KeyRotation> callback) {
+        progressCallbacks.add(callback);
+        return this;
+    }
+
+    private void runChunks() {
+        try {
+            while (runChunk()) {
+                if (schedule()) {
+                    return;
+                }
+            }
+        } catch (final RuntimeException e) {
+            KeyStoreProxy.logError("Error rotating data key", e);
+            result.complete(false);
+        }
+    }
+
+    private boolean schedule() {
+        if (executor == null) {
+            return false;
+        }
+
+        try {
+            executor.execute(task);
+            return true;
+        } catch (final RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private boolean runChunk() {
+        // A newer rotation has taken over and re-encrypts everything this one would have.
+        if (DataKeyProxy.getCurrentVersion(sharedPreferences) != version) {
+            result.complete(false);
+            return false;
+        }
+
+        final int start = nextIndex;
+        final int end = Math.min(start + chunkSize, keys.size());
+        final Map<String, Object> oldValues = new HashMap<>();
+        final Map<String, Object> newValues = new HashMap<>();
+        int failures = 0;
+        for (int i = start; i < end; i++) {
+            final String key = keys.get(i);
+            final Object encryptedValue = getEncryptedValue(key);
+            if (encryptedValue == null || isCurrent(encryptedValue)) {
+                continue;
+            }
+
+            final Object reencryptedValue = reencrypt(encryptedValue);
+            if (reencryptedValue == null) {
+                failures++;
+            } else {
+                oldValues.put(key, encryptedValue);
+                newValues.put(key, reencryptedValue);
+            }
+        }
+
+        final boolean last = end == keys.size();
+        final String checkpoint = version + CHECKPOINT_SEPARATOR + (previouslyProcessedCount + end) + CHECKPOINT_SEPARATOR + (end > 0 ? keys.get(end - 1) : "");
+        final int[] written = new int[1];
+        final boolean[] saved = new boolean[1];
+        writeQueue.runExclusively(new Runnable() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run() {
+                final SharedPreferences.Editor editor = sharedPreferences.edit();
+                for (final Map.Entry<String, Object> entry : newValues.entrySet()) {
+                    // Foreground writes win; an entry changed since it was read already uses the new version.
+                    if (!oldValues.get(entry.getKey()).equals(getEncryptedValue(entry.getKey()))) {
+                        continue;
+                    }
+
+                    if (entry.getValue() instanceof Set) {
+                        editor.putStringSet(entry.getKey(), (Set<String>) entry.getValue());
+                    } else {
+                        editor.putString(entry.getKey(), (String) entry.getValue());
+                    }
+                    written[0]++;
+                }
+
+                if (last) {
+                    editor.remove(Constants.DATA_KEY_ROTATION_PREFERENCE);
+                } else {
+                    editor.putString(Constants.DATA_KEY_ROTATION_PREFERENCE, checkpoint);
+                }
+                saved[0] = editor.commit();
+            }
+        });
+
+        if (!saved[0]) {
+            // The checkpoint still points at the last saved chunk, so a later resume picks up from there.
+            KeyStoreProxy.logError("Error saving key rotation checkpoint", null);
+            result.complete(false);
+            return false;
+        }
+
+        nextIndex = end;
+        reencryptedCount += written[0];
+        failedCount += failures;
+        for (final ValueCallback<KeyRotation> callback : progressCallbacks) {
+            callback.onValue(this);
+        }
+
+        if (last) {
+            result.complete(true);
+            return false;
+        }
+        return true;
+    }
+
+    private Object getEncryptedValue(final String key) {
+        try {
+            return sharedPreferences.getString(key, null);
+        } catch (final ClassCastException e) {
+            return sharedPreferences.getStringSet(key, null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean isCurrent(final Object encryptedValue) {
+        if (!(encryptedValue instanceof Set)) {
+            return DataKeyProxy.getVersion((String) encryptedValue) == version;
+        }
+
+        for (final String setValue : (Set<String>) encryptedValue) {
+            if (DataKeyProxy.getVersion(setValue) != version) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object reencrypt(final Object encryptedValue) {
+        if (!(encryptedValue instanceof Set)) {
+            return reencryptValue((String) encryptedValue);
+        }
+
+        final Set<String> reencryptedValues = new HashSet<>();
+        for (final String setValue : (Set<String>) encryptedValue) {
+            final String reencryptedValue = reencryptValue(setValue);
+            if (reencryptedValue == null) {
+                return null;
+            }
+            reencryptedValues.add(reencryptedValue);
+        }
+
+        return reencryptedValues;
+    }
+
+    private String reencryptValue(final String encryptedValue) {
+        final Object decryptedValue = DataKeyProxy.decryptValue(backend, sharedPreferences, encryptedValue);
+        // A failed decryption hands back the ciphertext, a failed encryption null.
+        if (decryptedValue == encryptedValue) {
+            return null;
+        }
+
+        final String reencryptedValue = DataKeyProxy.encryptValue(backend, sharedPreferences, decryptedValue, compressionThreshold);
+        return DataKeyProxy.getVersion(reencryptedValue) == version ? reencryptedValue : null;
+    }
+}
@@ -1,209 +1,144 @@
 package com.sengami.keystoresharedpreferences;
 
 import android.content.Context;
-import android.security.KeyPairGeneratorSpec;
-import android.util.Base64;
 import android.util.Log;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.PrivateKey;
-import java.security.PublicKey;
-import java.security.UnrecoverableEntryException;
-import java.security.cert.CertificateException;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
-import javax.crypto.NoSuchPaddingException;
-import javax.security.auth.x500.X500Principal;
 
 public final class KeyStoreProxy {
 
-    public static String encryptString(final Context context,
-                                       final String value) {
-        try {
-            final KeyStore keyStore = getKeyStore();
-            final KeyStore.PrivateKeyEntry entry = getKeyStoreEntry(context, keyStore);
-            final PublicKey publicKey = getPublicKey(entry);
-            final Cipher encryptingCipher = getEncryptingCipher(publicKey);
-            final ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
-            final CipherOutputStream cipherOutputStream = getEncryptingStream(encryptingCipher, byteOutput);
-            cipherOutputStream.write(value.getBytes(Constants.KEYSTORE_CHARSET));
-            cipherOutputStream.close();
-            return Base64.encodeToString(byteOutput.toByteArray(), Base64.DEFAULT);
-        } catch (final Exception e) {
-            logError("Error encrypting value: " + value, e);
-            return value;
-        }
-    }
-
-    public static String decryptString(final Context context,
-                                       final String value) {
-        try {
-            final KeyStore keyStore = getKeyStore();
-            final KeyStore.PrivateKeyEntry entry = getKeyStoreEntry(context, keyStore);
-            final PrivateKey privateKey = getPrivateKey(entry);
-            final Cipher decryptingCipher = getDecryptingCipher(privateKey);
-            final CipherInputStream cipherInputStream = getDecryptingStream(decryptingCipher, value);
-            byte[] bytes = getDecryptedByteArray(cipherInputStream);
-            return new String(bytes, 0, bytes.length, Constants.KEYSTORE_CHARSET);
-        } catch (final Exception e) {
-            logError("Error decrypting value: " + value, e);
-            return value;
-        }
-    }
+    private static final ConcurrentMap<String, CryptoBackend> BACKENDS = new ConcurrentHashMap<>();
 
-    private static KeyStore getKeyStore() throws CertificateException,
-                                                 NoSuchAlgorithmException,
-                                                 IOException,
-                                                 KeyStoreException {
-        final KeyStore keyStore = KeyStore.getInstance(Constants.KEYSTORE_NAME);
-        keyStore.load(null);
-        return keyStore;
+    public static CryptoBackend getDefaultBackend(final Context context) {
+        return getBackend(context, Constants.KEYSTORE_ALIAS);
     }
 
-    private static KeyStore.PrivateKeyEntry getKeyStoreEntry(final Context context,
-                                                      final KeyStore keyStore) throws UnrecoverableEntryException,
-                                                                                      NoSuchAlgorithmException,
-                                                                                      InvalidAlgorithmParameterException,
-                                                                                      KeyStoreException,
-                                                                                      NoSuchProviderException {
-        if (!keyStore.containsAlias(Constants.KEYSTORE_ALIAS)) {
-            createNewKeyPair(context);
+    // One backend per alias for the whole process, so stores sharing an alias share its key entry and ciphers.
+    public static CryptoBackend getBackend(final Context context,
+                                           final String alias) {
+        final CryptoBackend backend = BACKENDS.get(alias);
+        if (backend != null) {
+            return backend;
         }
 
-        return getExistingKeyStoreEntry(keyStore);
-    }
-
-    private static KeyStore.PrivateKeyEntry getExistingKeyStoreEntry(final KeyStore keyStore) throws UnrecoverableEntryException,
-                                                                                                     NoSuchAlgorithmException,
-                                                                                                     KeyStoreException {
-        return (KeyStore.PrivateKeyEntry) keyStore.getEntry(Constants.KEYSTORE_ALIAS, null);
-    }
-
-    private static void createNewKeyPair(final Context context) throws NoSuchAlgorithmException,
-                                                                       InvalidAlgorithmParameterException,
-                                                                       NoSuchProviderException {
-        final KeyPairGenerator generator = getKeyPairGenerator();
-        final KeyPairGeneratorSpec spec = getKeyPairGeneratorSpec(context);
-        generator.initialize(spec);
-        generator.generateKeyPair();
-    }
-
-    private static KeyPairGenerator getKeyPairGenerator() throws NoSuchProviderException,
-                                                                 NoSuchAlgorithmException {
-        return KeyPairGenerator.getInstance(Constants.KEYSTORE_ALGORITHM, Constants.KEYSTORE_NAME);
-    }
-
-    private static KeyPairGeneratorSpec getKeyPairGeneratorSpec(final Context context) {
-        return new KeyPairGeneratorSpec.Builder(context)
-                .setAlias(Constants.KEYSTORE_ALIAS)
-                .setSubject(new X500Principal(Constants.KEYSTORE_CERTIFICATE_SUBJECT))
-                .setSerialNumber(BigInteger.ONE)
-                .setStartDate(getCertificateStartDate())
-                .setEndDate(getCertificateEndDate())
-                .build();
-    }
-
-    private static Date getCertificateStartDate() {
-        final Calendar start = Calendar.getInstance();
-        return start.getTime();
-    }
+        synchronized (BACKENDS) {
+            if (!BACKENDS.containsKey(alias)) {
+                final Context applicationContext = context.getApplicationContext();
+                BACKENDS.put(alias, new AndroidKeyStoreBackend(applicationContext != null ? applicationContext : context, alias));
+            }
 
-    private static Date getCertificateEndDate() {
-        final Calendar end = Calendar.getInstance();
-        end.add(Calendar.YEAR, Constants.KEYSTORE_CERTIFICATE_VALIDITY_YEARS);
-        return end.getTime();
-    }
-
-    private static PublicKey getPublicKey(final KeyStore.PrivateKeyEntry entry) {
-        return entry.getCertificate().getPublicKey();
-    }
-
-    private static PrivateKey getPrivateKey(final KeyStore.PrivateKeyEntry entry) {
-        return entry.getPrivateKey();
+            return BACKENDS.get(alias);
+        }
     }
 
-    private static Cipher getEncryptingCipher(final PublicKey publicKey) throws NoSuchPaddingException,
-                                                                                NoSuchAlgorithmException,
-                                                                                NoSuchProviderException,
-                                                                                InvalidKeyException {
-        final Cipher cipher = getCipher();
-        cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-        return cipher;
+    public static String encryptString(final Context context,
+                                       final String value) {
+        return encryptString(getDefaultBackend(context), value);
     }
 
-    private static Cipher getDecryptingCipher(final PrivateKey privateKey) throws NoSuchPaddingException,
-                                                                                  NoSuchAlgorithmException,
-                                                                                  NoSuchProviderException,
-                                                                                  InvalidKeyException {
-        final Cipher cipher = getCipher();
-        cipher.init(Cipher.DECRYPT_MODE, privateKey);
-        return cipher;
+    public static String decryptString(final Context context,
+                                       final String value) {
+        return decryptString(getDefaultBackend(context), value);
     }
 
-    private static Cipher getCipher() throws NoSuchPaddingException,
-                                             NoSuchAlgorithmException,
-                                             NoSuchProviderException {
-        return Cipher.getInstance(Constants.KEYSTORE_TRANSFORMATION, Constants.KEYSTORE_PROVIDER);
+    public static String encryptString(final CryptoBackend backend,
+                                       final String value) {
+        final CryptoMetrics metrics = Metrics.getRecorder();
+        final long start = Metrics.start(metrics);
+        try {
+            final Cipher encryptingCipher = backend.getEncryptingCipher();
+            long time = Metrics.start(metrics);
+            final byte[] bytes = value.getBytes(Constants.CHARSET);
+            final byte[] encryptedBytes = Buffers.get(encryptingCipher.getOutputSize(bytes.length));
+            time = Metrics.phase(metrics, CryptoMetrics.Phase.CODEC, time);
+            final int length = encryptingCipher.doFinal(bytes, 0, bytes.length, encryptedBytes, 0);
+            time = Metrics.phase(metrics, CryptoMetrics.Phase.DO_FINAL, time);
+            final String encryptedValue = Base64Codec.encode(encryptedBytes, 0, length, true);
+            Buffers.clear(encryptedBytes, length);
+            Metrics.phase(metrics, CryptoMetrics.Phase.CODEC, time);
+            Metrics.operation(metrics, CryptoMetrics.Operation.RSA_ENCRYPT, start, length, true);
+            return encryptedValue;
+        } catch (final Exception e) {
+            Metrics.operation(metrics, CryptoMetrics.Operation.RSA_ENCRYPT, start, 0, false);
+            backend.handleFailure(e);
+            logError("Error encrypting value", e);
+            return value;
+        }
     }
 
-    private static CipherOutputStream getEncryptingStream(final Cipher encryptingCipher,
-                                                          final ByteArrayOutputStream byteOutput) {
-        return new CipherOutputStream(byteOutput, encryptingCipher);
+    public static String decryptString(final CryptoBackend backend,
+                                       final String value) {
+        final CryptoMetrics metrics = Metrics.getRecorder();
+        final long start = Metrics.start(metrics);
+        int payloadBytes = 0;
+        try {
+            final Cipher decryptingCipher = backend.getDecryptingCipher();
+            long time = Metrics.start(metrics);
+            final byte[] encryptedBytes = Base64Codec.decode(value, 0);
+            payloadBytes = encryptedBytes.length;
+            final int outputSize = decryptingCipher.getOutputSize(encryptedBytes.length);
+            final byte[] bytes = Buffers.get(outputSize);
+            time = Metrics.phase(metrics, CryptoMetrics.Phase.CODEC, time);
+            final String decryptedValue;
+            try {
+                final int length = decryptingCipher.doFinal(encryptedBytes, 0, encryptedBytes.length, bytes, 0);
+                time = Metrics.phase(metrics, CryptoMetrics.Phase.DO_FINAL, time);
+                decryptedValue = new String(bytes, 0, length, Constants.CHARSET);
+            } finally {
+                Buffers.clear(bytes, outputSize);
+            }
+            Metrics.phase(metrics, CryptoMetrics.Phase.CODEC, time);
+            Metrics.operation(metrics, CryptoMetrics.Operation.RSA_DECRYPT, start, payloadBytes, true);
+            return decryptedValue;
+        } catch (final Exception e) {
+            Metrics.operation(metrics, CryptoMetrics.Operation.RSA_DECRYPT, start, payloadBytes, false);
+            backend.handleFailure(e);
+            logError("Error decrypting value", e);
+            return value;
+        }
     }
 
-    private static CipherInputStream getDecryptingStream(final Cipher decryptingCipher,
-                                                         final String value) {
-        final ByteArrayInputStream byteInput = new ByteArrayInputStream(Base64.decode(value, Base64.DEFAULT));
-        return new CipherInputStream(byteInput, decryptingCipher);
+    static byte[] encryptBytes(final CryptoBackend backend,
+                               final byte[] bytes) throws GeneralSecurityException,
+                                                          IOException {
+        return doFinal(backend, bytes, CryptoMetrics.Operation.RSA_ENCRYPT);
     }
 
-    private static byte[] getDecryptedByteArray(final CipherInputStream decryptingStream) throws IOException {
-        final List<Byte> byteList = getByteListFromInputStream(decryptingStream);
-        return toByteArray(byteList);
+    static byte[] decryptBytes(final CryptoBackend backend,
+                               final byte[] bytes) throws GeneralSecurityException,
+                                                          IOException {
+        return doFinal(backend, bytes, CryptoMetrics.Operation.RSA_DECRYPT);
     }
 
-    private static List<Byte> getByteListFromInputStream(final InputStream inputStream) throws IOException {
-        final List<Byte> bytes = new ArrayList<>();
-        int nextByte;
-
-        while ((nextByte = inputStream.read()) != -1) {
-            bytes.add((byte) nextByte);
+    private static byte[] doFinal(final CryptoBackend backend,
+                                  final byte[] bytes,
+                                  final CryptoMetrics.Operation operation) throws GeneralSecurityException,
+                                                                                  IOException {
+        final CryptoMetrics metrics = Metrics.getRecorder();
+        final long start = Metrics.start(metrics);
+        boolean success = false;
+        try {
+            final Cipher cipher = operation == CryptoMetrics.Operation.RSA_ENCRYPT ? backend.getEncryptingCipher() : backend.getDecryptingCipher();
+            final long time = Metrics.start(metrics);
+            final byte[] result = cipher.doFinal(bytes);
+            Metrics.phase(metrics, CryptoMetrics.Phase.DO_FINAL, time);
+            success = true;
+            return result;
+        } catch (final GeneralSecurityException e) {
+            backend.handleFailure(e);
+            throw e;
+        } finally {
+            Metrics.operation(metrics, operation, start, bytes.length, success);
         }
-
-        return bytes;
     }
 
-    private static byte[] toByteArray(final List<Byte> byteList) {
-        byte[] bytes = new byte[byteList.size()];
-        for(int i = 0; i < bytes.length; i++) {
-            bytes[i] = byteList.get(i);
-        }
-
-        return bytes;
-    }
-    
-    private static void logError(final String message,
+    static void logError(final String message,
                           final Throwable throwable) {
         Log.e(Constants.TAG, message, throwable);
     }
-}
\ No newline at end of file
+}
@@ -3,116 +3,955 @@ package com.sengami.keystoresharedpreferences;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public final class KeystoreSharedPreferences implements SharedPreferences {
 
-    private final Context context;
+    private final CryptoBackend backend;
     private final SharedPreferences sharedPreferences;
+    private final DecryptedValueCache cache;
+    private final Executor executor;
+    private final Executor asyncReadExecutor;
+    private final WriteQueue writeQueue;
+    private final ConcurrentMap<String, LazyValue> handles;
+    private final ConcurrentMap<String, LazyValue> prefetches = new ConcurrentHashMap<>();
+    private final AsyncReads valueReads;
+    private final AsyncReads allReads;
+    private final KeyNames keyNames;
+    private final int compressionThreshold;
+    private final StreamFiles streamFiles;
+    private final CorruptionPolicy corruptionPolicy;
+    private final Quarantine quarantine = new Quarantine();
+    private final ChangeTracker changeTracker = new ChangeTracker();
+    private final Map<OnSharedPreferenceChangeListener, OnSharedPreferenceChangeListener> namedListeners = new HashMap<>();
+    private final LazyValue.Decrypter decrypter = new LazyValue.Decrypter() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object decrypt(final String key,
+                              final Object encryptedValue) {
+            return encryptedValue instanceof Set ? NamedValue.unwrap(decryptSet(key, (Set<String>) encryptedValue, executor)) : decryptValue(key, (String) encryptedValue);
+        }
+    };
+    private final OnSharedPreferenceChangeListener handleInvalidator = new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences,
+                                              final String key) {
+            if (key == null) {
+                handles.clear();
+            } else {
+                handles.remove(key);
+            }
+        }
+    };
+    private KeyRotation keyRotation;
 
     public KeystoreSharedPreferences(final Context context,
                                      final SharedPreferences sharedPreferences) {
-        this.context = context;
+        this(new Builder(context, sharedPreferences), KeyStoreProxy.getDefaultBackend(context), sharedPreferences);
+    }
+
+    private KeystoreSharedPreferences(final Builder builder,
+                                      final CryptoBackend backend,
+                                      final SharedPreferences sharedPreferences) {
+        this.backend = backend;
         this.sharedPreferences = sharedPreferences;
+        this.cache = builder.cache;
+        this.executor = builder.executor;
+        this.asyncReadExecutor = builder.asyncReadExecutor;
+        this.writeQueue = new WriteQueue(executor, new Runnable() {
+            @Override
+            public void run() {
+                changeTracker.deliver();
+            }
+        });
+        this.handles = builder.lazyDecryption ? new ConcurrentHashMap<String, LazyValue>() : null;
+        this.keyNames = builder.hashedKeys ? new KeyNames(backend, sharedPreferences) : null;
+        this.compressionThreshold = builder.compressionThreshold;
+        this.streamFiles = builder.streamDirectory != null ? new StreamFiles(builder.streamDirectory, Constants.STREAM_CHUNK_SIZE_BYTES, backend, sharedPreferences) : null;
+        this.corruptionPolicy = builder.corruptionPolicy;
+        this.valueReads = new AsyncReads(asyncReadExecutor, new AsyncReads.Loader() {
+            @Override
+            public Object load(final String key) {
+                return decryptAndGetValue(key);
+            }
+        });
+        this.allReads = new AsyncReads(asyncReadExecutor, new AsyncReads.Loader() {
+            @Override
+            public Object load(final String key) {
+                // Lazy handles are resolved here so that async callers never decrypt on their own thread.
+                final Map<String, ?> allValues = getAll();
+                return allValues instanceof LazyDecryptedMap ? new HashMap<>(allValues) : allValues;
+            }
+        });
+
+        if (builder.lazyDecryption) {
+            loadHandles();
+            sharedPreferences.registerOnSharedPreferenceChangeListener(handleInvalidator);
+        }
+
+        if (cache != null) {
+            sharedPreferences.registerOnSharedPreferenceChangeListener(cache);
+            if (cache.isClearedOnTrimMemory()) {
+                builder.context.registerComponentCallbacks(cache);
+            }
+        }
     }
 
     @Override
     public Map<String, ?> getAll() {
-        final Map<String, ?> encryptedValues = sharedPreferences.getAll();
-        if (encryptedValues == null)  {
-            return Collections.emptyMap();
+        final Map<String, Object> encryptedValues = new HashMap<>();
+        final WriteBatch[] pendingBatches = writeQueue.readWithPending(sharedPreferences, encryptedValues);
+        removeInternalPreferences(encryptedValues);
+
+        // Hashed names can only be recovered from the payloads, so that mode always decrypts eagerly.
+        if (handles != null && keyNames == null) {
+            final Iterator<Map.Entry<String, Object>> entries = encryptedValues.entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<String, Object> entry = entries.next();
+                // Left out like the eager path leaves them out, so both modes list the same keys.
+                if (quarantine.contains(entry.getKey(), entry.getValue())) {
+                    entries.remove();
+                } else {
+                    entry.setValue(getHandle(handles, entry.getKey(), entry.getValue()));
+                }
+            }
+
+            WriteQueue.applyPending(encryptedValues, pendingBatches);
+            return new LazyDecryptedMap(encryptedValues);
         }
 
-        final Map<String, String> decryptedValues = new HashMap<>();
-        for (final Map.Entry<String, ?> entry : encryptedValues.entrySet()) {
-            final String decryptedString = KeyStoreProxy.decryptString(context, (String) entry.getValue());
-            decryptedValues.put(entry.getKey(), decryptedString);
+        final List<String> keys = new ArrayList<>(encryptedValues.keySet());
+        final Object[] decryptedObjects = new Object[keys.size()];
+        ParallelTasks.forEachIndex(executor, keys.size(), new ParallelTasks.IndexedTask() {
+            @Override
+            public void run(final int index) {
+                final String key = keys.get(index);
+                decryptedObjects[index] = decryptEntry(key, encryptedValues.get(key));
+            }
+        });
+
+        final Map<String, Object> decryptedValues = new HashMap<>();
+        for (int i = 0; i < decryptedObjects.length; i++) {
+            if (decryptedObjects[i] == null) {
+                // Entries that cannot be decrypted are left out rather than returned as ciphertext.
+                continue;
+            }
+
+            if (decryptedObjects[i] instanceof NamedValue) {
+                final NamedValue namedValue = (NamedValue) decryptedObjects[i];
+                decryptedValues.put(namedValue.name, namedValue.value);
+            } else {
+                decryptedValues.put(keys.get(i), decryptedObjects[i]);
+            }
         }
 
+        WriteQueue.applyPending(decryptedValues, pendingBatches);
+        for (final Map.Entry<String, Object> entry : decryptedValues.entrySet()) {
+            entry.setValue(StreamManifest.withoutKey(entry.getValue()));
+        }
         return decryptedValues;
     }
 
+    public AsyncValue<Map<String, ?>> getAllAsync() {
+        return allReads.read("", new AsyncValue.Converter<Map<String, ?>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Map<String, ?> convert(final Object decryptedValue) {
+                if (decryptedValue == null) {
+                    return new HashMap<String, Object>();
+                }
+
+                // Coalesced callers share one result, so each gets its own copy of a mutable map.
+                return new HashMap<>((Map<String, ?>) decryptedValue);
+            }
+        });
+    }
+
+    public void getAllAsync(final ValueCallback<Map<String, ?>> callback) {
+        getAllAsync().addCallback(callback);
+    }
+
+    public AsyncValue<Boolean> warmUp() {
+        return prefetch(Collections.<String>emptySet());
+    }
+
+    public AsyncValue<Boolean> prefetch(final Set<String> keys) {
+        final AsyncValue<Boolean> result = new AsyncValue<>(new AsyncValue.Converter<Boolean>() {
+            @Override
+            public Boolean convert(final Object warmedUp) {
+                return Boolean.TRUE.equals(warmedUp);
+            }
+        });
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                result.complete(warmUp(keys));
+            }
+        };
+
+        if (asyncReadExecutor == null) {
+            task.run();
+            return result;
+        }
+
+        try {
+            asyncReadExecutor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            task.run();
+        }
+        return result;
+    }
+
+    public boolean putStream(final String key,
+                             final InputStream input) {
+        final String storedKey = getStoredKey(key);
+        if (streamFiles == null || (storedKey == null && keyNames != null)) {
+            KeyStoreProxy.logError("Cannot store stream", null);
+            return false;
+        }
+
+        final StreamManifest manifest;
+        try {
+            manifest = streamFiles.write(storedKey, input);
+        } catch (final Exception e) {
+            KeyStoreProxy.logError("Error writing stream", e);
+            return false;
+        }
+
+        if (!newEditor().putStreamManifest(key, manifest).commit()) {
+            streamFiles.delete(manifest);
+            return false;
+        }
+        return true;
+    }
+
+    public InputStream openStream(final String key) {
+        final Object decryptedValue = decryptAndGetValue(key);
+        if (streamFiles == null || !(decryptedValue instanceof StreamManifest)) {
+            return null;
+        }
+
+        try {
+            return streamFiles.open((StreamManifest) decryptedValue);
+        } catch (final IOException e) {
+            KeyStoreProxy.logError("Error opening stream", e);
+            return null;
+        }
+    }
+
+    // Writes every entry, re-encrypted under a key derived from the passphrase, so it can be imported on another device.
+    // Entries are decrypted one chunk at a time; values stored as streams and entries that cannot be decrypted are left out.
+    public boolean exportTo(final OutputStream output,
+                            final char[] passphrase) {
+        writeQueue.flush();
+        final Map<String, Object> encryptedValues = new HashMap<>(sharedPreferences.getAll());
+        removeInternalPreferences(encryptedValues);
+        final List<String> keys = new ArrayList<>(encryptedValues.keySet());
+
+        try {
+            final StoreBackup.Writer writer = new StoreBackup.Writer(output, passphrase);
+            final Object[] decryptedObjects = new Object[Constants.BACKUP_CHUNK_SIZE];
+            for (int start = 0; start < keys.size(); start += Constants.BACKUP_CHUNK_SIZE) {
+                final int chunkStart = start;
+                final int count = Math.min(Constants.BACKUP_CHUNK_SIZE, keys.size() - start);
+                ParallelTasks.forEachIndex(executor, count, new ParallelTasks.IndexedTask() {
+                    @Override
+                    public void run(final int index) {
+                        final String key = keys.get(chunkStart + index);
+                        decryptedObjects[index] = decryptEntry(key, encryptedValues.get(key));
+                    }
+                });
+
+                for (int i = 0; i < count; i++) {
+                    final Object decryptedObject = decryptedObjects[i];
+                    decryptedObjects[i] = null;
+                    final Object value = NamedValue.unwrap(decryptedObject);
+                    if (value == null || value instanceof StreamManifest) {
+                        continue;
+                    }
+
+                    writer.write(decryptedObject instanceof NamedValue ? ((NamedValue) decryptedObject).name : keys.get(chunkStart + i), value);
+                }
+            }
+
+            writer.finish();
+            return true;
+        } catch (final Exception e) {
+            KeyStoreProxy.logError("Error exporting store", e);
+            return false;
+        }
+    }
+
+    // Entries are committed in chunks as they are read, so a damaged file leaves the ones before the damage imported.
+    public boolean importFrom(final InputStream input,
+                              final char[] passphrase) {
+        try {
+            final StoreBackup.Reader reader = new StoreBackup.Reader(input, passphrase);
+            final KeystoreSharedPreferencesEditor editor = newEditor();
+            int pendingCount = 0;
+            NamedValue record;
+            while ((record = reader.read()) != null) {
+                editor.putDecodedValue(record.name, record.value);
+                if (++pendingCount == Constants.BACKUP_CHUNK_SIZE) {
+                    if (!editor.commit()) {
+                        return false;
+                    }
+                    pendingCount = 0;
+                }
+            }
+
+            return editor.commit();
+        } catch (final Exception e) {
+            KeyStoreProxy.logError("Error importing store", e);
+            return false;
+        }
+    }
+
+    public void addCorruptionCallback(final ValueCallback<CorruptionEvent> callback) {
+        quarantine.addCallback(callback);
+    }
+
+    public void removeCorruptionCallback(final ValueCallback<CorruptionEvent> callback) {
+        quarantine.removeCallback(callback);
+    }
+
+    // Called with one batch per commit or apply that changed anything, on the thread that wrote it.
+    public void addChangeCallback(final ValueCallback<ChangeBatch> callback) {
+        changeTracker.addCallback(callback);
+    }
+
+    public void removeChangeCallback(final ValueCallback<ChangeBatch> callback) {
+        changeTracker.removeCallback(callback);
+    }
+
+    public int getQuarantinedCount() {
+        return quarantine.size();
+    }
+
+    // Lets every quarantined entry be decrypted again, for example once the keystore is usable again.
+    public void clearQuarantine() {
+        quarantine.clear();
+    }
+
+    public KeyRotation rotateDataKey() {
+        return startKeyRotation(true);
+    }
+
+    public KeyRotation resumeKeyRotation() {
+        return startKeyRotation(false);
+    }
+
     @Override
     public String getString(final String key,
                             final String defaultValue) {
-        final String decryptedString = decryptAndGetString(key);
-        return decryptedString != null ? decryptedString : defaultValue;
+        return toString(decryptAndGetValue(key), defaultValue);
+    }
+
+    public AsyncValue<String> getStringAsync(final String key,
+                                             final String defaultValue) {
+        return valueReads.read(key, new AsyncValue.Converter<String>() {
+            @Override
+            public String convert(final Object decryptedValue) {
+                return KeystoreSharedPreferences.toString(decryptedValue, defaultValue);
+            }
+        });
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public Set<String> getStringSet(final String key,
                                     final Set<String> defaultValues) {
-        final Set<String> encryptedValues = sharedPreferences.getStringSet(key, null);
-        if (encryptedValues == null)  {
-            return defaultValues;
+        final Object pendingValue = writeQueue.getPending(key);
+        if (pendingValue != WriteQueue.NOT_PENDING) {
+            return pendingValue instanceof Set ? new HashSet<>((Set<String>) pendingValue) : defaultValues;
         }
 
-        final Set<String> decryptedValues = new HashSet<>();
-        for (final String value : encryptedValues) {
-            decryptedValues.add(KeyStoreProxy.decryptString(context, value));
+        final String storedKey = getStoredKey(key);
+        final Set<String> encryptedValues = storedKey != null || keyNames == null ? sharedPreferences.getStringSet(storedKey, null) : null;
+        if (encryptedValues == null)  {
+            return defaultValues;
         }
 
-        return decryptedValues;
+        final Object decryptedValues = handles != null ? getHandle(handles, storedKey, encryptedValues).get() : NamedValue.unwrap(decryptSet(storedKey, encryptedValues, executor));
+        return decryptedValues != null ? new HashSet<>((Set<String>) decryptedValues) : defaultValues;
     }
 
     @Override
     public int getInt(final String key,
                       final int defaultValue) {
-        final String decryptedString = decryptAndGetString(key);
-        return decryptedString != null ? Integer.valueOf(decryptedString) : defaultValue;
+        return toInt(decryptAndGetValue(key), defaultValue);
+    }
+
+    public AsyncValue<Integer> getIntAsync(final String key,
+                                           final int defaultValue) {
+        return valueReads.read(key, new AsyncValue.Converter<Integer>() {
+            @Override
+            public Integer convert(final Object decryptedValue) {
+                return toInt(decryptedValue, defaultValue);
+            }
+        });
     }
 
     @Override
     public long getLong(final String key,
                         final long defaultValue) {
-        final String decryptedString = decryptAndGetString(key);
-        return decryptedString != null ? Long.valueOf(decryptedString) : defaultValue;
+        return toLong(decryptAndGetValue(key), defaultValue);
+    }
+
+    public AsyncValue<Long> getLongAsync(final String key,
+                                         final long defaultValue) {
+        return valueReads.read(key, new AsyncValue.Converter<Long>() {
+            @Override
+            public Long convert(final Object decryptedValue) {
+                return toLong(decryptedValue, defaultValue);
+            }
+        });
     }
 
     @Override
     public float getFloat(final String key,
                           final float defaultValue) {
-        final String decryptedString = decryptAndGetString(key);
-        return decryptedString != null ? Float.valueOf(decryptedString) : defaultValue;
+        return toFloat(decryptAndGetValue(key), defaultValue);
+    }
+
+    public AsyncValue<Float> getFloatAsync(final String key,
+                                           final float defaultValue) {
+        return valueReads.read(key, new AsyncValue.Converter<Float>() {
+            @Override
+            public Float convert(final Object decryptedValue) {
+                return toFloat(decryptedValue, defaultValue);
+            }
+        });
     }
 
     @Override
     public boolean getBoolean(final String key,
                               final boolean defaultValue) {
-        final String decryptedString = decryptAndGetString(key);
-        return decryptedString != null ? Boolean.valueOf(decryptedString) : defaultValue;
+        return toBoolean(decryptAndGetValue(key), defaultValue);
+    }
+
+    public AsyncValue<Boolean> getBooleanAsync(final String key,
+                                               final boolean defaultValue) {
+        return valueReads.read(key, new AsyncValue.Converter<Boolean>() {
+            @Override
+            public Boolean convert(final Object decryptedValue) {
+                return toBoolean(decryptedValue, defaultValue);
+            }
+        });
     }
 
     @Override
     public boolean contains(final String key) {
-        return sharedPreferences.contains(key);
+        final Object pendingValue = writeQueue.getPending(key);
+        if (pendingValue != WriteQueue.NOT_PENDING) {
+            return pendingValue != WriteBatch.REMOVED;
+        }
+
+        final String storedKey = getStoredKey(key);
+        return (storedKey != null || keyNames == null) && sharedPreferences.contains(storedKey);
     }
 
     @Override
     public Editor edit() {
-        return new KeystoreSharedPreferencesEditor(context, sharedPreferences.edit());
+        return newEditor();
     }
 
     @Override
     public void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
-        sharedPreferences.registerOnSharedPreferenceChangeListener(listener);
+        if (keyNames == null) {
+            sharedPreferences.registerOnSharedPreferenceChangeListener(listener);
+            return;
+        }
+
+        // Listeners are handed the names they wrote rather than their hashes.
+        final OnSharedPreferenceChangeListener namedListener = new OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences,
+                                                  final String key) {
+                listener.onSharedPreferenceChanged(sharedPreferences, keyNames.getName(key));
+            }
+        };
+        synchronized (namedListeners) {
+            if (namedListeners.containsKey(listener)) {
+                return;
+            }
+            namedListeners.put(listener, namedListener);
+        }
+        sharedPreferences.registerOnSharedPreferenceChangeListener(namedListener);
     }
 
     @Override
     public void unregisterOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
-        sharedPreferences.unregisterOnSharedPreferenceChangeListener(listener);
+        if (keyNames == null) {
+            sharedPreferences.unregisterOnSharedPreferenceChangeListener(listener);
+            return;
+        }
+
+        final OnSharedPreferenceChangeListener namedListener;
+        synchronized (namedListeners) {
+            namedListener = namedListeners.remove(listener);
+        }
+        if (namedListener != null) {
+            sharedPreferences.unregisterOnSharedPreferenceChangeListener(namedListener);
+        }
     }
     
-    private String decryptAndGetString(final String key) {
-        final String encryptedValue = sharedPreferences.getString(key, null);
+    private Object decryptAndGetValue(final String key) {
+        final Object pendingValue = writeQueue.getPending(key);
+        if (pendingValue != WriteQueue.NOT_PENDING) {
+            return pendingValue != WriteBatch.REMOVED ? pendingValue : null;
+        }
+
+        final String storedKey = getStoredKey(key);
+        if (storedKey == null && keyNames != null) {
+            return null;
+        }
+
+        final String encryptedValue = sharedPreferences.getString(storedKey, null);
         if (encryptedValue == null) {
             return null;
         }
-        
-        return KeyStoreProxy.decryptString(context, encryptedValue);
+
+        if (handles != null) {
+            return getHandle(handles, storedKey, encryptedValue).get();
+        }
+
+        // Waits for a prefetch of this key that is already under way instead of decrypting it twice.
+        final LazyValue prefetch = prefetches.get(storedKey);
+        if (prefetch != null && prefetch.matches(encryptedValue)) {
+            return prefetch.get();
+        }
+
+        return decryptValue(storedKey, encryptedValue);
+    }
+
+    private KeystoreSharedPreferencesEditor newEditor() {
+        return new KeystoreSharedPreferencesEditor(backend, sharedPreferences, sharedPreferences.edit(), cache, writeQueue, keyNames, compressionThreshold, streamFiles, changeTracker);
+    }
+
+    // In hashed mode a null result means the name could not be hashed and nothing may be read for it.
+    private String getStoredKey(final String key) {
+        return keyNames != null ? keyNames.getStoredKey(key) : key;
+    }
+
+    private synchronized KeyRotation startKeyRotation(final boolean newVersion) {
+        // Only one rotation runs per store; asking again while it is under way returns it.
+        if (keyRotation != null && !keyRotation.isFinished()) {
+            return keyRotation;
+        }
+
+        if (newVersion) {
+            keyRotation = KeyRotation.start(backend, sharedPreferences, writeQueue, asyncReadExecutor, compressionThreshold);
+        } else {
+            keyRotation = KeyRotation.resume(backend, sharedPreferences, writeQueue, asyncReadExecutor, compressionThreshold);
+        }
+        return keyRotation;
+    }
+
+    private boolean warmUp(final Set<String> keys) {
+        final List<LazyValue> hotValues = registerPrefetches(keys);
+        try {
+            // Loads the keystore entry, generating the key pair if it is missing, and unwraps the data key.
+            DataKeyProxy.getDataKey(backend, sharedPreferences);
+            if (keyNames != null) {
+                keyNames.getNameKey();
+            }
+            ParallelTasks.forEachIndex(executor, hotValues.size(), new ParallelTasks.IndexedTask() {
+                @Override
+                public void run(final int index) {
+                    hotValues.get(index).get();
+                }
+            });
+            return true;
+        } catch (final Exception e) {
+            KeyStoreProxy.logError("Error warming up", e);
+            return false;
+        } finally {
+            for (final LazyValue hotValue : hotValues) {
+                prefetches.remove(hotValue.key, hotValue);
+            }
+        }
+    }
+
+    private List<LazyValue> registerPrefetches(final Set<String> keys) {
+        final List<LazyValue> hotValues = new ArrayList<>();
+        // Without a cache or lazy handles there is nowhere to keep a prefetched value.
+        if (keys.isEmpty() || (handles == null && cache == null)) {
+            return hotValues;
+        }
+
+        final Map<String, ?> encryptedValues = sharedPreferences.getAll();
+        for (final String key : keys) {
+            final String storedKey = getStoredKey(key);
+            final Object encryptedValue = encryptedValues.get(storedKey);
+            if (encryptedValue == null || DataKeyProxy.isInternalPreference(storedKey) || writeQueue.getPending(key) != WriteQueue.NOT_PENDING) {
+                continue;
+            }
+
+            if (handles != null) {
+                hotValues.add(getHandle(handles, storedKey, encryptedValue));
+            } else if (encryptedValue instanceof String) {
+                // Sets never go through the cache, so only strings are worth decrypting ahead of time.
+                hotValues.add(getHandle(prefetches, storedKey, encryptedValue));
+            }
+        }
+
+        return hotValues;
+    }
+
+    private static void removeInternalPreferences(final Map<String, Object> values) {
+        final Iterator<String> keys = values.keySet().iterator();
+        while (keys.hasNext()) {
+            if (DataKeyProxy.isInternalPreference(keys.next())) {
+                keys.remove();
+            }
+        }
+    }
+
+    private void loadHandles() {
+        for (final Map.Entry<String, ?> entry : sharedPreferences.getAll().entrySet()) {
+            if (!DataKeyProxy.isInternalPreference(entry.getKey()) && entry.getValue() != null) {
+                handles.put(entry.getKey(), new LazyValue(entry.getKey(), entry.getValue(), decrypter));
+            }
+        }
+    }
+
+    private LazyValue getHandle(final ConcurrentMap<String, LazyValue> handlesByKey,
+                                final String key,
+                                final Object encryptedValue) {
+        while (true) {
+            final LazyValue handle = handlesByKey.get(key);
+            if (handle != null && handle.matches(encryptedValue)) {
+                return handle;
+            }
+
+            // Swap atomically so concurrent readers of the same ciphertext share one decryption.
+            final LazyValue newHandle = new LazyValue(key, encryptedValue, decrypter);
+            final boolean swapped = handle == null ? handlesByKey.putIfAbsent(key, newHandle) == null : handlesByKey.replace(key, handle, newHandle);
+            if (swapped) {
+                return newHandle;
+            }
+        }
+    }
+
+    // Returns a NamedValue in hashed mode, where the name can only be recovered from the payload.
+    @SuppressWarnings("unchecked")
+    private Object decryptEntry(final String key,
+                                final Object encryptedValue) {
+        if (encryptedValue instanceof Set) {
+            return decryptSet(key, (Set<String>) encryptedValue, null);
+        } else if (keyNames != null) {
+            // The cache keeps bare values, which do not carry the name.
+            return quarantine.contains(key, encryptedValue) ? null : decrypt(key, (String) encryptedValue);
+        } else {
+            return decryptValue(key, (String) encryptedValue);
+        }
+    }
+
+    // Returns a NamedValue when the set carries its name, which only sets written with hashed keys do.
+    private Object decryptSet(final String key,
+                              final Set<String> encryptedValues,
+                              final Executor setExecutor) {
+        if (quarantine.contains(key, encryptedValues)) {
+            return null;
+        }
+
+        final String[] encryptedElements = encryptedValues.toArray(new String[0]);
+        final Object[] values = new Object[encryptedElements.length];
+        ParallelTasks.forEachIndex(setExecutor, values.length, new ParallelTasks.IndexedTask() {
+            @Override
+            public void run(final int index) {
+                final String encryptedElement = encryptedElements[index];
+                values[index] = quarantine.isDataKeyLost(DataKeyProxy.getVersion(encryptedElement)) ? encryptedElement : DataKeyProxy.decryptValue(backend, sharedPreferences, encryptedElement);
+            }
+        });
+
+        String name = null;
+        final Set<String> decryptedValues = new HashSet<>();
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == encryptedElements[i]) {
+                onCorruption(key, encryptedValues, DataKeyProxy.getVersion(encryptedElements[i]));
+                return null;
+            }
+
+            if (values[i] instanceof NamedValue) {
+                name = ((NamedValue) values[i]).name;
+            } else {
+                decryptedValues.add(String.valueOf(values[i]));
+            }
+        }
+
+        changeTracker.record(key, encryptedValues, decryptedValues);
+        return name != null ? new NamedValue(name, decryptedValues) : decryptedValues;
+    }
+
+    private Object decryptValue(final String key,
+                                final String encryptedValue) {
+        if (quarantine.contains(key, encryptedValue)) {
+            return null;
+        }
+
+        if (cache != null) {
+            final Object cachedValue = cache.get(key, encryptedValue);
+            Metrics.cacheLookup(cachedValue != null);
+            if (cachedValue != null) {
+                return cachedValue;
+            }
+        }
+
+        final Object decryptedValue = NamedValue.unwrap(decrypt(key, encryptedValue));
+        if (cache != null && decryptedValue != null) {
+            cache.put(key, encryptedValue, decryptedValue);
+        }
+
+        return decryptedValue;
+    }
+
+    // Returns null, after quarantining the entry, when the value cannot be decrypted.
+    private Object decrypt(final String key,
+                           final String encryptedValue) {
+        final int version = DataKeyProxy.getVersion(encryptedValue);
+        // Once a data key is known to be lost, its ciphertexts fail without another keystore operation.
+        final Object decryptedValue = quarantine.isDataKeyLost(version) ? encryptedValue : DataKeyProxy.decryptValue(backend, sharedPreferences, encryptedValue);
+        // A failed decryption returns the ciphertext itself.
+        if (decryptedValue == encryptedValue) {
+            onCorruption(key, encryptedValue, version);
+            return null;
+        }
+
+        changeTracker.record(key, encryptedValue, NamedValue.unwrap(decryptedValue));
+        return decryptedValue;
+    }
+
+    private void onCorruption(final String key,
+                              final Object encryptedValue,
+                              final int version) {
+        final boolean dataKeyLost = quarantine.isDataKeyLost(version) || !DataKeyProxy.isDataKeyAvailable(backend, sharedPreferences, version);
+        if (!quarantine.add(key, encryptedValue, dataKeyLost ? version : -1)) {
+            return;
+        }
+
+        final String name = keyNames != null ? keyNames.getName(key) : key;
+        CorruptionEvent.Action action = CorruptionEvent.Action.QUARANTINED;
+        if (corruptionPolicy == CorruptionPolicy.RESET_STORE && dataKeyLost) {
+            resetStore();
+            action = CorruptionEvent.Action.STORE_RESET;
+        } else if (corruptionPolicy != CorruptionPolicy.QUARANTINE && deleteEntry(key, encryptedValue)) {
+            action = CorruptionEvent.Action.DELETED;
+        }
+        quarantine.report(new CorruptionEvent(name, action, dataKeyLost));
+    }
+
+    private boolean deleteEntry(final String key,
+                                final Object encryptedValue) {
+        final boolean[] deleted = new boolean[1];
+        writeQueue.runExclusively(new Runnable() {
+            @Override
+            public void run() {
+                // A value written since the failed read is left alone.
+                if (isUnchanged(key, encryptedValue)) {
+                    deleted[0] = sharedPreferences
+                        .edit()
+                        .remove(key)
+                        .commit();
+                }
+            }
+        });
+
+        if (!deleted[0]) {
+            return false;
+        }
+
+        quarantine.remove(key, encryptedValue);
+        if (streamFiles != null) {
+            streamFiles.deleteReplaced(Collections.<String, String>singletonMap(key, null), false);
+        }
+        return true;
+    }
+
+    // Drops every entry together with the unusable data keys, so the next write starts over with fresh ones.
+    private void resetStore() {
+        writeQueue.runExclusively(new Runnable() {
+            @Override
+            public void run() {
+                sharedPreferences
+                    .edit()
+                    .clear()
+                    .commit();
+            }
+        });
+
+        quarantine.clear();
+        changeTracker.clear();
+        prefetches.clear();
+        if (keyNames != null) {
+            keyNames.reset();
+        }
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        if (handles != null) {
+            handles.clear();
+        }
+        if (streamFiles != null) {
+            streamFiles.reset();
+        }
+    }
+
+    private boolean isUnchanged(final String key,
+                                final Object encryptedValue) {
+        try {
+            final Object currentValue = encryptedValue instanceof Set ? sharedPreferences.getStringSet(key, null) : sharedPreferences.getString(key, null);
+            return encryptedValue.equals(currentValue);
+        } catch (final ClassCastException e) {
+            return false;
+        }
+    }
+
+    // Values stored as streams can only be read through openStream.
+    private static boolean isAbsent(final Object decryptedValue) {
+        return decryptedValue == null || decryptedValue instanceof StreamManifest;
+    }
+
+    private static String toString(final Object decryptedValue,
+                                   final String defaultValue) {
+        return !isAbsent(decryptedValue) ? (String) decryptedValue : defaultValue;
+    }
+
+    private static int toInt(final Object decryptedValue,
+                             final int defaultValue) {
+        if (isAbsent(decryptedValue)) {
+            return defaultValue;
+        }
+
+        return decryptedValue instanceof String ? Integer.valueOf((String) decryptedValue) : (Integer) decryptedValue;
+    }
+
+    private static long toLong(final Object decryptedValue,
+                               final long defaultValue) {
+        if (isAbsent(decryptedValue)) {
+            return defaultValue;
+        }
+
+        return decryptedValue instanceof String ? Long.valueOf((String) decryptedValue) : (Long) decryptedValue;
+    }
+
+    private static float toFloat(final Object decryptedValue,
+                                 final float defaultValue) {
+        if (isAbsent(decryptedValue)) {
+            return defaultValue;
+        }
+
+        return decryptedValue instanceof String ? Float.valueOf((String) decryptedValue) : (Float) decryptedValue;
+    }
+
+    private static boolean toBoolean(final Object decryptedValue,
+                                     final boolean defaultValue) {
+        if (isAbsent(decryptedValue)) {
+            return defaultValue;
+        }
+
+        return decryptedValue instanceof String ? Boolean.valueOf((String) decryptedValue) : (Boolean) decryptedValue;
+    }
+
+    public static final class Builder {
+
+        private final Context context;
+        private final SharedPreferences sharedPreferences;
+        private CryptoBackend backend;
+        private DecryptedValueCache cache;
+        private Executor executor = CryptoExecutors.getDefault();
+        private Executor asyncReadExecutor = CryptoExecutors.getAsyncReadDefault();
+        private boolean lazyDecryption;
+        private boolean hashedKeys;
+        private int compressionThreshold = Constants.COMPRESSION_DISABLED;
+        private File streamDirectory;
+        private CorruptionPolicy corruptionPolicy = CorruptionPolicy.QUARANTINE;
+
+        // Without Shared Preferences the builder only carries options, as for stores opened by a registry.
+        public Builder(final Context context) {
+            this(context, null);
+        }
+
+        public Builder(final Context context,
+                       final SharedPreferences sharedPreferences) {
+            this.context = context;
+            this.sharedPreferences = sharedPreferences;
+        }
+
+        // Defaults to the Android Keystore backend of the context.
+        public Builder setBackend(final CryptoBackend backend) {
+            this.backend = backend;
+            return this;
+        }
+
+        public Builder setCache(final DecryptedValueCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        // Null runs the work on the calling thread.
+        public Builder setExecutor(final Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public Builder setAsyncReadExecutor(final Executor asyncReadExecutor) {
+            this.asyncReadExecutor = asyncReadExecutor;
+            return this;
+        }
+
+        public Builder setLazyDecryption(final boolean lazyDecryption) {
+            this.lazyDecryption = lazyDecryption;
+            return this;
+        }
+
+        public Builder setHashedKeys(final boolean hashedKeys) {
+            this.hashedKeys = hashedKeys;
+            return this;
+        }
+
+        public Builder setCompressionThreshold(final int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        public Builder setStreamDirectory(final File streamDirectory) {
+            this.streamDirectory = streamDirectory;
+            return this;
+        }
+
+        public Builder setCorruptionPolicy(final CorruptionPolicy corruptionPolicy) {
+            this.corruptionPolicy = corruptionPolicy;
+            return this;
+        }
+
+        public KeystoreSharedPreferences build() {
+            if (sharedPreferences == null) {
+                throw new IllegalStateException("No Shared Preferences to encrypt");
+            }
+
+            return build(backend != null ? backend : KeyStoreProxy.getDefaultBackend(context), sharedPreferences);
+        }
+
+        KeystoreSharedPreferences build(final CryptoBackend backend,
+                                        final SharedPreferences sharedPreferences) {
+            return new KeystoreSharedPreferences(this, backend, sharedPreferences);
+        }
     }
-}
\ No newline at end of file
+}
@@ -3,92 +3,306 @@ package com.sengami.keystoresharedpreferences;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 public final class KeystoreSharedPreferencesEditor implements SharedPreferences.Editor {
 
-    private final Context context;
+    private final CryptoBackend backend;
+    private final SharedPreferences sharedPreferences;
     private final SharedPreferences.Editor editor;
+    private final DecryptedValueCache cache;
+    private final WriteQueue writeQueue;
+    private final KeyNames keyNames;
+    private final int compressionThreshold;
+    private final StreamFiles streamFiles;
+    private final ChangeTracker changeTracker;
+    private final WriteBatch.Writer writer = new WriteBatch.Writer() {
+        @Override
+        public boolean write(final WriteBatch batch,
+                             final boolean synchronous) {
+            return encryptAndWrite(batch, synchronous);
+        }
+    };
+    private Map<String, Object> mutations = new LinkedHashMap<>();
+    private boolean cleared;
 
     public KeystoreSharedPreferencesEditor(final Context context,
+                                           final SharedPreferences sharedPreferences,
                                            final SharedPreferences.Editor editor) {
-        this.context = context;
+        this(context, sharedPreferences, editor, null);
+    }
+
+    public KeystoreSharedPreferencesEditor(final Context context,
+                                           final SharedPreferences sharedPreferences,
+                                           final SharedPreferences.Editor editor,
+                                           final DecryptedValueCache cache) {
+        this(KeyStoreProxy.getDefaultBackend(context), sharedPreferences, editor, cache);
+    }
+
+    public KeystoreSharedPreferencesEditor(final CryptoBackend backend,
+                                           final SharedPreferences sharedPreferences,
+                                           final SharedPreferences.Editor editor,
+                                           final DecryptedValueCache cache) {
+        this(backend, sharedPreferences, editor, cache, new WriteQueue(null), null, Constants.COMPRESSION_DISABLED, null, null);
+    }
+
+    KeystoreSharedPreferencesEditor(final CryptoBackend backend,
+                                    final SharedPreferences sharedPreferences,
+                                    final SharedPreferences.Editor editor,
+                                    final DecryptedValueCache cache,
+                                    final WriteQueue writeQueue,
+                                    final KeyNames keyNames,
+                                    final int compressionThreshold,
+                                    final StreamFiles streamFiles,
+                                    final ChangeTracker changeTracker) {
+        this.backend = backend;
+        this.sharedPreferences = sharedPreferences;
         this.editor = editor;
+        this.cache = cache;
+        this.writeQueue = writeQueue;
+        this.keyNames = keyNames;
+        this.compressionThreshold = compressionThreshold;
+        this.streamFiles = streamFiles;
+        this.changeTracker = changeTracker;
     }
 
     @Override
-    public SharedPreferences.Editor putString(final String key,
-                                              final String value) {
-        return encryptAndPutString(key, value);
+    public synchronized SharedPreferences.Editor putString(final String key,
+                                                           final String value) {
+        return putValue(key, value);
     }
 
     @Override
-    public SharedPreferences.Editor putStringSet(final String key,
-                                                 final Set<String> values) {
-        final Set<String> encryptedValues = new HashSet<>();
-        for (final String value : values) {
-            encryptedValues.add(KeyStoreProxy.encryptString(context, value));
-        }
-        editor.putStringSet(key, encryptedValues);
-        return this;
+    public synchronized SharedPreferences.Editor putStringSet(final String key,
+                                                              final Set<String> values) {
+        return putValue(key, values != null ? new HashSet<>(values) : null);
     }
 
     @Override
-    public SharedPreferences.Editor putInt(final String key,
-                                           final int value) {
-        final String valueAsString = Integer.valueOf(value).toString();
-        return encryptAndPutString(key, valueAsString);
+    public synchronized SharedPreferences.Editor putInt(final String key,
+                                                        final int value) {
+        return putValue(key, value);
     }
 
     @Override
-    public SharedPreferences.Editor putLong(final String key,
-                                            final long value) {
-        final String valueAsString = Long.valueOf(value).toString();
-        return encryptAndPutString(key, valueAsString);
+    public synchronized SharedPreferences.Editor putLong(final String key,
+                                                         final long value) {
+        return putValue(key, value);
     }
 
     @Override
-    public SharedPreferences.Editor putFloat(final String key,
-                                             final float value) {
-        final String valueAsString = Float.valueOf(value).toString();
-        return encryptAndPutString(key, valueAsString);
+    public synchronized SharedPreferences.Editor putFloat(final String key,
+                                                          final float value) {
+        return putValue(key, value);
     }
 
     @Override
-    public SharedPreferences.Editor putBoolean(final String key,
-                                               final boolean value) {
-        final String valueAsString = Boolean.valueOf(value).toString();
-        return encryptAndPutString(key, valueAsString);
+    public synchronized SharedPreferences.Editor putBoolean(final String key,
+                                                            final boolean value) {
+        return putValue(key, value);
+    }
+
+    // Takes any value the codec decodes to, such as a record read back from a backup.
+    synchronized SharedPreferences.Editor putDecodedValue(final String key,
+                                                          final Object value) {
+        return putValue(key, value);
+    }
+
+    synchronized SharedPreferences.Editor putStreamManifest(final String key,
+                                                            final StreamManifest manifest) {
+        return putValue(key, manifest);
     }
 
     @Override
-    public SharedPreferences.Editor remove(final String key) {
-        editor.remove(key);
+    public synchronized SharedPreferences.Editor remove(final String key) {
+        mutations.put(key, WriteBatch.REMOVED);
         return this;
     }
 
     @Override
-    public SharedPreferences.Editor clear() {
-        editor.clear();
+    public synchronized SharedPreferences.Editor clear() {
+        cleared = true;
         return this;
     }
 
     @Override
     public boolean commit() {
-        editor.commit();
-        return true;
+        return writeQueue.commit(takeBatch());
     }
 
+    // Encrypts on the library executor and then hands the batch to the wrapped editor's apply(). Until then it is only
+    // in memory and not tracked by the framework's pending-work queue, so a process killed meanwhile loses it; use
+    // commit() for writes that must survive that.
     @Override
     public void apply() {
-        editor.apply();
+        writeQueue.apply(takeBatch());
     }
 
-    private SharedPreferences.Editor encryptAndPutString(final String key,
-                                                         final String value) {
-        final String encryptedValue = KeyStoreProxy.encryptString(context, value);
-        editor.putString(key, encryptedValue);
+    private SharedPreferences.Editor putValue(final String key,
+                                              final Object value) {
+        mutations.put(key, value != null ? value : WriteBatch.REMOVED);
         return this;
     }
-}
\ No newline at end of file
+
+    private synchronized WriteBatch takeBatch() {
+        final WriteBatch batch = new WriteBatch(mutations, cleared, writer);
+        mutations = new LinkedHashMap<>();
+        cleared = false;
+        return batch;
+    }
+
+    private boolean encryptAndWrite(final WriteBatch batch,
+                                    final boolean synchronous) {
+        final ChangeTracker.Changes changes = changeTracker != null ? changeTracker.newChanges(batch.cleared) : null;
+        final Map<String, Object> encryptedValues = new LinkedHashMap<>();
+        final Map<String, Object> writtenMutations = new LinkedHashMap<>();
+        for (final Map.Entry<String, Object> mutation : batch.mutations.entrySet()) {
+            final String storedKey = getStoredKey(mutation.getKey());
+            if (storedKey == null && keyNames != null) {
+                // Writing under the plain name would leak it, so the whole batch fails instead.
+                KeyStoreProxy.logError("Error hashing key, nothing was written", null);
+                return false;
+            }
+
+            // Rewriting the value an entry already holds would only produce a new ciphertext and a change event.
+            if (changes != null && !changes.add(mutation.getKey(), storedKey, batch.cleared ? null : getEncryptedValue(storedKey), mutation.getValue())) {
+                continue;
+            }
+
+            // Everything is encrypted before anything is staged, so a failure leaves the backing editor untouched.
+            final Object encryptedValue = encrypt(mutation.getKey(), mutation.getValue());
+            if (encryptedValue == null) {
+                KeyStoreProxy.logError("Error encrypting batch, nothing was written", null);
+                return false;
+            }
+
+            if (changes != null) {
+                changes.setEncryptedValue(storedKey, encryptedValue);
+            }
+            encryptedValues.put(storedKey, encryptedValue);
+            writtenMutations.put(mutation.getKey(), mutation.getValue());
+        }
+
+        if (batch.cleared) {
+            final Map<String, String> internalPreferences = getInternalPreferences();
+            if (internalPreferences == null) {
+                return false;
+            }
+
+            editor.clear();
+            for (final Map.Entry<String, String> entry : internalPreferences.entrySet()) {
+                editor.putString(entry.getKey(), entry.getValue());
+            }
+        }
+        put(encryptedValues);
+
+        final boolean result;
+        if (synchronous) {
+            result = editor.commit();
+        } else {
+            editor.apply();
+            result = true;
+        }
+
+        invalidateCache(writtenMutations, batch.cleared);
+        if (result) {
+            deleteReplacedStreams(writtenMutations, batch.cleared);
+            if (changes != null) {
+                changeTracker.commit(changes);
+            }
+        } else if (changeTracker != null) {
+            // The backing store may hold some of the batch or none of it, so nothing it holds is vouched for any more.
+            changeTracker.clear();
+        }
+        return result;
+    }
+
+    // Returns the ciphertext, REMOVED, or null when the value could not be encrypted.
+    @SuppressWarnings("unchecked")
+    private Object encrypt(final String key,
+                           final Object value) {
+        if (value == WriteBatch.REMOVED) {
+            return WriteBatch.REMOVED;
+        } else if (value instanceof Set) {
+            final Set<String> encryptedValues = new HashSet<>();
+            for (final String setValue : (Set<String>) value) {
+                encryptedValues.add(DataKeyProxy.encryptString(backend, sharedPreferences, setValue));
+            }
+            if (keyNames != null) {
+                // An extra element carries the name, since a set has no single payload to put it in.
+                encryptedValues.add(DataKeyProxy.encryptValue(backend, sharedPreferences, new NamedValue(key, null)));
+            }
+            return encryptedValues.contains(null) ? null : encryptedValues;
+        } else {
+            return DataKeyProxy.encryptValue(backend, sharedPreferences, keyNames != null ? new NamedValue(key, value) : value, compressionThreshold);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void put(final Map<String, Object> encryptedValues) {
+        for (final Map.Entry<String, Object> entry : encryptedValues.entrySet()) {
+            if (entry.getValue() == WriteBatch.REMOVED) {
+                editor.remove(entry.getKey());
+            } else if (entry.getValue() instanceof Set) {
+                editor.putStringSet(entry.getKey(), (Set<String>) entry.getValue());
+            } else {
+                editor.putString(entry.getKey(), (String) entry.getValue());
+            }
+        }
+    }
+
+    private Object getEncryptedValue(final String storedKey) {
+        try {
+            return sharedPreferences.getString(storedKey, null);
+        } catch (final ClassCastException e) {
+            return sharedPreferences.getStringSet(storedKey, null);
+        }
+    }
+
+    private String getStoredKey(final String key) {
+        return keyNames != null ? keyNames.getStoredKey(key) : key;
+    }
+
+    private void invalidateCache(final Map<String, Object> mutations,
+                                 final boolean cleared) {
+        if (cache == null) {
+            return;
+        }
+
+        if (cleared) {
+            cache.invalidateAll();
+        } else {
+            for (final String key : mutations.keySet()) {
+                cache.invalidate(getStoredKey(key));
+            }
+        }
+    }
+
+    private void deleteReplacedStreams(final Map<String, Object> mutations,
+                                       final boolean cleared) {
+        if (streamFiles == null) {
+            return;
+        }
+
+        final Map<String, String> keptFileNames = new HashMap<>();
+        for (final Map.Entry<String, Object> mutation : mutations.entrySet()) {
+            final Object value = mutation.getValue();
+            keptFileNames.put(getStoredKey(mutation.getKey()), value instanceof StreamManifest ? ((StreamManifest) value).fileName : null);
+        }
+        streamFiles.deleteReplaced(keptFileNames, cleared);
+    }
+
+    // Returns null when the data keys cannot be read, since clearing without them would lose them.
+    private Map<String, String> getInternalPreferences() {
+        try {
+            return DataKeyProxy.getInternalPreferences(backend, sharedPreferences);
+        } catch (final Exception e) {
+            KeyStoreProxy.logError("Error reading data key", e);
+            return null;
+        }
+    }
+}
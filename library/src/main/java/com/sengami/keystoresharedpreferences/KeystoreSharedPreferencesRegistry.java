@@ -0,0 +1,106 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+public final class KeystoreSharedPreferencesRegistry {
+
+    interface Opener {
+
+        SharedPreferences openSharedPreferences(String name);
+
+        CryptoBackend getBackend(String alias);
+    }
+
+    private final Context context;
+    private final Opener opener;
+    private final Executor executor;
+    private final Executor asyncReadExecutor;
+    private final ConcurrentMap<String, Store> stores = new ConcurrentHashMap<>();
+
+    public KeystoreSharedPreferencesRegistry(final Context context) {
+        this(context, CryptoExecutors.getDefault(), CryptoExecutors.getAsyncReadDefault());
+    }
+
+    public KeystoreSharedPreferencesRegistry(final Context context,
+                                             final Executor executor,
+                                             final Executor asyncReadExecutor) {
+        this(context, new Opener() {
+            @Override
+            public SharedPreferences openSharedPreferences(final String name) {
+                return context.getSharedPreferences(name, Context.MODE_PRIVATE);
+            }
+
+            @Override
+            public CryptoBackend getBackend(final String alias) {
+                return KeyStoreProxy.getBackend(context, alias);
+            }
+        }, executor, asyncReadExecutor);
+    }
+
+    KeystoreSharedPreferencesRegistry(final Context context,
+                                      final Opener opener,
+                                      final Executor executor,
+                                      final Executor asyncReadExecutor) {
+        this.context = context;
+        this.opener = opener;
+        this.executor = executor;
+        this.asyncReadExecutor = asyncReadExecutor;
+    }
+
+    public KeystoreSharedPreferences get(final String name) {
+        return get(name, Constants.KEYSTORE_ALIAS);
+    }
+
+    public KeystoreSharedPreferences get(final String name,
+                                         final String alias) {
+        return get(name, alias, new KeystoreSharedPreferences.Builder(context)
+            .setExecutor(executor)
+            .setAsyncReadExecutor(asyncReadExecutor));
+    }
+
+    // Stores are opened on first use and handed out again afterwards; every store with the same alias shares its key pair.
+    // The options are only used to open the store, with the backend of the alias in place of theirs.
+    public KeystoreSharedPreferences get(final String name,
+                                         final String alias,
+                                         final KeystoreSharedPreferences.Builder options) {
+        Store store = stores.get(name);
+        if (store == null) {
+            synchronized (stores) {
+                store = stores.get(name);
+                if (store == null) {
+                    store = new Store(alias, options.build(opener.getBackend(alias), opener.openSharedPreferences(name)));
+                    stores.put(name, store);
+                }
+            }
+        }
+
+        if (!store.alias.equals(alias)) {
+            throw new IllegalArgumentException("Store " + name + " is already open with another alias");
+        }
+        return store.sharedPreferences;
+    }
+
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(new HashSet<>(stores.keySet()));
+    }
+
+    private static final class Store {
+
+        private final String alias;
+        private final KeystoreSharedPreferences sharedPreferences;
+
+        private Store(final String alias,
+                      final KeystoreSharedPreferences sharedPreferences) {
+            this.alias = alias;
+            this.sharedPreferences = sharedPreferences;
+        }
+    }
+}
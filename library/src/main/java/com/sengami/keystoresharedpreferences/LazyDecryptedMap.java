@@ -0,0 +1,114 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+final class LazyDecryptedMap extends AbstractMap<String, Object> {
+
+    private final Map<String, Object> values;
+
+    LazyDecryptedMap(final Map<String, Object> values) {
+        this.values = values;
+    }
+
+    @Override
+    public Object get(final Object key) {
+        return resolve(values.get(key));
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                final Iterator<Entry<String, Object>> iterator = values.entrySet().iterator();
+                return new Iterator<Entry<String, Object>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        final Entry<String, Object> entry = iterator.next();
+                        return new LazyEntry(entry.getKey(), entry.getValue());
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.size();
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    static Object resolve(final Object value) {
+        final Object resolvedValue = value instanceof LazyValue ? ((LazyValue) value).get() : value;
+        return resolvedValue instanceof Set ? new HashSet<>((Set<String>) resolvedValue) : StreamManifest.withoutKey(resolvedValue);
+    }
+
+    private static final class LazyEntry implements Entry<String, Object> {
+
+        private final String key;
+        private final Object value;
+
+        private LazyEntry(final String key,
+                          final Object value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public Object getValue() {
+            return resolve(value);
+        }
+
+        @Override
+        public Object setValue(final Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Entry)) {
+                return false;
+            }
+
+            final Entry<?, ?> entry = (Entry<?, ?>) other;
+            final Object value = getValue();
+            return key.equals(entry.getKey()) && (value == null ? entry.getValue() == null : value.equals(entry.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            final Object value = getValue();
+            return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.sengami.keystoresharedpreferences;
+
+final class LazyValue {
+
+    private static final Object UNRESOLVED = new Object();
+
+    interface Decrypter {
+
+        Object decrypt(String key,
+                       Object encryptedValue);
+    }
+
+    final String key;
+    final Object encryptedValue;
+    private final Decrypter decrypter;
+    private volatile Object value = UNRESOLVED;
+
+    LazyValue(final String key,
+              final Object encryptedValue,
+              final Decrypter decrypter) {
+        this.key = key;
+        this.encryptedValue = encryptedValue;
+        this.decrypter = decrypter;
+    }
+
+    Object get() {
+        Object result = value;
+        if (result != UNRESOLVED) {
+            return result;
+        }
+
+        synchronized (this) {
+            result = value;
+            if (result == UNRESOLVED) {
+                result = decrypter.decrypt(key, encryptedValue);
+                // A failed decryption returns null and is not memoized, so the next access tries again
+                // unless the entry has been quarantined in the meantime.
+                if (result != null && result != encryptedValue) {
+                    value = result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    boolean isResolved() {
+        return value != UNRESOLVED;
+    }
+
+    boolean matches(final Object encryptedValue) {
+        return this.encryptedValue.equals(encryptedValue);
+    }
+}
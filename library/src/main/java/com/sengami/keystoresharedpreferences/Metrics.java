@@ -0,0 +1,48 @@
+package com.sengami.keystoresharedpreferences;
+
+public final class Metrics {
+
+    private static volatile CryptoMetrics recorder;
+
+    public static void setRecorder(final CryptoMetrics recorder) {
+        Metrics.recorder = recorder;
+    }
+
+    public static CryptoMetrics getRecorder() {
+        return recorder;
+    }
+
+    // Every hook below is a single null check while no recorder is set.
+    static long start(final CryptoMetrics metrics) {
+        return metrics != null ? System.nanoTime() : 0L;
+    }
+
+    static long phase(final CryptoMetrics metrics,
+                      final CryptoMetrics.Phase phase,
+                      final long start) {
+        if (metrics == null) {
+            return 0L;
+        }
+
+        final long now = System.nanoTime();
+        metrics.onPhase(phase, now - start);
+        return now;
+    }
+
+    static void operation(final CryptoMetrics metrics,
+                          final CryptoMetrics.Operation operation,
+                          final long start,
+                          final int payloadBytes,
+                          final boolean success) {
+        if (metrics != null) {
+            metrics.onOperation(operation, System.nanoTime() - start, payloadBytes, success);
+        }
+    }
+
+    static void cacheLookup(final boolean hit) {
+        final CryptoMetrics metrics = recorder;
+        if (metrics != null) {
+            metrics.onCacheLookup(hit);
+        }
+    }
+}
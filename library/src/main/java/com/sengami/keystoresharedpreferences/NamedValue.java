@@ -0,0 +1,17 @@
+package com.sengami.keystoresharedpreferences;
+
+final class NamedValue {
+
+    final String name;
+    final Object value;
+
+    NamedValue(final String name,
+               final Object value) {
+        this.name = name;
+        this.value = value;
+    }
+
+    static Object unwrap(final Object value) {
+        return value instanceof NamedValue ? ((NamedValue) value).value : value;
+    }
+}
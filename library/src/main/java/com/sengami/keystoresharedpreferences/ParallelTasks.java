@@ -0,0 +1,80 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+final class ParallelTasks {
+
+    private static final int MIN_TASKS_PER_THREAD = 4;
+
+    interface IndexedTask {
+
+        void run(int index);
+    }
+
+    static void forEachIndex(final Executor executor,
+                             final int count,
+                             final IndexedTask task) {
+        final int helperCount = Math.min(count / MIN_TASKS_PER_THREAD, Runtime.getRuntime().availableProcessors()) - 1;
+        if (executor == null || helperCount <= 0) {
+            for (int i = 0; i < count; i++) {
+                task.run(i);
+            }
+            return;
+        }
+
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final CountDownLatch remaining = new CountDownLatch(count);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int index;
+                while ((index = nextIndex.getAndIncrement()) < count) {
+                    try {
+                        task.run(index);
+                    } catch (final RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        remaining.countDown();
+                    }
+                }
+            }
+        };
+
+        for (int i = 0; i < helperCount; i++) {
+            try {
+                executor.execute(worker);
+            } catch (final RejectedExecutionException e) {
+                break;
+            }
+        }
+
+        // The calling thread takes part as well, so a saturated executor only slows things down.
+        worker.run();
+        awaitUninterruptibly(remaining);
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private static void awaitUninterruptibly(final CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
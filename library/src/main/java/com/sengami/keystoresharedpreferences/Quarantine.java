@@ -0,0 +1,75 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+final class Quarantine {
+
+    private final ConcurrentMap<String, Object> failedValues = new ConcurrentHashMap<>();
+    private final Set<Integer> lostVersions = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final List<ValueCallback<CorruptionEvent>> callbacks = new CopyOnWriteArrayList<>();
+
+    // A key is only quarantined for the ciphertext that failed, so writing a new value lifts it.
+    boolean contains(final String key,
+                     final Object encryptedValue) {
+        final Object failedValue = failedValues.get(String.valueOf(key));
+        if (failedValue == null) {
+            return false;
+        }
+
+        if (failedValue.equals(encryptedValue)) {
+            return true;
+        }
+
+        failedValues.remove(String.valueOf(key), failedValue);
+        return false;
+    }
+
+    boolean isDataKeyLost(final int version) {
+        return version >= 0 && lostVersions.contains(version);
+    }
+
+    // Returns false when another reader has already quarantined the same value.
+    boolean add(final String key,
+                final Object encryptedValue,
+                final int lostVersion) {
+        if (lostVersion >= 0) {
+            lostVersions.add(lostVersion);
+        }
+
+        final Object failedValue = failedValues.put(String.valueOf(key), encryptedValue);
+        return !encryptedValue.equals(failedValue);
+    }
+
+    void remove(final String key,
+                final Object encryptedValue) {
+        failedValues.remove(String.valueOf(key), encryptedValue);
+    }
+
+    int size() {
+        return failedValues.size();
+    }
+
+    void clear() {
+        failedValues.clear();
+        lostVersions.clear();
+    }
+
+    void addCallback(final ValueCallback<CorruptionEvent> callback) {
+        callbacks.add(callback);
+    }
+
+    void removeCallback(final ValueCallback<CorruptionEvent> callback) {
+        callbacks.remove(callback);
+    }
+
+    void report(final CorruptionEvent event) {
+        for (final ValueCallback<CorruptionEvent> callback : callbacks) {
+            callback.onValue(event);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.security.auth.x500.X500Principal;
+
+final class SelfSignedCertificate {
+
+    private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private static final byte[] SIGNATURE_ALGORITHM_IDENTIFIER = {
+        0x30, 0x0D, 0x06, 0x09, 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 0x01, 0x01, 0x0B, 0x05, 0x00
+    };
+    private static final int TAG_INTEGER = 0x02;
+    private static final int TAG_BIT_STRING = 0x03;
+    private static final int TAG_UTC_TIME = 0x17;
+    private static final int TAG_GENERALIZED_TIME = 0x18;
+    private static final int TAG_SEQUENCE = 0x30;
+    private static final int LAST_UTC_TIME_YEAR = 2049;
+
+    static Certificate create(final KeyPair keyPair,
+                              final X500Principal subject,
+                              final BigInteger serialNumber,
+                              final Date startDate,
+                              final Date endDate) throws GeneralSecurityException {
+        final byte[] name = subject.getEncoded();
+        final byte[] tbsCertificate = sequence(
+            tlv(TAG_INTEGER, serialNumber.toByteArray()),
+            SIGNATURE_ALGORITHM_IDENTIFIER,
+            name,
+            sequence(time(startDate), time(endDate)),
+            name,
+            keyPair.getPublic().getEncoded()
+        );
+
+        final Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        signature.initSign(keyPair.getPrivate());
+        signature.update(tbsCertificate);
+        final byte[] signatureBytes = signature.sign();
+
+        final byte[] bitString = new byte[signatureBytes.length + 1];
+        System.arraycopy(signatureBytes, 0, bitString, 1, signatureBytes.length);
+        final byte[] certificate = sequence(tbsCertificate, SIGNATURE_ALGORITHM_IDENTIFIER, tlv(TAG_BIT_STRING, bitString));
+        return CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(certificate));
+    }
+
+    private static byte[] time(final Date date) {
+        final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+        calendar.setTime(date);
+        final boolean utcTime = calendar.get(Calendar.YEAR) <= LAST_UTC_TIME_YEAR;
+        final SimpleDateFormat format = new SimpleDateFormat(utcTime ? "yyMMddHHmmss'Z'" : "yyyyMMddHHmmss'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return tlv(utcTime ? TAG_UTC_TIME : TAG_GENERALIZED_TIME, format.format(date).getBytes(Constants.CHARSET));
+    }
+
+    private static byte[] sequence(final byte[]... elements) {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (final byte[] element : elements) {
+            content.write(element, 0, element.length);
+        }
+
+        return tlv(TAG_SEQUENCE, content.toByteArray());
+    }
+
+    private static byte[] tlv(final int tag,
+                              final byte[] value) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(value.length + 6);
+        output.write(tag);
+        if (value.length < 0x80) {
+            output.write(value.length);
+        } else {
+            int lengthBytes = 0;
+            for (int length = value.length; length > 0; length >>>= 8) {
+                lengthBytes++;
+            }
+
+            output.write(0x80 | lengthBytes);
+            for (int i = lengthBytes - 1; i >= 0; i--) {
+                output.write(value.length >>> (8 * i));
+            }
+        }
+        output.write(value, 0, value.length);
+        return output.toByteArray();
+    }
+}
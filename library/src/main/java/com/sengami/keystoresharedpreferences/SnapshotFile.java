@@ -0,0 +1,166 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+final class SnapshotFile {
+
+    private static final byte[] MAGIC = { 'K', 'S', 'P', 'S' };
+    private static final byte FORMAT_VERSION = 1;
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    static Map<String, Object> read(final File file,
+                                    final SecretKey key) throws IOException,
+                                                                GeneralSecurityException {
+        if (!file.exists()) {
+            return new HashMap<>();
+        }
+
+        final byte[] bytes = readFully(file);
+        final int headerLength = MAGIC.length + 1;
+        if (bytes.length < headerLength || !Arrays.equals(MAGIC, Arrays.copyOf(bytes, MAGIC.length))) {
+            throw new IOException("Not a snapshot file: " + file);
+        }
+        if (bytes[MAGIC.length] != FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot version: " + bytes[MAGIC.length]);
+        }
+
+        final byte[] plaintext = AesGcm.decrypt(key, bytes, headerLength, bytes.length - headerLength);
+        try {
+            return decodeEntries(plaintext, 0, plaintext.length);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    static void write(final File file,
+                      final SecretKey key,
+                      final Map<String, Object> values) throws IOException,
+                                                               GeneralSecurityException {
+        final byte[] plaintext = encodeEntries(values);
+        final byte[] payload;
+        try {
+            payload = AesGcm.encrypt(key, plaintext, 0, plaintext.length);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(MAGIC.length + 1 + payload.length);
+        output.write(MAGIC);
+        output.write(FORMAT_VERSION);
+        output.write(payload);
+        writeAtomically(file, output.toByteArray());
+    }
+
+    static void writeAtomically(final File file,
+                                final byte[] bytes) throws IOException {
+        final File temporaryFile = new File(file.getPath() + TEMPORARY_FILE_SUFFIX);
+        final FileOutputStream output = new FileOutputStream(temporaryFile);
+        try {
+            output.write(bytes);
+            output.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    static byte[] encodeEntries(final Map<String, Object> values) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] lengthBytes = new byte[4];
+        ValueCodec.writeInt(lengthBytes, 0, values.size());
+        output.write(lengthBytes, 0, lengthBytes.length);
+        for (final Map.Entry<String, Object> entry : values.entrySet()) {
+            writeLengthPrefixed(output, lengthBytes, entry.getKey().getBytes(Constants.CHARSET));
+            writeLengthPrefixed(output, lengthBytes, ValueCodec.encode(entry.getValue()));
+        }
+
+        return output.toByteArray();
+    }
+
+    static Map<String, Object> decodeEntries(final byte[] bytes,
+                                             final int offset,
+                                             final int length) throws IOException {
+        final int end = offset + length;
+        int position = offset;
+        final int count = readLength(bytes, position, end);
+        position += 4;
+
+        final Map<String, Object> values = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            final int keyLength = readLength(bytes, position, end);
+            position += 4;
+            final String key = new String(bytes, position, keyLength, Constants.CHARSET);
+            position += keyLength;
+
+            final int valueLength = readLength(bytes, position, end);
+            position += 4;
+            try {
+                values.put(key, ValueCodec.decode(bytes, position, valueLength));
+            } catch (final IllegalArgumentException e) {
+                throw new IOException("Invalid value for " + key, e);
+            }
+            position += valueLength;
+        }
+
+        if (position != end) {
+            throw new IOException("Unexpected trailing bytes");
+        }
+
+        return values;
+    }
+
+    private static void writeLengthPrefixed(final ByteArrayOutputStream output,
+                                            final byte[] lengthBytes,
+                                            final byte[] bytes) {
+        ValueCodec.writeInt(lengthBytes, 0, bytes.length);
+        output.write(lengthBytes, 0, lengthBytes.length);
+        output.write(bytes, 0, bytes.length);
+    }
+
+    private static int readLength(final byte[] bytes,
+                                  final int position,
+                                  final int end) throws IOException {
+        if (end - position < 4) {
+            throw new IOException("Truncated snapshot");
+        }
+
+        final int length = ValueCodec.readInt(bytes, position);
+        if (length < 0 || length > end - position - 4) {
+            throw new IOException("Invalid length: " + length);
+        }
+
+        return length;
+    }
+
+    private static byte[] readFully(final File file) throws IOException {
+        final InputStream input = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream((int) file.length());
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}
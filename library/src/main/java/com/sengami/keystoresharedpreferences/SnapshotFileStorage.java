@@ -0,0 +1,34 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+final class SnapshotFileStorage implements SnapshotStorage {
+
+    private final File file;
+    private final SecretKey key;
+
+    SnapshotFileStorage(final File file,
+                        final SecretKey key) {
+        this.file = file;
+        this.key = key;
+    }
+
+    @Override
+    public Map<String, Object> load() throws IOException,
+                                             GeneralSecurityException {
+        return SnapshotFile.read(file, key);
+    }
+
+    @Override
+    public void write(final List<WriteBatch> batches,
+                      final Source source) throws IOException,
+                                                  GeneralSecurityException {
+        SnapshotFile.write(file, key, source.snapshot());
+    }
+}
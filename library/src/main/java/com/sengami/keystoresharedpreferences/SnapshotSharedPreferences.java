@@ -0,0 +1,276 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.crypto.SecretKey;
+
+public final class SnapshotSharedPreferences implements SharedPreferences {
+
+    private static final String SNAPSHOT_FILE_SUFFIX = ".snapshot";
+    private static final String DATA_KEY_PREFERENCES_SUFFIX = "_data_key";
+    private static final long DEFAULT_MAX_LOG_SIZE_BYTES = 64 * 1024;
+    private static final float DEFAULT_MAX_LOG_TO_SNAPSHOT_RATIO = 1F;
+
+    private final SnapshotStorage storage;
+    private final Executor executor;
+    private final Map<String, Object> values;
+    private final Set<OnSharedPreferenceChangeListener> listeners = Collections.newSetFromMap(new WeakHashMap<OnSharedPreferenceChangeListener, Boolean>());
+    private final List<WriteBatch> pendingBatches = new ArrayList<>();
+    private final Object writeLock = new Object();
+    private final SnapshotStorage.Source source = new SnapshotStorage.Source() {
+        @Override
+        public Map<String, Object> snapshot() {
+            synchronized (SnapshotSharedPreferences.this) {
+                return new HashMap<>(values);
+            }
+        }
+    };
+
+    private SnapshotSharedPreferences(final SnapshotStorage storage,
+                                      final Executor executor) throws IOException,
+                                                                      GeneralSecurityException {
+        this.storage = storage;
+        this.executor = executor;
+        this.values = storage.load();
+    }
+
+    public static SnapshotSharedPreferences open(final Context context,
+                                                 final String name) throws IOException,
+                                                                           GeneralSecurityException {
+        final SharedPreferences dataKeyPreferences = context.getSharedPreferences(name + DATA_KEY_PREFERENCES_SUFFIX, Context.MODE_PRIVATE);
+        final SecretKey key = DataKeyProxy.getDataKey(context, dataKeyPreferences);
+        return open(new File(context.getFilesDir(), name + SNAPSHOT_FILE_SUFFIX), key, CryptoExecutors.getDefault());
+    }
+
+    public static SnapshotSharedPreferences openWithLog(final Context context,
+                                                        final String name) throws IOException,
+                                                                                  GeneralSecurityException {
+        final SharedPreferences dataKeyPreferences = context.getSharedPreferences(name + DATA_KEY_PREFERENCES_SUFFIX, Context.MODE_PRIVATE);
+        final SecretKey key = DataKeyProxy.getDataKey(context, dataKeyPreferences);
+        final Executor executor = CryptoExecutors.getDefault();
+        final WriteAheadLog log = new WriteAheadLog(new File(context.getFilesDir(), name + SNAPSHOT_FILE_SUFFIX),
+                                                    key,
+                                                    executor,
+                                                    DEFAULT_MAX_LOG_SIZE_BYTES,
+                                                    DEFAULT_MAX_LOG_TO_SNAPSHOT_RATIO);
+        return open(log, executor);
+    }
+
+    public static SnapshotSharedPreferences open(final File file,
+                                                 final SecretKey key,
+                                                 final Executor executor) throws IOException,
+                                                                                 GeneralSecurityException {
+        return new SnapshotSharedPreferences(new SnapshotFileStorage(file, key), executor);
+    }
+
+    public static SnapshotSharedPreferences open(final WriteAheadLog log,
+                                                 final Executor executor) throws IOException,
+                                                                                 GeneralSecurityException {
+        return new SnapshotSharedPreferences(log, executor);
+    }
+
+    static SnapshotSharedPreferences open(final SnapshotStorage storage,
+                                          final Executor executor) throws IOException,
+                                                                          GeneralSecurityException {
+        return new SnapshotSharedPreferences(storage, executor);
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        final Map<String, Object> allValues = new HashMap<>(values);
+        for (final Map.Entry<String, Object> entry : allValues.entrySet()) {
+            if (entry.getValue() instanceof Set) {
+                entry.setValue(copySet(entry.getValue()));
+            }
+        }
+
+        return allValues;
+    }
+
+    @Override
+    public synchronized String getString(final String key,
+                                         final String defaultValue) {
+        final Object value = values.get(key);
+        return value != null ? (String) value : defaultValue;
+    }
+
+    @Override
+    public synchronized Set<String> getStringSet(final String key,
+                                                 final Set<String> defaultValues) {
+        final Object value = values.get(key);
+        return value != null ? copySet(value) : defaultValues;
+    }
+
+    @Override
+    public synchronized int getInt(final String key,
+                                   final int defaultValue) {
+        final Object value = values.get(key);
+        return value != null ? (Integer) value : defaultValue;
+    }
+
+    @Override
+    public synchronized long getLong(final String key,
+                                     final long defaultValue) {
+        final Object value = values.get(key);
+        return value != null ? (Long) value : defaultValue;
+    }
+
+    @Override
+    public synchronized float getFloat(final String key,
+                                       final float defaultValue) {
+        final Object value = values.get(key);
+        return value != null ? (Float) value : defaultValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(final String key,
+                                           final boolean defaultValue) {
+        final Object value = values.get(key);
+        return value != null ? (Boolean) value : defaultValue;
+    }
+
+    @Override
+    public synchronized boolean contains(final String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new SnapshotSharedPreferencesEditor(this);
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    boolean commit(final Map<String, Object> mutations,
+                   final boolean cleared) {
+        final Set<String> changedKeys = applyMutations(mutations, cleared);
+        final boolean result = flush();
+        notifyListeners(changedKeys);
+        return result;
+    }
+
+    void apply(final Map<String, Object> mutations,
+               final boolean cleared) {
+        final Set<String> changedKeys = applyMutations(mutations, cleared);
+        scheduleWrite();
+        notifyListeners(changedKeys);
+    }
+
+    private synchronized Set<String> applyMutations(final Map<String, Object> mutations,
+                                                    final boolean cleared) {
+        pendingBatches.add(new WriteBatch(mutations, cleared, null));
+
+        final Set<String> changedKeys = new LinkedHashSet<>();
+        if (cleared) {
+            changedKeys.addAll(values.keySet());
+            values.clear();
+        }
+
+        for (final Map.Entry<String, Object> mutation : mutations.entrySet()) {
+            final String mutationKey = mutation.getKey();
+            if (mutation.getValue() == WriteBatch.REMOVED) {
+                if (values.remove(mutationKey) != null) {
+                    changedKeys.add(mutationKey);
+                }
+            } else if (!mutation.getValue().equals(values.put(mutationKey, mutation.getValue()))) {
+                changedKeys.add(mutationKey);
+            }
+        }
+
+        return changedKeys;
+    }
+
+    private void scheduleWrite() {
+        if (executor == null) {
+            flush();
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            flush();
+        }
+    }
+
+    private boolean flush() {
+        synchronized (writeLock) {
+            final List<WriteBatch> batches;
+            synchronized (this) {
+                if (pendingBatches.isEmpty()) {
+                    return true;
+                }
+
+                batches = new ArrayList<>(pendingBatches);
+                pendingBatches.clear();
+            }
+
+            try {
+                storage.write(batches, source);
+                return true;
+            } catch (final IOException | GeneralSecurityException e) {
+                KeyStoreProxy.logError("Error writing snapshot", e);
+                synchronized (this) {
+                    // Put back ahead of newer batches, so the next commit or apply writes them again in order.
+                    pendingBatches.addAll(0, batches);
+                }
+                return false;
+            }
+        }
+    }
+
+    private void notifyListeners(final Set<String> changedKeys) {
+        if (changedKeys.isEmpty()) {
+            return;
+        }
+
+        final List<OnSharedPreferenceChangeListener> currentListeners;
+        synchronized (listeners) {
+            currentListeners = new ArrayList<>(listeners);
+        }
+
+        for (final String changedKey : changedKeys) {
+            for (final OnSharedPreferenceChangeListener listener : currentListeners) {
+                listener.onSharedPreferenceChanged(this, changedKey);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> copySet(final Object value) {
+        return new HashSet<>((Set<String>) value);
+    }
+}
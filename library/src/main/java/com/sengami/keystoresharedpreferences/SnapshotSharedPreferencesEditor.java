@@ -0,0 +1,92 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public final class SnapshotSharedPreferencesEditor implements SharedPreferences.Editor {
+
+    private final SnapshotSharedPreferences sharedPreferences;
+    private Map<String, Object> mutations = new LinkedHashMap<>();
+    private boolean cleared;
+
+    SnapshotSharedPreferencesEditor(final SnapshotSharedPreferences sharedPreferences) {
+        this.sharedPreferences = sharedPreferences;
+    }
+
+    @Override
+    public synchronized SharedPreferences.Editor putString(final String key,
+                                                           final String value) {
+        return putValue(key, value);
+    }
+
+    @Override
+    public synchronized SharedPreferences.Editor putStringSet(final String key,
+                                                              final Set<String> values) {
+        return putValue(key, values != null ? new HashSet<>(values) : null);
+    }
+
+    @Override
+    public synchronized SharedPreferences.Editor putInt(final String key,
+                                                        final int value) {
+        return putValue(key, value);
+    }
+
+    @Override
+    public synchronized SharedPreferences.Editor putLong(final String key,
+                                                         final long value) {
+        return putValue(key, value);
+    }
+
+    @Override
+    public synchronized SharedPreferences.Editor putFloat(final String key,
+                                                          final float value) {
+        return putValue(key, value);
+    }
+
+    @Override
+    public synchronized SharedPreferences.Editor putBoolean(final String key,
+                                                            final boolean value) {
+        return putValue(key, value);
+    }
+
+    @Override
+    public synchronized SharedPreferences.Editor remove(final String key) {
+        mutations.put(key, WriteBatch.REMOVED);
+        return this;
+    }
+
+    @Override
+    public synchronized SharedPreferences.Editor clear() {
+        cleared = true;
+        return this;
+    }
+
+    @Override
+    public boolean commit() {
+        final WriteBatch batch = takeBatch();
+        return sharedPreferences.commit(batch.mutations, batch.cleared);
+    }
+
+    @Override
+    public void apply() {
+        final WriteBatch batch = takeBatch();
+        sharedPreferences.apply(batch.mutations, batch.cleared);
+    }
+
+    private SharedPreferences.Editor putValue(final String key,
+                                              final Object value) {
+        mutations.put(key, value != null ? value : WriteBatch.REMOVED);
+        return this;
+    }
+
+    private synchronized WriteBatch takeBatch() {
+        final WriteBatch batch = new WriteBatch(mutations, cleared, null);
+        mutations = new LinkedHashMap<>();
+        cleared = false;
+        return batch;
+    }
+}
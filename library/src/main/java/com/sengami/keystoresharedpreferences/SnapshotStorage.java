@@ -0,0 +1,21 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Map;
+
+interface SnapshotStorage {
+
+    Map<String, Object> load() throws IOException,
+                                      GeneralSecurityException;
+
+    void write(List<WriteBatch> batches,
+               Source source) throws IOException,
+                                     GeneralSecurityException;
+
+    interface Source {
+
+        Map<String, Object> snapshot();
+    }
+}
@@ -0,0 +1,88 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+
+import javax.crypto.Cipher;
+import javax.security.auth.x500.X500Principal;
+
+public final class SoftwareKeyStoreBackend extends KeyMaterial {
+
+    private static final String KEYSTORE_TYPE = "PKCS12";
+    private static final int KEY_SIZE_BITS = 2048;
+
+    private final File file;
+    private final char[] password;
+
+    public SoftwareKeyStoreBackend(final File file,
+                                   final char[] password) {
+        this.file = file;
+        this.password = password.clone();
+    }
+
+    @Override
+    KeyStore.PrivateKeyEntry loadEntry() throws GeneralSecurityException,
+                                                IOException {
+        final CryptoMetrics metrics = Metrics.getRecorder();
+        long time = Metrics.start(metrics);
+        final KeyStore keyStore = loadKeyStore();
+        time = Metrics.phase(metrics, CryptoMetrics.Phase.KEYSTORE_LOAD, time);
+        if (!keyStore.containsAlias(Constants.KEYSTORE_ALIAS)) {
+            createNewKeyPair(keyStore);
+            time = Metrics.phase(metrics, CryptoMetrics.Phase.KEY_GENERATION, time);
+        }
+
+        final KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry) keyStore.getEntry(Constants.KEYSTORE_ALIAS, new KeyStore.PasswordProtection(password));
+        Metrics.phase(metrics, CryptoMetrics.Phase.ENTRY_FETCH, time);
+        return entry;
+    }
+
+    @Override
+    Cipher newCipher() throws GeneralSecurityException {
+        return Cipher.getInstance(Constants.KEYSTORE_TRANSFORMATION);
+    }
+
+    private KeyStore loadKeyStore() throws GeneralSecurityException,
+                                           IOException {
+        final KeyStore keyStore = KeyStore.getInstance(KEYSTORE_TYPE);
+        if (!file.exists()) {
+            keyStore.load(null, password);
+            return keyStore;
+        }
+
+        final InputStream input = new FileInputStream(file);
+        try {
+            keyStore.load(input, password);
+        } finally {
+            input.close();
+        }
+
+        return keyStore;
+    }
+
+    private void createNewKeyPair(final KeyStore keyStore) throws GeneralSecurityException,
+                                                                  IOException {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance(Constants.KEYSTORE_ALGORITHM);
+        generator.initialize(KEY_SIZE_BITS);
+        final KeyPair keyPair = generator.generateKeyPair();
+        final Certificate certificate = SelfSignedCertificate.create(keyPair,
+                                                                     new X500Principal(Constants.KEYSTORE_CERTIFICATE_SUBJECT),
+                                                                     BigInteger.ONE,
+                                                                     getCertificateStartDate(),
+                                                                     getCertificateEndDate());
+        keyStore.setKeyEntry(Constants.KEYSTORE_ALIAS, keyPair.getPrivate(), password, new Certificate[] { certificate });
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        keyStore.store(output, password);
+        SnapshotFile.writeAtomically(file, output.toByteArray());
+    }
+}
@@ -0,0 +1,199 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+final class StoreBackup {
+
+    static final byte[] MAGIC = { 'K', 'S', 'P', 'B' };
+    static final byte FORMAT_VERSION = 1;
+    static final int SALT_LENGTH = 16;
+    static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + SALT_LENGTH;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private StoreBackup() {
+    }
+
+    // Records are encrypted one by one with nonces bound to their position, ending with an empty record marked as last.
+    static final class Writer {
+
+        private final OutputStream output;
+        private final SecretKey key;
+        private final byte[] lengthBytes = new byte[4];
+        private long index;
+
+        Writer(final OutputStream output,
+               final char[] passphrase) throws GeneralSecurityException,
+                                               IOException {
+            final byte[] salt = new byte[SALT_LENGTH];
+            RANDOM.nextBytes(salt);
+            this.output = output;
+            this.key = deriveKey(passphrase, salt, Constants.BACKUP_KDF_ITERATIONS);
+
+            final byte[] header = new byte[HEADER_LENGTH];
+            System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+            header[MAGIC.length] = FORMAT_VERSION;
+            ValueCodec.writeInt(header, MAGIC.length + 1, Constants.BACKUP_KDF_ITERATIONS);
+            System.arraycopy(salt, 0, header, MAGIC.length + 1 + 4, SALT_LENGTH);
+            output.write(header);
+        }
+
+        void write(final String name,
+                   final Object value) throws GeneralSecurityException,
+                                              IOException {
+            final byte[] record = ValueCodec.encode(new NamedValue(name, value));
+            try {
+                writeRecord(record, false);
+            } finally {
+                Arrays.fill(record, (byte) 0);
+            }
+        }
+
+        void finish() throws GeneralSecurityException,
+                             IOException {
+            writeRecord(new byte[0], true);
+            output.flush();
+        }
+
+        private void writeRecord(final byte[] record,
+                                 final boolean last) throws GeneralSecurityException,
+                                                            IOException {
+            final CryptoMetrics metrics = Metrics.getRecorder();
+            final long start = Metrics.start(metrics);
+            final Cipher cipher = AesGcm.getCipher(Cipher.ENCRYPT_MODE, key, StreamFiles.getNonce(index++, last), 0);
+            final byte[] encryptedRecord = cipher.doFinal(record);
+            Metrics.operation(metrics, CryptoMetrics.Operation.AES_ENCRYPT, start, encryptedRecord.length, true);
+
+            ValueCodec.writeInt(lengthBytes, 0, encryptedRecord.length);
+            output.write(lengthBytes);
+            output.write(encryptedRecord);
+        }
+    }
+
+    static final class Reader {
+
+        private final InputStream input;
+        private final SecretKey key;
+        private final byte[] lengthBytes = new byte[4];
+        private long index;
+        private boolean finished;
+
+        Reader(final InputStream input,
+               final char[] passphrase) throws GeneralSecurityException,
+                                               IOException {
+            final byte[] header = new byte[HEADER_LENGTH];
+            readFully(input, header, header.length);
+            if (!Arrays.equals(MAGIC, Arrays.copyOf(header, MAGIC.length)) || header[MAGIC.length] != FORMAT_VERSION) {
+                throw new IOException("Not a backup file");
+            }
+
+            final int iterations = ValueCodec.readInt(header, MAGIC.length + 1);
+            // The count comes from the file, so it is capped before any work is done with it.
+            if (iterations <= 0 || iterations > Constants.BACKUP_MAX_KDF_ITERATIONS) {
+                throw new IOException("Unsupported key derivation iterations: " + iterations);
+            }
+
+            this.input = input;
+            this.key = deriveKey(passphrase, Arrays.copyOfRange(header, MAGIC.length + 1 + 4, HEADER_LENGTH), iterations);
+        }
+
+        // Returns null after the last record; a file cut off before it fails instead.
+        NamedValue read() throws GeneralSecurityException,
+                                 IOException {
+            if (finished) {
+                return null;
+            }
+
+            readFully(input, lengthBytes, lengthBytes.length);
+            final int encryptedLength = ValueCodec.readInt(lengthBytes, 0);
+            if (encryptedLength < StreamFiles.TAG_LENGTH || encryptedLength > Constants.MAX_INFLATED_VALUE_BYTES + StreamFiles.TAG_LENGTH) {
+                throw new IOException("Unexpected backup record length: " + encryptedLength);
+            }
+
+            final byte[] encryptedRecord = new byte[encryptedLength];
+            readFully(input, encryptedRecord, encryptedLength);
+            // Only the closing record is empty, so its length tells which nonce to expect.
+            final boolean last = encryptedLength == StreamFiles.TAG_LENGTH;
+
+            final CryptoMetrics metrics = Metrics.getRecorder();
+            final long start = Metrics.start(metrics);
+            final byte[] record;
+            try {
+                final Cipher cipher = AesGcm.getCipher(Cipher.DECRYPT_MODE, key, StreamFiles.getNonce(index++, last), 0);
+                record = cipher.doFinal(encryptedRecord);
+                Metrics.operation(metrics, CryptoMetrics.Operation.AES_DECRYPT, start, encryptedLength, true);
+            } catch (final GeneralSecurityException e) {
+                Metrics.operation(metrics, CryptoMetrics.Operation.AES_DECRYPT, start, encryptedLength, false);
+                throw e;
+            }
+
+            if (last) {
+                finished = true;
+                return null;
+            }
+
+            try {
+                final Object value = ValueCodec.decode(record, 0, record.length);
+                if (!(value instanceof NamedValue) || !isSupported(((NamedValue) value).value)) {
+                    throw new IOException("Unexpected backup record " + (index - 1));
+                }
+                return (NamedValue) value;
+            } catch (final IllegalArgumentException e) {
+                throw new IOException("Corrupted backup record " + (index - 1), e);
+            } finally {
+                Arrays.fill(record, (byte) 0);
+            }
+        }
+
+        private static boolean isSupported(final Object value) {
+            return value instanceof String
+                || value instanceof Integer
+                || value instanceof Long
+                || value instanceof Float
+                || value instanceof Boolean
+                || value instanceof Set;
+        }
+    }
+
+    // Derived once per file; every record is then a single AES-GCM operation.
+    private static SecretKey deriveKey(final char[] passphrase,
+                                       final byte[] salt,
+                                       final int iterations) throws GeneralSecurityException {
+        final CryptoMetrics metrics = Metrics.getRecorder();
+        final long start = Metrics.start(metrics);
+        final PBEKeySpec keySpec = new PBEKeySpec(passphrase, salt, iterations, Constants.DATA_KEY_SIZE_BITS);
+        try {
+            final SecretKeyFactory factory = SecretKeyFactory.getInstance(Constants.BACKUP_KDF_ALGORITHM);
+            final SecretKey key = new SecretKeySpec(factory.generateSecret(keySpec).getEncoded(), Constants.DATA_KEY_ALGORITHM);
+            Metrics.phase(metrics, CryptoMetrics.Phase.KEY_DERIVATION, start);
+            return key;
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+
+    private static void readFully(final InputStream input,
+                                  final byte[] buffer,
+                                  final int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            final int read = input.read(buffer, filled, length - filled);
+            if (read < 0) {
+                throw new EOFException("Backup file is truncated");
+            }
+            filled += read;
+        }
+    }
+}
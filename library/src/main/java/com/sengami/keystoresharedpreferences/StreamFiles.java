@@ -0,0 +1,248 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+final class StreamFiles {
+
+    static final byte[] MAGIC = { 'K', 'S', 'P', 'C' };
+    static final byte FORMAT_VERSION = 1;
+    static final int HEADER_LENGTH = MAGIC.length + 1;
+    static final int TAG_LENGTH = 16;
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    private static final String FILE_NAME_SEPARATOR = ".";
+    private static final int STORE_TAG_LENGTH = 8;
+    private static final int ENTRY_TAG_LENGTH = 16;
+    private static final int RANDOM_PART_LENGTH = 8;
+    // Store tag, entry tag and random part, so files the library did not write are never mistaken for its own.
+    private static final Pattern FILE_NAME_PATTERN = Pattern.compile("[0-9a-f]{" + STORE_TAG_LENGTH * 2 + "}\\.[0-9a-f]{" + ENTRY_TAG_LENGTH * 2 + "}\\.[0-9a-f]{" + RANDOM_PART_LENGTH * 2 + "}");
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final File directory;
+    private final int chunkSize;
+    private final CryptoBackend backend;
+    private final SharedPreferences sharedPreferences;
+    private volatile SecretKey fileNameKey;
+
+    StreamFiles(final File directory,
+                final int chunkSize,
+                final CryptoBackend backend,
+                final SharedPreferences sharedPreferences) {
+        this.directory = directory;
+        this.chunkSize = chunkSize;
+        this.backend = backend;
+        this.sharedPreferences = sharedPreferences;
+    }
+
+    StreamManifest write(final String storedKey,
+                         final InputStream input) throws IOException,
+                                                         GeneralSecurityException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        // Every stream gets its own key, so deterministic per-chunk nonces are never reused.
+        final SecretKey key = DataKeyProxy.generateDataKey();
+        final byte[] randomBytes = new byte[RANDOM_PART_LENGTH];
+        RANDOM.nextBytes(randomBytes);
+        final Mac mac = getMac(getFileNameKey());
+        final String fileName = getStoreTag(mac) + FILE_NAME_SEPARATOR + getEntryTag(mac, storedKey) + FILE_NAME_SEPARATOR + toHex(randomBytes, randomBytes.length);
+        final File file = new File(directory, fileName);
+        final File temporaryFile = new File(directory, fileName + TEMPORARY_FILE_SUFFIX);
+
+        final byte[] chunk = new byte[chunkSize];
+        final byte[] encryptedChunk = new byte[chunkSize + TAG_LENGTH];
+        final FileOutputStream output = new FileOutputStream(temporaryFile);
+        boolean written = false;
+        long length = 0;
+        try {
+            output.write(MAGIC);
+            output.write(FORMAT_VERSION);
+            int peekedByte = -1;
+            for (long index = 0; ; index++) {
+                int filled = 0;
+                if (peekedByte >= 0) {
+                    chunk[filled++] = (byte) peekedByte;
+                }
+                filled = readFully(input, chunk, filled);
+                // Reading one byte ahead tells whether this chunk is the last one without buffering another.
+                peekedByte = filled == chunkSize ? input.read() : -1;
+                final boolean last = peekedByte < 0;
+
+                final CryptoMetrics metrics = Metrics.getRecorder();
+                final long start = Metrics.start(metrics);
+                final Cipher cipher = AesGcm.getCipher(Cipher.ENCRYPT_MODE, key, getNonce(index, last), 0);
+                final int encryptedLength = cipher.doFinal(chunk, 0, filled, encryptedChunk, 0);
+                Metrics.operation(metrics, CryptoMetrics.Operation.AES_ENCRYPT, start, encryptedLength, true);
+                output.write(encryptedChunk, 0, encryptedLength);
+                length += filled;
+                if (last) {
+                    break;
+                }
+            }
+
+            output.flush();
+            output.getFD().sync();
+            written = true;
+        } finally {
+            output.close();
+            Arrays.fill(chunk, (byte) 0);
+            if (!written) {
+                temporaryFile.delete();
+            }
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IOException("Could not replace " + file);
+        }
+
+        return new StreamManifest(fileName, key.getEncoded(), length, chunkSize);
+    }
+
+    InputStream open(final StreamManifest manifest) throws IOException {
+        return new ChunkedInputStream(new File(directory, manifest.fileName), manifest);
+    }
+
+    void delete(final StreamManifest manifest) {
+        new File(directory, manifest.fileName).delete();
+    }
+
+    // Deletes this store's files of the given keys, except the ones their new manifests point at, or all of them when cleared.
+    void deleteReplaced(final Map<String, String> keptFileNames,
+                        final boolean cleared) {
+        try {
+            deleteFiles(getFileNameKey(), keptFileNames, cleared);
+        } catch (final Exception e) {
+            KeyStoreProxy.logError("Error deleting replaced streams", e);
+        }
+    }
+
+    // The data keys are gone by now, so only files named under a key derived before the reset can still be told apart.
+    synchronized void reset() {
+        if (fileNameKey != null) {
+            try {
+                deleteFiles(fileNameKey, Collections.<String, String>emptyMap(), true);
+            } catch (final Exception e) {
+                KeyStoreProxy.logError("Error deleting streams", e);
+            }
+        }
+        fileNameKey = null;
+    }
+
+    static SecretKey getKey(final StreamManifest manifest) {
+        return new SecretKeySpec(manifest.key, Constants.DATA_KEY_ALGORITHM);
+    }
+
+    // Binds every chunk to its position and marks the last one, so chunks cannot be reordered or cut off.
+    static byte[] getNonce(final long index,
+                           final boolean last) {
+        final byte[] nonce = new byte[Constants.DATA_KEY_IV_SIZE_BYTES];
+        ValueCodec.writeLong(nonce, 0, index);
+        ValueCodec.writeInt(nonce, 8, last ? 1 : 0);
+        return nonce;
+    }
+
+    private void deleteFiles(final SecretKey key,
+                             final Map<String, String> keptFileNames,
+                             final boolean cleared) throws GeneralSecurityException {
+        final String[] fileNames = directory.list();
+        if (fileNames == null) {
+            return;
+        }
+
+        final Mac mac = getMac(key);
+        final String storeTag = getStoreTag(mac);
+        final Set<String> replacedEntryTags = new HashSet<>();
+        for (final String storedKey : keptFileNames.keySet()) {
+            replacedEntryTags.add(getEntryTag(mac, storedKey));
+        }
+        final Collection<String> keptNames = keptFileNames.values();
+
+        for (final String fileName : fileNames) {
+            // Temporary files do not match either, as they belong to streams that are still being written.
+            if (!FILE_NAME_PATTERN.matcher(fileName).matches() || !fileName.startsWith(storeTag)) {
+                continue;
+            }
+
+            final String entryTag = fileName.substring(storeTag.length() + 1, fileName.lastIndexOf(FILE_NAME_SEPARATOR));
+            if ((cleared || replacedEntryTags.contains(entryTag)) && !keptNames.contains(fileName)) {
+                new File(directory, fileName).delete();
+            }
+        }
+    }
+
+    private SecretKey getFileNameKey() throws GeneralSecurityException,
+                                              IOException {
+        final SecretKey currentFileNameKey = fileNameKey;
+        if (currentFileNameKey != null) {
+            return currentFileNameKey;
+        }
+
+        synchronized (this) {
+            if (fileNameKey == null) {
+                fileNameKey = DataKeyProxy.deriveNameKey(backend, sharedPreferences, Constants.STREAM_FILE_KEY_LABEL);
+            }
+
+            return fileNameKey;
+        }
+    }
+
+    private static Mac getMac(final SecretKey key) throws GeneralSecurityException {
+        final Mac mac = Mac.getInstance(Constants.NAME_KEY_ALGORITHM);
+        mac.init(key);
+        return mac;
+    }
+
+    // Stores sharing a directory have different data keys, so each one only recognises its own files.
+    private static String getStoreTag(final Mac mac) {
+        return toHex(mac.doFinal(), STORE_TAG_LENGTH);
+    }
+
+    // Keyed, so the names do not reveal the stored keys even to a dictionary of likely ones.
+    private static String getEntryTag(final Mac mac,
+                                      final String storedKey) {
+        return toHex(mac.doFinal(String.valueOf(storedKey).getBytes(Constants.CHARSET)), ENTRY_TAG_LENGTH);
+    }
+
+    private static String toHex(final byte[] bytes,
+                                final int length) {
+        final StringBuilder builder = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            builder.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append(Character.forDigit(bytes[i] & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static int readFully(final InputStream input,
+                                 final byte[] buffer,
+                                 final int offset) throws IOException {
+        int filled = offset;
+        while (filled < buffer.length) {
+            final int read = input.read(buffer, filled, buffer.length - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+        }
+        return filled;
+    }
+}
@@ -0,0 +1,38 @@
+package com.sengami.keystoresharedpreferences;
+
+public final class StreamManifest {
+
+    final String fileName;
+    final byte[] key;
+    final long length;
+    final int chunkSize;
+
+    StreamManifest(final String fileName,
+                   final byte[] key,
+                   final long length,
+                   final int chunkSize) {
+        this.fileName = fileName;
+        this.key = key;
+        this.length = length;
+        this.chunkSize = chunkSize;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    // Stream entries are handed out without their file name and key, which only the store needs.
+    static Object withoutKey(final Object value) {
+        if (!(value instanceof StreamManifest)) {
+            return value;
+        }
+
+        final StreamManifest manifest = (StreamManifest) value;
+        return new StreamManifest(null, null, manifest.length, manifest.chunkSize);
+    }
+
+    int getChunkCount() {
+        // An empty stream still has one chunk, so its emptiness is authenticated too.
+        return length == 0 ? 1 : (int) ((length + chunkSize - 1) / chunkSize);
+    }
+}
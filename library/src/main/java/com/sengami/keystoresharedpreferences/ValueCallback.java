@@ -0,0 +1,6 @@
+package com.sengami.keystoresharedpreferences;
+
+public interface ValueCallback<T> {
+
+    void onValue(T value);
+}
@@ -0,0 +1,320 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+final class ValueCodec {
+
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_FLOAT = 4;
+    static final byte TYPE_BOOLEAN = 5;
+    static final byte TYPE_STRING_SET = 6;
+    static final byte TYPE_NAMED = 7;
+    static final byte TYPE_DEFLATED = 8;
+    static final byte TYPE_STREAM = 9;
+
+    static byte[] encode(final Object value) {
+        if (value instanceof String) {
+            final byte[] stringBytes = ((String) value).getBytes(Constants.CHARSET);
+            final byte[] bytes = new byte[1 + stringBytes.length];
+            bytes[0] = TYPE_STRING;
+            System.arraycopy(stringBytes, 0, bytes, 1, stringBytes.length);
+            return bytes;
+        } else if (value instanceof Integer) {
+            final byte[] bytes = new byte[1 + 4];
+            bytes[0] = TYPE_INT;
+            writeInt(bytes, 1, (Integer) value);
+            return bytes;
+        } else if (value instanceof Long) {
+            final byte[] bytes = new byte[1 + 8];
+            bytes[0] = TYPE_LONG;
+            writeLong(bytes, 1, (Long) value);
+            return bytes;
+        } else if (value instanceof Float) {
+            final byte[] bytes = new byte[1 + 4];
+            bytes[0] = TYPE_FLOAT;
+            writeInt(bytes, 1, Float.floatToIntBits((Float) value));
+            return bytes;
+        } else if (value instanceof Boolean) {
+            return new byte[] { TYPE_BOOLEAN, (byte) ((Boolean) value ? 1 : 0) };
+        } else if (value instanceof Set) {
+            return encodeStringSet((Set<?>) value);
+        } else if (value instanceof NamedValue) {
+            return encodeNamedValue((NamedValue) value);
+        } else if (value instanceof StreamManifest) {
+            return encodeStreamManifest((StreamManifest) value);
+        }
+
+        throw new IllegalArgumentException("Unsupported value type: " + value.getClass().getName());
+    }
+
+    static Object decode(final byte[] bytes,
+                         final int offset,
+                         final int length) {
+        if (length < 1) {
+            throw new IllegalArgumentException("Empty value");
+        }
+
+        final byte type = bytes[offset];
+        final int dataOffset = offset + 1;
+        final int dataLength = length - 1;
+        switch (type) {
+            case TYPE_STRING:
+                return new String(bytes, dataOffset, dataLength, Constants.CHARSET);
+            case TYPE_INT:
+                checkLength(dataLength, 4);
+                return readInt(bytes, dataOffset);
+            case TYPE_LONG:
+                checkLength(dataLength, 8);
+                return readLong(bytes, dataOffset);
+            case TYPE_FLOAT:
+                checkLength(dataLength, 4);
+                return Float.intBitsToFloat(readInt(bytes, dataOffset));
+            case TYPE_BOOLEAN:
+                checkLength(dataLength, 1);
+                return bytes[dataOffset] != 0;
+            case TYPE_STRING_SET:
+                return decodeStringSet(bytes, dataOffset, dataLength);
+            case TYPE_NAMED:
+                return decodeNamedValue(bytes, dataOffset, dataLength);
+            case TYPE_DEFLATED:
+                return decodeDeflated(bytes, dataOffset, dataLength);
+            case TYPE_STREAM:
+                return decodeStreamManifest(bytes, dataOffset, dataLength);
+            default:
+                throw new IllegalArgumentException("Unknown value type: " + type);
+        }
+    }
+
+    // Returns null when deflating would not make the encoded value any smaller.
+    static byte[] deflate(final byte[] bytes) {
+        if (bytes.length <= 1 + 4 || bytes.length > Constants.MAX_INFLATED_VALUE_BYTES) {
+            return null;
+        }
+
+        final Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            final byte[] deflatedBytes = new byte[bytes.length];
+            deflatedBytes[0] = TYPE_DEFLATED;
+            writeInt(deflatedBytes, 1, bytes.length);
+            int length = 1 + 4;
+            // The output never grows past the input, so an incompressible value costs one buffer and is dropped.
+            while (!deflater.finished() && length < deflatedBytes.length) {
+                length += deflater.deflate(deflatedBytes, length, deflatedBytes.length - length);
+            }
+
+            return deflater.finished() && length < deflatedBytes.length ? Arrays.copyOf(deflatedBytes, length) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static int readInt(final byte[] bytes,
+                       final int offset) {
+        return (bytes[offset] & 0xFF) << 24
+            | (bytes[offset + 1] & 0xFF) << 16
+            | (bytes[offset + 2] & 0xFF) << 8
+            | (bytes[offset + 3] & 0xFF);
+    }
+
+    static long readLong(final byte[] bytes,
+                         final int offset) {
+        return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    static void writeInt(final byte[] bytes,
+                         final int offset,
+                         final int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    static void writeLong(final byte[] bytes,
+                          final int offset,
+                          final long value) {
+        writeInt(bytes, offset, (int) (value >>> 32));
+        writeInt(bytes, offset + 4, (int) value);
+    }
+
+    private static byte[] encodeStringSet(final Set<?> values) {
+        final byte[][] encodedValues = new byte[values.size()][];
+        int length = 1 + 4;
+        int index = 0;
+        for (final Object value : values) {
+            encodedValues[index] = ((String) value).getBytes(Constants.CHARSET);
+            length += 4 + encodedValues[index].length;
+            index++;
+        }
+
+        final byte[] bytes = new byte[length];
+        bytes[0] = TYPE_STRING_SET;
+        writeInt(bytes, 1, encodedValues.length);
+        int offset = 1 + 4;
+        for (final byte[] encodedValue : encodedValues) {
+            writeInt(bytes, offset, encodedValue.length);
+            System.arraycopy(encodedValue, 0, bytes, offset + 4, encodedValue.length);
+            offset += 4 + encodedValue.length;
+        }
+
+        return bytes;
+    }
+
+    private static Set<String> decodeStringSet(final byte[] bytes,
+                                               final int offset,
+                                               final int length) {
+        final int end = offset + length;
+        checkRemaining(offset, 4, end);
+        final int count = readInt(bytes, offset);
+        final Set<String> values = new HashSet<>();
+        int position = offset + 4;
+        for (int i = 0; i < count; i++) {
+            checkRemaining(position, 4, end);
+            final int valueLength = readInt(bytes, position);
+            position += 4;
+            checkRemaining(position, valueLength, end);
+            values.add(new String(bytes, position, valueLength, Constants.CHARSET));
+            position += valueLength;
+        }
+
+        checkLength(end - position, 0);
+        return values;
+    }
+
+    // The value is left out for the marker element that carries the name of a string set.
+    private static byte[] encodeNamedValue(final NamedValue namedValue) {
+        if (namedValue.value instanceof NamedValue) {
+            throw new IllegalArgumentException("Nested named value");
+        }
+
+        final byte[] nameBytes = namedValue.name.getBytes(Constants.CHARSET);
+        final byte[] valueBytes = namedValue.value != null ? encode(namedValue.value) : new byte[0];
+        final byte[] bytes = new byte[1 + 4 + nameBytes.length + valueBytes.length];
+        bytes[0] = TYPE_NAMED;
+        writeInt(bytes, 1, nameBytes.length);
+        System.arraycopy(nameBytes, 0, bytes, 1 + 4, nameBytes.length);
+        System.arraycopy(valueBytes, 0, bytes, 1 + 4 + nameBytes.length, valueBytes.length);
+        return bytes;
+    }
+
+    private static NamedValue decodeNamedValue(final byte[] bytes,
+                                               final int offset,
+                                               final int length) {
+        final int end = offset + length;
+        checkRemaining(offset, 4, end);
+        final int nameLength = readInt(bytes, offset);
+        checkRemaining(offset + 4, nameLength, end);
+        final String name = new String(bytes, offset + 4, nameLength, Constants.CHARSET);
+        final int valueOffset = offset + 4 + nameLength;
+        if (valueOffset == end) {
+            return new NamedValue(name, null);
+        }
+
+        if (bytes[valueOffset] == TYPE_NAMED) {
+            throw new IllegalArgumentException("Nested named value");
+        }
+        return new NamedValue(name, decode(bytes, valueOffset, end - valueOffset));
+    }
+
+    private static byte[] encodeStreamManifest(final StreamManifest manifest) {
+        final byte[] fileNameBytes = manifest.fileName.getBytes(Constants.CHARSET);
+        final byte[] bytes = new byte[1 + 4 + fileNameBytes.length + 4 + manifest.key.length + 8 + 4];
+        bytes[0] = TYPE_STREAM;
+        int offset = 1;
+        writeInt(bytes, offset, fileNameBytes.length);
+        System.arraycopy(fileNameBytes, 0, bytes, offset + 4, fileNameBytes.length);
+        offset += 4 + fileNameBytes.length;
+        writeInt(bytes, offset, manifest.key.length);
+        System.arraycopy(manifest.key, 0, bytes, offset + 4, manifest.key.length);
+        offset += 4 + manifest.key.length;
+        writeLong(bytes, offset, manifest.length);
+        writeInt(bytes, offset + 8, manifest.chunkSize);
+        return bytes;
+    }
+
+    private static StreamManifest decodeStreamManifest(final byte[] bytes,
+                                                       final int offset,
+                                                       final int length) {
+        final int end = offset + length;
+        checkRemaining(offset, 4, end);
+        final int fileNameLength = readInt(bytes, offset);
+        checkRemaining(offset + 4, fileNameLength, end);
+        final String fileName = new String(bytes, offset + 4, fileNameLength, Constants.CHARSET);
+        int position = offset + 4 + fileNameLength;
+        checkRemaining(position, 4, end);
+        final int keyLength = readInt(bytes, position);
+        checkRemaining(position + 4, keyLength, end);
+        final byte[] key = Arrays.copyOfRange(bytes, position + 4, position + 4 + keyLength);
+        position += 4 + keyLength;
+        checkLength(end - position, 8 + 4);
+        final long streamLength = readLong(bytes, position);
+        final int chunkSize = readInt(bytes, position + 8);
+        if (streamLength < 0 || chunkSize < 1 || fileName.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Invalid stream manifest");
+        }
+        return new StreamManifest(fileName, key, streamLength, chunkSize);
+    }
+
+    private static Object decodeDeflated(final byte[] bytes,
+                                         final int offset,
+                                         final int length) {
+        checkRemaining(offset, 4, offset + length);
+        final int inflatedLength = readInt(bytes, offset);
+        // Checked before anything is allocated, so a forged length cannot exhaust memory.
+        if (inflatedLength < 1 || inflatedLength > Constants.MAX_INFLATED_VALUE_BYTES) {
+            throw new IllegalArgumentException("Invalid inflated length: " + inflatedLength);
+        }
+
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, offset + 4, length - 4);
+            final byte[] inflatedBytes = new byte[inflatedLength];
+            int position = 0;
+            while (position < inflatedLength) {
+                final int count = inflater.inflate(inflatedBytes, position, inflatedLength - position);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated value");
+                }
+                position += count;
+            }
+
+            // Output past the declared length is never written anywhere; it only marks the value as invalid.
+            if (!inflater.finished() && (inflater.inflate(new byte[1]) != 0 || !inflater.finished())) {
+                throw new IllegalArgumentException("Invalid inflated length: " + inflatedLength);
+            }
+
+            if (inflatedBytes[0] == TYPE_DEFLATED) {
+                throw new IllegalArgumentException("Nested deflated value");
+            }
+            return decode(inflatedBytes, 0, inflatedLength);
+        } catch (final DataFormatException e) {
+            throw new IllegalArgumentException("Invalid deflated value", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void checkRemaining(final int position,
+                                       final int length,
+                                       final int end) {
+        if (length < 0 || length > end - position) {
+            throw new IllegalArgumentException("Truncated value");
+        }
+    }
+
+    private static void checkLength(final int actualLength,
+                                    final int expectedLength) {
+        if (actualLength != expectedLength) {
+            throw new IllegalArgumentException("Invalid value length: " + actualLength);
+        }
+    }
+}
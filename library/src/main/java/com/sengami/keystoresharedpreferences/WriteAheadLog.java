@@ -0,0 +1,377 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+import javax.crypto.SecretKey;
+
+public final class WriteAheadLog implements SnapshotStorage {
+
+    private static final String LOG_FILE_SUFFIX = ".log";
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    private final File snapshotFile;
+    private final File logFile;
+    private final SecretKey key;
+    private final Executor executor;
+    private final long maxLogSizeBytes;
+    private final float maxLogToSnapshotRatio;
+    // Package-private so tests can make an append fail partway.
+    FileOutputStream logOutput;
+    private boolean compactionScheduled;
+    private volatile long logSizeBytes;
+    private volatile long snapshotSizeBytes;
+    private volatile long replayedRecordCount;
+    private volatile long droppedBytes;
+    private volatile long lastReplayNanos;
+    private volatile long lastCompactionNanos;
+    private volatile long compactionCount;
+
+    public WriteAheadLog(final File snapshotFile,
+                         final SecretKey key,
+                         final Executor executor,
+                         final long maxLogSizeBytes,
+                         final float maxLogToSnapshotRatio) {
+        this.snapshotFile = snapshotFile;
+        this.logFile = new File(snapshotFile.getPath() + LOG_FILE_SUFFIX);
+        this.key = key;
+        this.executor = executor;
+        this.maxLogSizeBytes = maxLogSizeBytes;
+        this.maxLogToSnapshotRatio = maxLogToSnapshotRatio;
+    }
+
+    public long getLogSizeBytes() {
+        return logSizeBytes;
+    }
+
+    public long getSnapshotSizeBytes() {
+        return snapshotSizeBytes;
+    }
+
+    public long getReplayedRecordCount() {
+        return replayedRecordCount;
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public long getLastReplayNanos() {
+        return lastReplayNanos;
+    }
+
+    public long getLastCompactionNanos() {
+        return lastCompactionNanos;
+    }
+
+    public long getCompactionCount() {
+        return compactionCount;
+    }
+
+    public File getLogFile() {
+        return logFile;
+    }
+
+    @Override
+    public synchronized Map<String, Object> load() throws IOException,
+                                                          GeneralSecurityException {
+        final long start = System.nanoTime();
+        final Map<String, Object> values = SnapshotFile.read(snapshotFile, key);
+        snapshotSizeBytes = snapshotFile.length();
+
+        final byte[] log = logFile.exists() ? readFully(logFile) : new byte[0];
+        int position = 0;
+        long recordCount = 0;
+        while (true) {
+            final int recordLength = readRecord(log, position, values);
+            if (recordLength < 0) {
+                break;
+            }
+
+            position += recordLength;
+            recordCount++;
+        }
+
+        if (position < log.length) {
+            truncateLog(position);
+        }
+
+        droppedBytes = log.length - position;
+        replayedRecordCount = recordCount;
+        logSizeBytes = position;
+        logOutput = new FileOutputStream(logFile, true);
+        lastReplayNanos = System.nanoTime() - start;
+        return values;
+    }
+
+    @Override
+    public void write(final List<WriteBatch> batches,
+                      final Source source) throws IOException,
+                                                  GeneralSecurityException {
+        final boolean compactionNeeded;
+        synchronized (this) {
+            final ByteArrayOutputStream records = new ByteArrayOutputStream();
+            for (final WriteBatch batch : batches) {
+                writeRecord(records, batch);
+            }
+
+            try {
+                records.writeTo(logOutput);
+                logOutput.flush();
+                logOutput.getFD().sync();
+            } catch (final IOException e) {
+                discardFailedAppend();
+                throw e;
+            }
+            logSizeBytes += records.size();
+
+            compactionNeeded = !compactionScheduled && isCompactionNeeded();
+            compactionScheduled |= compactionNeeded;
+        }
+
+        if (compactionNeeded) {
+            scheduleCompaction(source);
+        }
+    }
+
+    public synchronized void compact(final Source source) throws IOException,
+                                                                 GeneralSecurityException {
+        final long start = System.nanoTime();
+        try {
+            SnapshotFile.write(snapshotFile, key, source.snapshot());
+            logOutput.close();
+            try {
+                logOutput = new FileOutputStream(logFile, false);
+            } catch (final IOException e) {
+                // Later writes must not go to the closed stream, so they keep appending to the log as it was.
+                logOutput = new FileOutputStream(logFile, true);
+                throw e;
+            }
+            logOutput.getFD().sync();
+            snapshotSizeBytes = snapshotFile.length();
+            logSizeBytes = 0;
+            compactionCount++;
+        } finally {
+            compactionScheduled = false;
+            lastCompactionNanos = System.nanoTime() - start;
+        }
+    }
+
+    private boolean isCompactionNeeded() {
+        return logSizeBytes > maxLogSizeBytes
+            || logSizeBytes > maxLogToSnapshotRatio * Math.max(snapshotSizeBytes, RECORD_HEADER_LENGTH);
+    }
+
+    private void scheduleCompaction(final Source source) {
+        final Runnable compaction = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact(source);
+                } catch (final IOException | GeneralSecurityException e) {
+                    KeyStoreProxy.logError("Error compacting " + logFile, e);
+                }
+            }
+        };
+
+        if (executor == null) {
+            compaction.run();
+            return;
+        }
+
+        try {
+            executor.execute(compaction);
+        } catch (final RejectedExecutionException e) {
+            compaction.run();
+        }
+    }
+
+    private void writeRecord(final ByteArrayOutputStream records,
+                             final WriteBatch batch) throws GeneralSecurityException {
+        final byte[] plaintext = encodeBatch(batch);
+        final byte[] payload;
+        try {
+            payload = AesGcm.encrypt(key, plaintext, 0, plaintext.length);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+
+        final byte[] header = new byte[RECORD_HEADER_LENGTH];
+        ValueCodec.writeInt(header, 0, payload.length);
+        ValueCodec.writeInt(header, 4, (int) checksum(payload, 0, payload.length));
+        records.write(header, 0, header.length);
+        records.write(payload, 0, payload.length);
+    }
+
+    private int readRecord(final byte[] log,
+                           final int position,
+                           final Map<String, Object> values) {
+        if (log.length - position < RECORD_HEADER_LENGTH) {
+            return -1;
+        }
+
+        final int payloadLength = ValueCodec.readInt(log, position);
+        final int payloadOffset = position + RECORD_HEADER_LENGTH;
+        if (payloadLength < 0 || payloadLength > log.length - payloadOffset) {
+            return -1;
+        }
+        if ((int) checksum(log, payloadOffset, payloadLength) != ValueCodec.readInt(log, position + 4)) {
+            return -1;
+        }
+
+        try {
+            final byte[] plaintext = AesGcm.decrypt(key, log, payloadOffset, payloadLength);
+            try {
+                applyBatch(plaintext, values);
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+        } catch (final GeneralSecurityException | IOException e) {
+            return -1;
+        }
+
+        return RECORD_HEADER_LENGTH + payloadLength;
+    }
+
+    private static byte[] encodeBatch(final WriteBatch batch) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] intBytes = new byte[4];
+        output.write(batch.cleared ? 1 : 0);
+        ValueCodec.writeInt(intBytes, 0, batch.mutations.size());
+        output.write(intBytes, 0, intBytes.length);
+        for (final Map.Entry<String, Object> mutation : batch.mutations.entrySet()) {
+            final byte[] keyBytes = mutation.getKey().getBytes(Constants.CHARSET);
+            ValueCodec.writeInt(intBytes, 0, keyBytes.length);
+            output.write(intBytes, 0, intBytes.length);
+            output.write(keyBytes, 0, keyBytes.length);
+
+            // A removal is written as an empty value, which ValueCodec never produces.
+            final byte[] valueBytes = mutation.getValue() == WriteBatch.REMOVED ? new byte[0] : ValueCodec.encode(mutation.getValue());
+            ValueCodec.writeInt(intBytes, 0, valueBytes.length);
+            output.write(intBytes, 0, intBytes.length);
+            output.write(valueBytes, 0, valueBytes.length);
+        }
+
+        return output.toByteArray();
+    }
+
+    private static void applyBatch(final byte[] bytes,
+                                   final Map<String, Object> values) throws IOException {
+        if (bytes.length < 1 + 4) {
+            throw new IOException("Truncated record");
+        }
+
+        final boolean cleared = bytes[0] != 0;
+        final int count = ValueCodec.readInt(bytes, 1);
+        int position = 1 + 4;
+        final Map<String, Object> mutations = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            final int keyLength = readLength(bytes, position);
+            position += 4;
+            final String key = new String(bytes, position, keyLength, Constants.CHARSET);
+            position += keyLength;
+
+            final int valueLength = readLength(bytes, position);
+            position += 4;
+            try {
+                mutations.put(key, valueLength == 0 ? WriteBatch.REMOVED : ValueCodec.decode(bytes, position, valueLength));
+            } catch (final IllegalArgumentException e) {
+                throw new IOException("Invalid value for " + key, e);
+            }
+            position += valueLength;
+        }
+
+        if (position != bytes.length) {
+            throw new IOException("Unexpected trailing bytes");
+        }
+
+        if (cleared) {
+            values.clear();
+        }
+        for (final Map.Entry<String, Object> mutation : mutations.entrySet()) {
+            if (mutation.getValue() == WriteBatch.REMOVED) {
+                values.remove(mutation.getKey());
+            } else {
+                values.put(mutation.getKey(), mutation.getValue());
+            }
+        }
+    }
+
+    private static int readLength(final byte[] bytes,
+                                  final int position) throws IOException {
+        if (bytes.length - position < 4) {
+            throw new IOException("Truncated record");
+        }
+
+        final int length = ValueCodec.readInt(bytes, position);
+        if (length < 0 || length > bytes.length - position - 4) {
+            throw new IOException("Invalid length: " + length);
+        }
+
+        return length;
+    }
+
+    private static long checksum(final byte[] bytes,
+                                 final int offset,
+                                 final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+
+    // Replay stops at the first torn record and drops everything after it, so a partly written append is cut off again
+    // before the same batches are retried. Should that fail, the stream stays closed and the next write tries again.
+    private void discardFailedAppend() {
+        try {
+            logOutput.close();
+        } catch (final IOException e) {
+            KeyStoreProxy.logError("Error closing " + logFile, e);
+        }
+
+        try {
+            truncateLog(logSizeBytes);
+            logOutput = new FileOutputStream(logFile, true);
+        } catch (final IOException e) {
+            KeyStoreProxy.logError("Error restoring " + logFile, e);
+        }
+    }
+
+    private void truncateLog(final long length) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        try {
+            file.setLength(length);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    private static byte[] readFully(final File file) throws IOException {
+        final InputStream input = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream((int) file.length());
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.sengami.keystoresharedpreferences;
+
+import java.util.Map;
+
+final class WriteBatch {
+
+    static final Object REMOVED = new Object();
+
+    interface Writer {
+
+        boolean write(WriteBatch batch,
+                      boolean synchronous);
+    }
+
+    final Map<String, Object> mutations;
+    final boolean cleared;
+    final Writer writer;
+
+    WriteBatch(final Map<String, Object> mutations,
+               final boolean cleared,
+               final Writer writer) {
+        this.mutations = mutations;
+        this.cleared = cleared;
+        this.writer = writer;
+    }
+}
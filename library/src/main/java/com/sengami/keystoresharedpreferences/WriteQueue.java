@@ -0,0 +1,145 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+final class WriteQueue {
+
+    static final Object NOT_PENDING = new Object();
+
+    private final Executor executor;
+    private final Runnable afterWrite;
+    private final Object writeLock = new Object();
+    private final ArrayDeque<WriteBatch> pendingBatches = new ArrayDeque<>();
+    private volatile int pendingCount;
+
+    WriteQueue(final Executor executor) {
+        this(executor, null);
+    }
+
+    WriteQueue(final Executor executor,
+               final Runnable afterWrite) {
+        this.executor = executor;
+        this.afterWrite = afterWrite;
+    }
+
+    Object getPending(final String key) {
+        if (pendingCount == 0) {
+            return NOT_PENDING;
+        }
+
+        synchronized (pendingBatches) {
+            final Iterator<WriteBatch> newestFirst = pendingBatches.descendingIterator();
+            while (newestFirst.hasNext()) {
+                final WriteBatch batch = newestFirst.next();
+                if (batch.mutations.containsKey(key)) {
+                    return batch.mutations.get(key);
+                }
+                if (batch.cleared) {
+                    return WriteBatch.REMOVED;
+                }
+            }
+        }
+
+        return NOT_PENDING;
+    }
+
+    WriteBatch[] readWithPending(final SharedPreferences sharedPreferences,
+                                 final Map<String, Object> values) {
+        synchronized (pendingBatches) {
+            values.putAll(sharedPreferences.getAll());
+            return pendingBatches.toArray(new WriteBatch[0]);
+        }
+    }
+
+    static void applyPending(final Map<String, Object> values,
+                             final WriteBatch[] batches) {
+        for (final WriteBatch batch : batches) {
+            if (batch.cleared) {
+                values.clear();
+            }
+
+            for (final Map.Entry<String, Object> mutation : batch.mutations.entrySet()) {
+                if (mutation.getValue() == WriteBatch.REMOVED) {
+                    values.remove(mutation.getKey());
+                } else {
+                    values.put(mutation.getKey(), mutation.getValue());
+                }
+            }
+        }
+    }
+
+    // Queued batches are visible to reads right away but only reach the wrapped editor once the executor has encrypted them.
+    void apply(final WriteBatch batch) {
+        synchronized (pendingBatches) {
+            pendingBatches.addLast(batch);
+            pendingCount = pendingBatches.size();
+        }
+
+        if (executor == null) {
+            flush();
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            flush();
+        }
+    }
+
+    boolean commit(final WriteBatch batch) {
+        final boolean result;
+        synchronized (writeLock) {
+            flush();
+            result = batch.writer.write(batch, true);
+        }
+        runAfterWrite();
+        return result;
+    }
+
+    void runExclusively(final Runnable task) {
+        synchronized (writeLock) {
+            flush();
+            task.run();
+        }
+        runAfterWrite();
+    }
+
+    void flush() {
+        synchronized (writeLock) {
+            WriteBatch batch;
+            while ((batch = peekPending()) != null) {
+                batch.writer.write(batch, false);
+                synchronized (pendingBatches) {
+                    pendingBatches.removeFirst();
+                    pendingCount = pendingBatches.size();
+                }
+            }
+        }
+        runAfterWrite();
+    }
+
+    // Runs only once the outermost write has let go of the lock, so the hook may start writes of its own.
+    private void runAfterWrite() {
+        if (afterWrite != null && !Thread.holdsLock(writeLock)) {
+            afterWrite.run();
+        }
+    }
+
+    private WriteBatch peekPending() {
+        synchronized (pendingBatches) {
+            return pendingBatches.peekFirst();
+        }
+    }
+}
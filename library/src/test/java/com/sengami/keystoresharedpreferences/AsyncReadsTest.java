@@ -0,0 +1,177 @@
+package com.sengami.keystoresharedpreferences;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncReadsTest {
+
+    private final ArrayDeque<Runnable> queuedTasks = new ArrayDeque<>();
+    private final AtomicInteger loads = new AtomicInteger();
+    private final AsyncReads reads = new AsyncReads(new Executor() {
+        @Override
+        public void execute(final Runnable task) {
+            queuedTasks.addLast(task);
+        }
+    }, new AsyncReads.Loader() {
+        @Override
+        public Object load(final String key) {
+            loads.incrementAndGet();
+            return "42";
+        }
+    });
+    private final AsyncValue.Converter<String> stringConverter = new AsyncValue.Converter<String>() {
+        @Override
+        public String convert(final Object decryptedValue) {
+            return (String) decryptedValue;
+        }
+    };
+    private final AsyncValue.Converter<Integer> intConverter = new AsyncValue.Converter<Integer>() {
+        @Override
+        public Integer convert(final Object decryptedValue) {
+            return decryptedValue != null ? Integer.valueOf((String) decryptedValue) : -1;
+        }
+    };
+
+    @Test
+    public void queuedReadsOfSameKeyShareOneLoad() throws Exception {
+        final AsyncValue<String> first = reads.read("key", stringConverter);
+        final AsyncValue<String> second = reads.read("key", stringConverter);
+        final AsyncValue<Integer> third = reads.read("key", intConverter);
+        final AsyncValue<String> other = reads.read("other_key", stringConverter);
+
+        assertEquals(2, queuedTasks.size());
+        runQueuedTasks();
+
+        assertEquals(2, loads.get());
+        assertEquals("42", first.get());
+        assertEquals("42", second.get());
+        assertEquals(Integer.valueOf(42), third.get());
+        assertEquals("42", other.get());
+        assertEquals(0, reads.getQueuedCount());
+    }
+
+    @Test
+    public void readAfterLoadStartedLoadsAgain() throws Exception {
+        final AtomicReference<AsyncValue<String>> lateRead = new AtomicReference<>();
+        final AtomicReference<AsyncReads> reentrantReads = new AtomicReference<>();
+        reentrantReads.set(new AsyncReads(new Executor() {
+            @Override
+            public void execute(final Runnable task) {
+                queuedTasks.addLast(task);
+            }
+        }, new AsyncReads.Loader() {
+            @Override
+            public Object load(final String key) {
+                // A read requested while the value is being loaded may miss a concurrent write, so it must not join.
+                if (loads.incrementAndGet() == 1) {
+                    lateRead.set(reentrantReads.get().read(key, stringConverter));
+                }
+                return "42";
+            }
+        }));
+
+        final AsyncValue<String> first = reentrantReads.get().read("key", stringConverter);
+        runQueuedTasks();
+
+        assertEquals(2, loads.get());
+        assertEquals("42", first.get());
+        assertEquals("42", lateRead.get().get());
+    }
+
+    @Test
+    public void readIsSkippedWhenEveryCallerCancels() throws Exception {
+        final AsyncValue<String> first = reads.read("key", stringConverter);
+        final AsyncValue<String> second = reads.read("key", stringConverter);
+
+        assertTrue(first.cancel(false));
+        assertTrue(second.cancel(false));
+        assertFalse(second.cancel(false));
+        runQueuedTasks();
+
+        assertEquals(0, loads.get());
+        assertTrue(first.isCancelled());
+        assertTrue(first.isDone());
+        try {
+            first.get();
+            fail();
+        } catch (final CancellationException expected) {
+        }
+        assertEquals(0, reads.getQueuedCount());
+    }
+
+    @Test
+    public void remainingCallersReceiveValueAfterPartialCancellation() throws Exception {
+        final AtomicReference<String> callbackValue = new AtomicReference<>();
+        final AtomicInteger callbackCount = new AtomicInteger();
+        final AsyncValue<String> cancelled = reads.read("key", stringConverter);
+        final AsyncValue<String> kept = reads.read("key", stringConverter).addCallback(new ValueCallback<String>() {
+            @Override
+            public void onValue(final String value) {
+                callbackValue.set(value);
+                callbackCount.incrementAndGet();
+            }
+        });
+        cancelled.addCallback(new ValueCallback<String>() {
+            @Override
+            public void onValue(final String value) {
+                fail();
+            }
+        });
+
+        cancelled.cancel(false);
+        runQueuedTasks();
+
+        assertEquals(1, loads.get());
+        assertEquals("42", kept.get());
+        assertEquals("42", callbackValue.get());
+        assertEquals(1, callbackCount.get());
+        assertFalse(kept.cancel(false));
+    }
+
+    @Test
+    public void callbackAddedAfterCompletionRunsImmediately() {
+        final AsyncValue<String> value = reads.read("key", stringConverter);
+        runQueuedTasks();
+
+        final AtomicReference<String> callbackValue = new AtomicReference<>();
+        value.addCallback(new ValueCallback<String>() {
+            @Override
+            public void onValue(final String value) {
+                callbackValue.set(value);
+            }
+        });
+
+        assertEquals("42", callbackValue.get());
+    }
+
+    @Test
+    public void failedLoadCompletesWithDefault() throws Exception {
+        final AsyncReads failingReads = new AsyncReads(null, new AsyncReads.Loader() {
+            @Override
+            public Object load(final String key) {
+                throw new IllegalStateException();
+            }
+        });
+
+        assertEquals(Integer.valueOf(-1), failingReads.read("key", intConverter).get());
+        assertNull(failingReads.read("key", stringConverter).get());
+    }
+
+    private void runQueuedTasks() {
+        Runnable task;
+        while ((task = queuedTasks.pollFirst()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.sengami.keystoresharedpreferences;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Base64CodecTest {
+
+    private static final int MAX_LENGTH = 300;
+
+    @Test
+    public void unwrappedEncodingRoundTrips() {
+        final Random random = new Random(42);
+        for (int length = 0; length < MAX_LENGTH; length++) {
+            final byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+
+            final String encoded = Base64Codec.encode(bytes, 0, bytes.length, false);
+
+            assertEquals(java.util.Base64.getEncoder().encodeToString(bytes), encoded);
+            assertArrayEquals(bytes, Base64Codec.decode(encoded, 0));
+        }
+    }
+
+    @Test
+    public void wrappedEncodingEndsEveryLineWithNewline() {
+        final Random random = new Random(42);
+        for (int length = 1; length < MAX_LENGTH; length++) {
+            final byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+
+            final String encoded = Base64Codec.encode(bytes, 0, bytes.length, true);
+            final String expected = java.util.Base64.getMimeEncoder().encodeToString(bytes).replace("\r\n", "\n") + "\n";
+
+            assertEquals(expected, encoded);
+            assertArrayEquals(bytes, Base64Codec.decode(encoded, 0));
+        }
+    }
+
+    @Test
+    public void decodingStartsAtOffset() {
+        final byte[] bytes = { 1, 2, 3, 4 };
+
+        assertArrayEquals(bytes, Base64Codec.decode("#" + Base64Codec.encode(bytes, 0, bytes.length, false), 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCharacterIsRejected() {
+        Base64Codec.decode("AB*D", 0);
+    }
+}
@@ -0,0 +1,30 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BuffersTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void decryptedPlaintextIsNotLeftInBuffer() {
+        final CryptoBackend backend = new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), "test.p12"), "password".toCharArray());
+        final SharedPreferences sharedPreferences = new InMemorySharedPreferences();
+        final String encryptedValue = DataKeyProxy.encryptValue(backend, sharedPreferences, "secret value");
+
+        assertEquals("secret value", DataKeyProxy.decryptValue(backend, sharedPreferences, encryptedValue));
+
+        final byte[] buffer = Buffers.get(1);
+        assertArrayEquals(new byte[buffer.length], buffer);
+    }
+}
@@ -0,0 +1,231 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeNotificationTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final InMemoryMetricsRecorder recorder = new InMemoryMetricsRecorder();
+    private final List<ChangeBatch> batches = new ArrayList<>();
+    private final ValueCallback<ChangeBatch> batchCollector = new ValueCallback<ChangeBatch>() {
+        @Override
+        public void onValue(final ChangeBatch batch) {
+            batches.add(batch);
+        }
+    };
+    private final AtomicInteger plaintextChanges = new AtomicInteger();
+    private final SharedPreferences.OnSharedPreferenceChangeListener plaintextListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences,
+                                              final String key) {
+            plaintextChanges.incrementAndGet();
+        }
+    };
+    private CryptoBackend backend;
+    private SharedPreferences plaintextSharedPreferences;
+
+    @Before
+    public void before() {
+        backend = new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), "test.p12"), "password".toCharArray());
+        plaintextSharedPreferences = new InMemorySharedPreferences();
+        Metrics.setRecorder(recorder);
+    }
+
+    @After
+    public void after() {
+        Metrics.setRecorder(null);
+    }
+
+    @Test
+    public void rewritingSameValueIsNotWritten() {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences();
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .putStringSet("b", new LinkedHashSet<>(Arrays.asList("x", "y")))
+            .commit();
+        final String ciphertext = plaintextSharedPreferences.getString("a", null);
+        plaintextSharedPreferences.registerOnSharedPreferenceChangeListener(plaintextListener);
+
+        assertTrue(sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .putStringSet("b", new LinkedHashSet<>(Arrays.asList("y", "x")))
+            .remove("missing")
+            .commit());
+
+        assertEquals(0, plaintextChanges.get());
+        assertEquals(ciphertext, plaintextSharedPreferences.getString("a", null));
+        assertEquals("asd", sharedPreferences.getString("a", null));
+    }
+
+    @Test
+    public void fingerprintsAreLearnedFromReads() {
+        newSharedPreferences()
+            .edit()
+            .putString("a", "asd")
+            .commit();
+        final String ciphertext = plaintextSharedPreferences.getString("a", null);
+
+        // A fresh store has not seen the value yet and writes it without decrypting the old one first.
+        final KeystoreSharedPreferences unaware = newSharedPreferences();
+        unaware
+            .edit()
+            .putString("a", "asd")
+            .commit();
+        assertEquals(0, recorder.getOperationCount(CryptoMetrics.Operation.AES_DECRYPT));
+        assertNotEquals(ciphertext, plaintextSharedPreferences.getString("a", null));
+
+        final KeystoreSharedPreferences reader = newSharedPreferences();
+        assertEquals("asd", reader.getString("a", null));
+        final String readCiphertext = plaintextSharedPreferences.getString("a", null);
+        reader
+            .edit()
+            .putString("a", "asd")
+            .commit();
+        assertEquals(readCiphertext, plaintextSharedPreferences.getString("a", null));
+    }
+
+    @Test
+    public void valueChangedBehindStoreIsWritten() {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences();
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .commit();
+        newSharedPreferences()
+            .edit()
+            .putString("a", "other")
+            .commit();
+
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .commit();
+
+        assertEquals("asd", newSharedPreferences().getString("a", null));
+    }
+
+    @Test
+    public void changesAreReportedOncePerCommit() {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences();
+        sharedPreferences.addChangeCallback(batchCollector);
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .putInt("b", 1)
+            .remove("missing")
+            .commit();
+
+        assertEquals(1, batches.size());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), batches.get(0).getKeys());
+        assertTrue(batches.get(0).isOldValueKnown("a"));
+        assertNull(batches.get(0).getOldValue("a"));
+        assertEquals(1, batches.get(0).getNewValue("b"));
+
+        sharedPreferences
+            .edit()
+            .putString("a", "changed")
+            .putInt("b", 1)
+            .remove("b")
+            .commit();
+
+        assertEquals(2, batches.size());
+        final ChangeBatch batch = batches.get(1);
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), batch.getKeys());
+        assertEquals("asd", batch.getOldValue("a"));
+        assertEquals("changed", batch.getNewValue("a"));
+        assertEquals(1, batch.getOldValue("b"));
+        assertNull(batch.getNewValue("b"));
+        assertFalse(batch.isCleared());
+
+        sharedPreferences
+            .edit()
+            .putString("a", "changed")
+            .commit();
+        assertEquals(2, batches.size());
+    }
+
+    @Test
+    public void oldValueIsUnknownWithoutDecryption() {
+        newSharedPreferences()
+            .edit()
+            .putString("a", "asd")
+            .commit();
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences();
+        sharedPreferences.addChangeCallback(batchCollector);
+
+        sharedPreferences
+            .edit()
+            .putString("a", "changed")
+            .clear()
+            .commit();
+        sharedPreferences
+            .edit()
+            .putString("a", "again")
+            .commit();
+
+        assertEquals(0, recorder.getOperationCount(CryptoMetrics.Operation.AES_DECRYPT));
+        assertEquals(2, batches.size());
+        assertTrue(batches.get(0).isCleared());
+        assertFalse(batches.get(0).isOldValueKnown("a"));
+        assertEquals("changed", batches.get(1).getOldValue("a"));
+    }
+
+    @Test
+    public void callbacksMayWriteToTheStore() {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences();
+        sharedPreferences.addChangeCallback(batchCollector);
+        sharedPreferences.addChangeCallback(new ValueCallback<ChangeBatch>() {
+            @Override
+            public void onValue(final ChangeBatch batch) {
+                if (batch.getKeys().contains("a")) {
+                    sharedPreferences
+                        .edit()
+                        .putString("a_copy", (String) batch.getNewValue("a"))
+                        .apply();
+                }
+            }
+        });
+
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .apply();
+
+        assertEquals(2, batches.size());
+        assertEquals(Collections.singleton("a_copy"), batches.get(1).getKeys());
+        assertEquals("asd", sharedPreferences.getString("a_copy", null));
+    }
+
+    private KeystoreSharedPreferences newSharedPreferences() {
+        return new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences)
+            .setBackend(backend)
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .build();
+    }
+}
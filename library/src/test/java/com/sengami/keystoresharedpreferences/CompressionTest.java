@@ -0,0 +1,79 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionTest {
+
+    private static final int COMPRESSION_THRESHOLD = 256;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private CryptoBackend backend;
+    private SharedPreferences plaintextSharedPreferences;
+    private String json;
+
+    @Before
+    public void before() {
+        backend = new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), "test.p12"), "password".toCharArray());
+        plaintextSharedPreferences = new InMemorySharedPreferences();
+
+        final StringBuilder builder = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < 100; i++) {
+            builder.append(i > 0 ? "," : "").append("{\"id\":").append(i).append(",\"name\":\"item\",\"enabled\":true}");
+        }
+        json = builder.append("]}").toString();
+    }
+
+    @Test
+    public void largeValuesAreStoredCompressed() {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(COMPRESSION_THRESHOLD);
+        sharedPreferences
+            .edit()
+            .putString("profile", json)
+            .putString("small", "asd")
+            .commit();
+
+        assertTrue(plaintextSharedPreferences.getString("profile", null).length() < json.length() / 4);
+        assertEquals(json, sharedPreferences.getString("profile", null));
+        assertEquals("asd", sharedPreferences.getString("small", null));
+        // Values written without compression and values written with it are read the same way.
+        assertEquals(json, newSharedPreferences(Constants.COMPRESSION_DISABLED).getString("profile", null));
+    }
+
+    @Test
+    public void rotationKeepsValuesCompressed() throws Exception {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(COMPRESSION_THRESHOLD);
+        sharedPreferences
+            .edit()
+            .putString("profile", json)
+            .commit();
+        final int compressedLength = plaintextSharedPreferences.getString("profile", null).length();
+
+        assertTrue(sharedPreferences.rotateDataKey().getResult().get());
+
+        final String rotatedValue = plaintextSharedPreferences.getString("profile", null);
+        assertEquals(1, DataKeyProxy.getVersion(rotatedValue));
+        assertTrue(rotatedValue.length() <= compressedLength + 2);
+        assertEquals(json, sharedPreferences.getString("profile", null));
+    }
+
+    private KeystoreSharedPreferences newSharedPreferences(final int compressionThreshold) {
+        return new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences)
+            .setBackend(backend)
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .setCompressionThreshold(compressionThreshold)
+            .build();
+    }
+}
@@ -0,0 +1,111 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.security.KeyStoreException;
+import java.util.Collections;
+
+import javax.crypto.Cipher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EditorFailureTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final CryptoBackend failingBackend = new CryptoBackend() {
+        @Override
+        public Cipher getEncryptingCipher() throws KeyStoreException {
+            throw new KeyStoreException("Keystore unavailable");
+        }
+
+        @Override
+        public Cipher getDecryptingCipher() throws KeyStoreException {
+            throw new KeyStoreException("Keystore unavailable");
+        }
+
+        @Override
+        public void invalidate() {
+        }
+
+        @Override
+        public void handleFailure(final Throwable throwable) {
+        }
+    };
+    private CryptoBackend backend;
+    private SharedPreferences plaintextSharedPreferences;
+
+    @Before
+    public void before() {
+        backend = new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), "test.p12"), "password".toCharArray());
+        plaintextSharedPreferences = new InMemorySharedPreferences();
+    }
+
+    @Test
+    public void failedEncryptionWritesNothing() {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(failingBackend);
+
+        assertFalse(sharedPreferences
+            .edit()
+            .putString("pin", "1234")
+            .putInt("count", 1)
+            .putStringSet("set", Collections.singleton("set_value"))
+            .commit());
+
+        assertTrue(plaintextSharedPreferences.getAll().isEmpty());
+    }
+
+    @Test
+    public void failedEncryptionKeepsPreviousValues() {
+        newSharedPreferences(backend)
+            .edit()
+            .putString("a", "asd")
+            .commit();
+        final String ciphertext = plaintextSharedPreferences.getString("a", null);
+
+        assertFalse(newSharedPreferences(failingBackend)
+            .edit()
+            .putString("a", "new")
+            .putString("b", "other")
+            .commit());
+
+        assertEquals(ciphertext, plaintextSharedPreferences.getString("a", null));
+        assertFalse(plaintextSharedPreferences.contains("b"));
+        assertEquals("asd", newSharedPreferences(backend).getString("a", null));
+    }
+
+    @Test
+    public void unhashableNameFailsBatch() {
+        final KeystoreSharedPreferences sharedPreferences = new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences)
+            .setBackend(backend)
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .setHashedKeys(true)
+            .build();
+
+        assertFalse(sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .putString(null, "unnamed")
+            .commit());
+
+        assertFalse(sharedPreferences.contains("a"));
+    }
+
+    private KeystoreSharedPreferences newSharedPreferences(final CryptoBackend backend) {
+        return new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences)
+            .setBackend(backend)
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .build();
+    }
+}
@@ -0,0 +1,144 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HashedKeyNamesTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private CryptoBackend backend;
+    private SharedPreferences plaintextSharedPreferences;
+
+    @Before
+    public void before() {
+        backend = new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), "test.p12"), "password".toCharArray());
+        plaintextSharedPreferences = new InMemorySharedPreferences();
+    }
+
+    @Test
+    public void namesAreNotStoredInPlaintext() {
+        newSharedPreferences(null, false)
+            .edit()
+            .putString("token", "asd")
+            .putStringSet("tags", Collections.singleton("set_value"))
+            .commit();
+
+        for (final String storedKey : plaintextSharedPreferences.getAll().keySet()) {
+            assertFalse(storedKey.contains("token"));
+            assertFalse(storedKey.contains("tags"));
+        }
+        assertFalse(plaintextSharedPreferences.contains("token"));
+    }
+
+    @Test
+    public void valuesAreReadBackByName() {
+        writeValues(newSharedPreferences(null, false));
+
+        for (final DecryptedValueCache cache : new DecryptedValueCache[]{null, new DecryptedValueCache(16, false)}) {
+            for (final boolean lazyDecryption : new boolean[]{false, true}) {
+                final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(cache, lazyDecryption);
+
+                assertEquals("asd", sharedPreferences.getString("a", null));
+                assertEquals(1, sharedPreferences.getInt("b", 0));
+                assertEquals(Collections.singleton("set_value"), sharedPreferences.getStringSet("c", null));
+                assertTrue(sharedPreferences.contains("a"));
+                assertFalse(sharedPreferences.contains("missing"));
+                assertNull(sharedPreferences.getString("missing", null));
+            }
+        }
+    }
+
+    @Test
+    public void getAllRecoversNames() {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(null, true);
+        writeValues(sharedPreferences);
+        sharedPreferences
+            .edit()
+            .remove("b")
+            .commit();
+
+        final Map<String, ?> values = newSharedPreferences(null, true).getAll();
+
+        assertEquals(2, values.size());
+        assertEquals("asd", values.get("a"));
+        assertEquals(Collections.singleton("set_value"), values.get("c"));
+    }
+
+    @Test
+    public void namesSurviveKeyRotation() throws Exception {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(null, false);
+        writeValues(sharedPreferences);
+
+        assertTrue(sharedPreferences.rotateDataKey().getResult().get());
+
+        final KeystoreSharedPreferences reopenedSharedPreferences = newSharedPreferences(null, false);
+        assertEquals("asd", reopenedSharedPreferences.getString("a", null));
+        assertEquals(3, reopenedSharedPreferences.getAll().size());
+        assertEquals(Collections.singleton("set_value"), reopenedSharedPreferences.getAll().get("c"));
+    }
+
+    @Test
+    public void listenersReceiveNames() throws Exception {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(null, false);
+        assertTrue(sharedPreferences.warmUp().get());
+        final List<String> changedKeys = new ArrayList<>();
+        final SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences,
+                                                  final String key) {
+                changedKeys.add(key);
+            }
+        };
+        sharedPreferences.registerOnSharedPreferenceChangeListener(listener);
+
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .commit();
+        sharedPreferences.unregisterOnSharedPreferenceChangeListener(listener);
+        sharedPreferences
+            .edit()
+            .putString("b", "asd")
+            .commit();
+
+        assertEquals(Collections.singletonList("a"), changedKeys);
+    }
+
+    private KeystoreSharedPreferences newSharedPreferences(final DecryptedValueCache cache,
+                                                           final boolean lazyDecryption) {
+        return new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences)
+            .setBackend(backend)
+            .setCache(cache)
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .setLazyDecryption(lazyDecryption)
+            .setHashedKeys(true)
+            .build();
+    }
+
+    private void writeValues(final SharedPreferences sharedPreferences) {
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .putInt("b", 1)
+            .putStringSet("c", Collections.singleton("set_value"))
+            .commit();
+    }
+}
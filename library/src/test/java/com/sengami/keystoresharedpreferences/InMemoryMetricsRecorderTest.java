@@ -0,0 +1,90 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryMetricsRecorderTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @After
+    public void after() {
+        Metrics.setRecorder(null);
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        final Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000L, histogram.getMax());
+        assertWithin(500000L, histogram.getPercentile(50D));
+        assertWithin(990000L, histogram.getPercentile(99D));
+        assertEquals(1000000L, histogram.getPercentile(100D));
+    }
+
+    @Test
+    public void wrapperOperationsAreRecorded() {
+        final InMemoryMetricsRecorder recorder = new InMemoryMetricsRecorder();
+        Metrics.setRecorder(recorder);
+
+        final CryptoBackend backend = new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), "test.p12"), "password".toCharArray());
+        final SharedPreferences sharedPreferences = new KeystoreSharedPreferences.Builder(null, new InMemorySharedPreferences())
+            .setBackend(backend)
+            .setCache(new DecryptedValueCache(16, false))
+            .setExecutor(null)
+            .build();
+        sharedPreferences
+            .edit()
+            .putString("a", "secret_value")
+            .commit();
+        sharedPreferences.getString("a", null);
+        sharedPreferences.getString("a", null);
+
+        assertEquals(1, recorder.getOperationCount(CryptoMetrics.Operation.RSA_ENCRYPT));
+        assertEquals(1, recorder.getOperationCount(CryptoMetrics.Operation.AES_ENCRYPT));
+        assertEquals(1, recorder.getOperationCount(CryptoMetrics.Operation.AES_DECRYPT));
+        assertEquals(0, recorder.getFailureCount(CryptoMetrics.Operation.AES_DECRYPT));
+        assertEquals(1, recorder.getCacheHitCount());
+        assertEquals(1, recorder.getCacheMissCount());
+        assertEquals(0.5D, recorder.getCacheHitRate(), 0D);
+        assertEquals(1, recorder.getPhaseCount(CryptoMetrics.Phase.KEYSTORE_LOAD));
+        assertEquals(1, recorder.getPhaseCount(CryptoMetrics.Phase.KEY_GENERATION));
+        assertTrue(recorder.getPhaseCount(CryptoMetrics.Phase.DO_FINAL) >= 3);
+        assertTrue(recorder.getTotalPayloadBytes(CryptoMetrics.Operation.AES_ENCRYPT) > 0);
+
+        final String dump = recorder.dump();
+        assertTrue(dump.contains("operation AES_DECRYPT count=1"));
+        assertFalse(dump.contains("secret_value"));
+    }
+
+    @Test
+    public void failedDecryptionIsCounted() {
+        final InMemoryMetricsRecorder recorder = new InMemoryMetricsRecorder();
+        Metrics.setRecorder(recorder);
+
+        final CryptoBackend backend = new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), "test.p12"), "password".toCharArray());
+        KeyStoreProxy.decryptString(backend, "bm90IGEgY2lwaGVydGV4dA==");
+
+        assertEquals(1, recorder.getFailureCount(CryptoMetrics.Operation.RSA_DECRYPT));
+    }
+
+    private static void assertWithin(final long expected,
+                                     final long actual) {
+        assertTrue("expected ~" + expected + " but was " + actual, actual >= expected && actual <= expected + expected / 8);
+    }
+}
@@ -0,0 +1,184 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+final class InMemorySharedPreferences implements SharedPreferences {
+
+    private final Map<String, Object> values = new HashMap<>();
+    private final List<OnSharedPreferenceChangeListener> listeners = new ArrayList<>();
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(values);
+    }
+
+    @Override
+    public synchronized String getString(final String key,
+                                         final String defaultValue) {
+        final Object value = values.get(key);
+        return value != null ? (String) value : defaultValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Set<String> getStringSet(final String key,
+                                                 final Set<String> defaultValues) {
+        final Object value = values.get(key);
+        return value != null ? (Set<String>) value : defaultValues;
+    }
+
+    @Override
+    public synchronized int getInt(final String key,
+                                   final int defaultValue) {
+        final Object value = values.get(key);
+        return value != null ? (Integer) value : defaultValue;
+    }
+
+    @Override
+    public synchronized long getLong(final String key,
+                                     final long defaultValue) {
+        final Object value = values.get(key);
+        return value != null ? (Long) value : defaultValue;
+    }
+
+    @Override
+    public synchronized float getFloat(final String key,
+                                       final float defaultValue) {
+        final Object value = values.get(key);
+        return value != null ? (Float) value : defaultValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(final String key,
+                                           final boolean defaultValue) {
+        final Object value = values.get(key);
+        return value != null ? (Boolean) value : defaultValue;
+    }
+
+    @Override
+    public synchronized boolean contains(final String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new InMemoryEditor();
+    }
+
+    @Override
+    public synchronized void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public synchronized void unregisterOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void write(final Map<String, Object> mutations,
+                       final boolean cleared) {
+        final List<OnSharedPreferenceChangeListener> currentListeners;
+        synchronized (this) {
+            if (cleared) {
+                values.clear();
+            }
+
+            for (final Map.Entry<String, Object> mutation : mutations.entrySet()) {
+                if (mutation.getValue() == null) {
+                    values.remove(mutation.getKey());
+                } else {
+                    values.put(mutation.getKey(), mutation.getValue());
+                }
+            }
+
+            currentListeners = new ArrayList<>(listeners);
+        }
+
+        for (final String key : mutations.keySet()) {
+            for (final OnSharedPreferenceChangeListener listener : currentListeners) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+    }
+
+    private final class InMemoryEditor implements Editor {
+
+        private final Map<String, Object> mutations = new HashMap<>();
+        private boolean cleared;
+
+        @Override
+        public Editor putString(final String key,
+                                final String value) {
+            mutations.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(final String key,
+                                   final Set<String> values) {
+            mutations.put(key, values != null ? Collections.unmodifiableSet(new HashSet<>(values)) : null);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(final String key,
+                             final int value) {
+            mutations.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(final String key,
+                              final long value) {
+            mutations.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(final String key,
+                               final float value) {
+            mutations.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(final String key,
+                                 final boolean value) {
+            mutations.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(final String key) {
+            mutations.put(key, null);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            cleared = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            write(new HashMap<>(mutations), cleared);
+            mutations.clear();
+            cleared = false;
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KeyRotationTest {
+
+    private static final int ENTRY_COUNT = 150;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ArrayDeque<Runnable> queuedTasks = new ArrayDeque<>();
+    private final Executor queuingExecutor = new Executor() {
+        @Override
+        public void execute(final Runnable task) {
+            queuedTasks.addLast(task);
+        }
+    };
+    private CryptoBackend backend;
+    private SharedPreferences plaintextSharedPreferences;
+
+    @Before
+    public void before() {
+        backend = new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), "test.p12"), "password".toCharArray());
+        plaintextSharedPreferences = new InMemorySharedPreferences();
+    }
+
+    @Test
+    public void rotationReencryptsEveryEntry() throws Exception {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(null);
+        writeEntries(sharedPreferences);
+
+        final KeyRotation rotation = sharedPreferences.rotateDataKey();
+
+        assertTrue(rotation.getResult().get());
+        assertEquals(1, rotation.getVersion());
+        assertEquals(ENTRY_COUNT + 2, rotation.getProcessedCount());
+        assertEquals(ENTRY_COUNT + 2, rotation.getReencryptedCount());
+        assertEquals(0, rotation.getRemainingCount());
+        assertEquals(0, rotation.getFailedCount());
+        assertTrue(rotation.getEntriesPerSecond() > 0D);
+        assertFalse(plaintextSharedPreferences.contains(Constants.DATA_KEY_ROTATION_PREFERENCE));
+        assertAllEntriesAtVersion(1);
+        assertEntriesReadable(sharedPreferences);
+        assertEquals(ENTRY_COUNT + 2, sharedPreferences.getAll().size());
+    }
+
+    @Test
+    public void oldVersionsStayReadable() throws Exception {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(null);
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .commit();
+        final String oldCiphertext = plaintextSharedPreferences.getString("a", null);
+
+        assertTrue(sharedPreferences.rotateDataKey().getResult().get());
+        assertTrue(sharedPreferences.rotateDataKey().getResult().get());
+        assertEquals(2, DataKeyProxy.getVersion(plaintextSharedPreferences.getString("a", null)));
+
+        sharedPreferences
+            .edit()
+            .clear()
+            .commit();
+        plaintextSharedPreferences
+            .edit()
+            .putString("a", oldCiphertext)
+            .commit();
+
+        assertEquals(0, DataKeyProxy.getVersion(oldCiphertext));
+        assertEquals("asd", sharedPreferences.getString("a", null));
+        assertEquals(1, sharedPreferences.getAll().size());
+    }
+
+    @Test
+    public void interruptedRotationResumesFromCheckpoint() throws Exception {
+        writeEntries(newSharedPreferences(null));
+
+        final KeyRotation interruptedRotation = newSharedPreferences(queuingExecutor).rotateDataKey();
+        queuedTasks.pollFirst().run();
+        // The process dies here, leaving the next chunk queued in memory only.
+        queuedTasks.clear();
+
+        assertEquals(Constants.KEY_ROTATION_CHUNK_SIZE, interruptedRotation.getProcessedCount());
+        assertFalse(interruptedRotation.isFinished());
+
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(null);
+        final KeyRotation rotation = sharedPreferences.resumeKeyRotation();
+
+        assertTrue(rotation.getResult().get());
+        assertEquals(1, rotation.getVersion());
+        assertEquals(ENTRY_COUNT + 2, rotation.getProcessedCount());
+        assertEquals(ENTRY_COUNT + 2 - Constants.KEY_ROTATION_CHUNK_SIZE, rotation.getReencryptedCount());
+        assertAllEntriesAtVersion(1);
+        assertEntriesReadable(sharedPreferences);
+        assertNull(sharedPreferences.resumeKeyRotation());
+    }
+
+    @Test
+    public void rotationInProgressIsReturnedAgain() {
+        writeEntries(newSharedPreferences(null));
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(queuingExecutor);
+        final AtomicInteger progressReports = new AtomicInteger();
+
+        final KeyRotation rotation = sharedPreferences.rotateDataKey().addProgressCallback(new ValueCallback<KeyRotation>() {
+            @Override
+            public void onValue(final KeyRotation value) {
+                progressReports.incrementAndGet();
+            }
+        });
+
+        assertSame(rotation, sharedPreferences.rotateDataKey());
+        assertSame(rotation, sharedPreferences.resumeKeyRotation());
+        while (!queuedTasks.isEmpty()) {
+            queuedTasks.pollFirst().run();
+        }
+        assertTrue(rotation.isFinished());
+        assertEquals(3, progressReports.get());
+        assertEquals(1, DataKeyProxy.getCurrentVersion(plaintextSharedPreferences));
+    }
+
+    private KeystoreSharedPreferences newSharedPreferences(final Executor asyncReadExecutor) {
+        return new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences)
+            .setBackend(backend)
+            .setExecutor(null)
+            .setAsyncReadExecutor(asyncReadExecutor)
+            .build();
+    }
+
+    private void writeEntries(final SharedPreferences sharedPreferences) {
+        final SharedPreferences.Editor editor = sharedPreferences.edit();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            editor.putInt("key_" + i, i);
+        }
+        editor.putStringSet("set", Collections.singleton("set_value"));
+        editor.commit();
+        plaintextSharedPreferences
+            .edit()
+            .putString("legacy", KeyStoreProxy.encryptString(backend, "legacy_value"))
+            .commit();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void assertAllEntriesAtVersion(final int version) {
+        for (final Map.Entry<String, ?> entry : plaintextSharedPreferences.getAll().entrySet()) {
+            if (DataKeyProxy.isInternalPreference(entry.getKey())) {
+                continue;
+            }
+
+            if (entry.getValue() instanceof Set) {
+                for (final String setValue : (Set<String>) entry.getValue()) {
+                    assertEquals(version, DataKeyProxy.getVersion(setValue));
+                }
+            } else {
+                assertEquals(entry.getKey(), version, DataKeyProxy.getVersion((String) entry.getValue()));
+            }
+        }
+    }
+
+    private void assertEntriesReadable(final SharedPreferences sharedPreferences) {
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            assertEquals(i, sharedPreferences.getInt("key_" + i, -1));
+        }
+        assertEquals(Collections.singleton("set_value"), sharedPreferences.getStringSet("set", null));
+        assertEquals("legacy_value", sharedPreferences.getString("legacy", null));
+    }
+}
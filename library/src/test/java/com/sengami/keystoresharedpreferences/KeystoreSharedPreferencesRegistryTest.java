@@ -0,0 +1,132 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class KeystoreSharedPreferencesRegistryTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final Map<String, SharedPreferences> plaintextSharedPreferences = new HashMap<>();
+    private final Map<String, CryptoBackend> backends = new HashMap<>();
+    private final InMemoryMetricsRecorder recorder = new InMemoryMetricsRecorder();
+    private KeystoreSharedPreferencesRegistry registry;
+
+    @Before
+    public void before() {
+        registry = new KeystoreSharedPreferencesRegistry(null, new KeystoreSharedPreferencesRegistry.Opener() {
+            @Override
+            public SharedPreferences openSharedPreferences(final String name) {
+                final SharedPreferences sharedPreferences = new InMemorySharedPreferences();
+                plaintextSharedPreferences.put(name, sharedPreferences);
+                return sharedPreferences;
+            }
+
+            @Override
+            public CryptoBackend getBackend(final String alias) {
+                if (!backends.containsKey(alias)) {
+                    backends.put(alias, new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), alias + ".p12"), "password".toCharArray()));
+                }
+                return backends.get(alias);
+            }
+        }, null, null);
+    }
+
+    @Test
+    public void storesAreCachedByName() {
+        final KeystoreSharedPreferences first = registry.get("account_1");
+
+        assertSame(first, registry.get("account_1"));
+        assertNotSame(first, registry.get("account_2"));
+        assertEquals(new HashSet<>(Arrays.asList("account_1", "account_2")), registry.getNames());
+        assertEquals(2, plaintextSharedPreferences.size());
+        assertEquals(1, backends.size());
+    }
+
+    @Test
+    public void storesWithOneAliasShareKeyMaterial() {
+        Metrics.setRecorder(recorder);
+        try {
+            for (int i = 0; i < 3; i++) {
+                registry
+                    .get("store_" + i)
+                    .edit()
+                    .putString("a", "asd")
+                    .commit();
+            }
+        } finally {
+            Metrics.setRecorder(null);
+        }
+
+        // One key pair and one keystore load for every store of the alias.
+        assertEquals(1, recorder.getPhaseCount(CryptoMetrics.Phase.KEY_GENERATION));
+        assertEquals(1, recorder.getPhaseCount(CryptoMetrics.Phase.KEYSTORE_LOAD));
+        assertEquals("asd", registry.get("store_2").getString("a", null));
+    }
+
+    @Test
+    public void aliasesIsolateStores() {
+        registry
+            .get("feature", "feature_alias")
+            .edit()
+            .putString("a", "asd")
+            .commit();
+        registry.get("other");
+
+        // The data key of the store is wrapped with its own alias, so a store with another alias cannot read it.
+        plaintextSharedPreferences.get("other")
+            .edit()
+            .putString(Constants.DATA_KEY_PREFERENCE, plaintextSharedPreferences.get("feature").getString(Constants.DATA_KEY_PREFERENCE, null))
+            .putString("a", plaintextSharedPreferences.get("feature").getString("a", null))
+            .commit();
+
+        final KeystoreSharedPreferences other = new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences.get("other"))
+            .setBackend(backends.get(Constants.KEYSTORE_ALIAS))
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .build();
+
+        assertEquals(2, backends.size());
+        assertEquals("asd", registry.get("feature", "feature_alias").getString("a", null));
+        assertNull(other.getString("a", null));
+    }
+
+    @Test
+    public void optionsApplyToOpenedStore() {
+        final KeystoreSharedPreferences.Builder options = new KeystoreSharedPreferences.Builder(null)
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .setHashedKeys(true);
+        registry
+            .get("hashed", Constants.KEYSTORE_ALIAS, options)
+            .edit()
+            .putString("a", "asd")
+            .commit();
+
+        assertFalse(plaintextSharedPreferences.get("hashed").contains("a"));
+        assertEquals("asd", registry.get("hashed").getString("a", null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void storeCannotBeReopenedWithAnotherAlias() {
+        registry.get("account", "alias_1");
+        registry.get("account", "alias_2");
+    }
+}
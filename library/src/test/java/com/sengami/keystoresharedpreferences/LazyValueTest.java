@@ -0,0 +1,114 @@
+package com.sengami.keystoresharedpreferences;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LazyValueTest {
+
+    private static final int THREAD_COUNT = 8;
+
+    private final AtomicInteger decryptions = new AtomicInteger();
+    private final LazyValue.Decrypter decrypter = new LazyValue.Decrypter() {
+        @Override
+        public Object decrypt(final String key,
+                              final Object encryptedValue) {
+            decryptions.incrementAndGet();
+            return "decrypted_" + encryptedValue;
+        }
+    };
+
+    @Test
+    public void concurrentReadersDecryptOnce() throws InterruptedException {
+        final LazyValue value = new LazyValue("key", "value", decrypter);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[THREAD_COUNT];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    assertEquals("decrypted_value", value.get());
+                }
+            });
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, decryptions.get());
+        assertTrue(value.isResolved());
+    }
+
+    @Test
+    public void failedDecryptionIsRetried() {
+        final String encryptedValue = "value";
+        final LazyValue value = new LazyValue("key", encryptedValue, new LazyValue.Decrypter() {
+            @Override
+            public Object decrypt(final String key,
+                                  final Object encryptedValue) {
+                decryptions.incrementAndGet();
+                return encryptedValue;
+            }
+        });
+
+        value.get();
+        value.get();
+
+        assertEquals(2, decryptions.get());
+        assertFalse(value.isResolved());
+    }
+
+    @Test
+    public void mapDecryptsOnlyAccessedEntries() {
+        final Map<String, Object> values = new HashMap<>();
+        final LazyValue a = new LazyValue("a", "1", decrypter);
+        final LazyValue b = new LazyValue("b", "2", decrypter);
+        values.put("a", a);
+        values.put("b", b);
+        values.put("c", 3);
+
+        final Map<String, Object> map = new LazyDecryptedMap(values);
+
+        assertEquals(3, map.size());
+        assertEquals("decrypted_1", map.get("a"));
+        assertEquals(3, map.get("c"));
+        assertTrue(a.isResolved());
+        assertFalse(b.isResolved());
+        assertEquals(1, decryptions.get());
+    }
+
+    @Test
+    public void mapIterationResolvesEntries() {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("a", new LazyValue("a", "1", decrypter));
+        values.put("b", new LazyValue("b", Collections.singleton("2"), new LazyValue.Decrypter() {
+            @Override
+            public Object decrypt(final String key,
+                                  final Object encryptedValue) {
+                return Collections.singleton("decrypted_2");
+            }
+        }));
+
+        final Map<String, Object> expected = new HashMap<>();
+        expected.put("a", "decrypted_1");
+        expected.put("b", Collections.singleton("decrypted_2"));
+
+        assertEquals(expected, new HashMap<>(new LazyDecryptedMap(values)));
+    }
+}
@@ -0,0 +1,234 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QuarantineTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final InMemoryMetricsRecorder recorder = new InMemoryMetricsRecorder();
+    private final List<CorruptionEvent> events = new ArrayList<>();
+    private final ValueCallback<CorruptionEvent> eventCallback = new ValueCallback<CorruptionEvent>() {
+        @Override
+        public void onValue(final CorruptionEvent event) {
+            events.add(event);
+        }
+    };
+    private CryptoBackend backend;
+    private SharedPreferences plaintextSharedPreferences;
+
+    @Before
+    public void before() {
+        backend = new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), "test.p12"), "password".toCharArray());
+        plaintextSharedPreferences = new InMemorySharedPreferences();
+        Metrics.setRecorder(recorder);
+    }
+
+    @After
+    public void after() {
+        Metrics.setRecorder(null);
+    }
+
+    @Test
+    public void corruptedEntryFailsOnce() {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(backend, CorruptionPolicy.QUARANTINE);
+        writeValues(sharedPreferences);
+        corrupt("b");
+        corrupt("c");
+
+        assertEquals(-1, sharedPreferences.getInt("b", -1));
+        assertEquals(Collections.singleton("default"), sharedPreferences.getStringSet("c", Collections.singleton("default")));
+        final long decryptions = recorder.getOperationCount(CryptoMetrics.Operation.AES_DECRYPT);
+
+        assertEquals(-1, sharedPreferences.getInt("b", -1));
+        assertEquals(Collections.singleton("default"), sharedPreferences.getStringSet("c", Collections.singleton("default")));
+        assertEquals(decryptions, recorder.getOperationCount(CryptoMetrics.Operation.AES_DECRYPT));
+        assertEquals(2, sharedPreferences.getQuarantinedCount());
+        assertEquals(2, events.size());
+        assertEquals("b", events.get(0).getKey());
+        assertEquals(CorruptionEvent.Action.QUARANTINED, events.get(0).getAction());
+        assertFalse(events.get(0).isDataKeyLost());
+
+        assertEquals(1, sharedPreferences.getAll().size());
+        assertEquals("asd", sharedPreferences.getString("a", null));
+    }
+
+    @Test
+    public void lazyViewLeavesOutQuarantinedEntries() {
+        final KeystoreSharedPreferences sharedPreferences = new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences)
+            .setBackend(backend)
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .setLazyDecryption(true)
+            .build();
+        writeValues(sharedPreferences);
+        corrupt("b");
+        assertEquals(-1, sharedPreferences.getInt("b", -1));
+
+        final Map<String, ?> values = sharedPreferences.getAll();
+
+        assertEquals(2, values.size());
+        assertFalse(values.containsKey("b"));
+        assertEquals("asd", values.get("a"));
+    }
+
+    @Test
+    public void lazyEntryIsRetriedAfterClearingQuarantine() {
+        final KeystoreSharedPreferences sharedPreferences = new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences)
+            .setBackend(backend)
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .setLazyDecryption(true)
+            .build();
+        sharedPreferences.addCorruptionCallback(eventCallback);
+        writeValues(sharedPreferences);
+        corrupt("b");
+        assertEquals(-1, sharedPreferences.getInt("b", -1));
+        assertEquals(-1, sharedPreferences.getInt("b", -1));
+        assertEquals(1, events.size());
+
+        sharedPreferences.clearQuarantine();
+
+        assertEquals(-1, sharedPreferences.getInt("b", -1));
+        assertEquals(2, events.size());
+        assertEquals(1, sharedPreferences.getQuarantinedCount());
+    }
+
+    @Test
+    public void newValueLiftsQuarantine() {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(backend, CorruptionPolicy.QUARANTINE);
+        writeValues(sharedPreferences);
+        corrupt("b");
+        assertEquals(-1, sharedPreferences.getInt("b", -1));
+
+        sharedPreferences
+            .edit()
+            .putInt("b", 2)
+            .commit();
+
+        assertEquals(2, sharedPreferences.getInt("b", -1));
+        assertEquals(0, sharedPreferences.getQuarantinedCount());
+    }
+
+    @Test
+    public void lostDataKeyIsNotRetried() {
+        writeValues(newSharedPreferences(backend, CorruptionPolicy.QUARANTINE));
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(newResetBackend(), CorruptionPolicy.QUARANTINE);
+
+        assertNull(sharedPreferences.getString("a", null));
+        final long rsaDecryptions = recorder.getOperationCount(CryptoMetrics.Operation.RSA_DECRYPT);
+        assertEquals(-1, sharedPreferences.getInt("b", -1));
+        assertTrue(sharedPreferences.getAll().isEmpty());
+
+        assertEquals(rsaDecryptions, recorder.getOperationCount(CryptoMetrics.Operation.RSA_DECRYPT));
+        assertEquals(3, events.size());
+        assertTrue(events.get(0).isDataKeyLost());
+        assertTrue(plaintextSharedPreferences.contains("a"));
+    }
+
+    @Test
+    public void missingDataKeyIsNotCreatedWhenProbed() {
+        assertFalse(DataKeyProxy.isDataKeyAvailable(backend, plaintextSharedPreferences, 0));
+        assertFalse(plaintextSharedPreferences.contains(Constants.DATA_KEY_PREFERENCE));
+
+        writeValues(newSharedPreferences(backend, CorruptionPolicy.QUARANTINE));
+        assertTrue(DataKeyProxy.isDataKeyAvailable(backend, plaintextSharedPreferences, 0));
+        assertFalse(DataKeyProxy.isDataKeyAvailable(newResetBackend(), plaintextSharedPreferences, 0));
+    }
+
+    @Test
+    public void deletePolicyRemovesEntry() {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(backend, CorruptionPolicy.DELETE_ENTRY);
+        writeValues(sharedPreferences);
+        corrupt("b");
+
+        assertEquals(-1, sharedPreferences.getInt("b", -1));
+
+        assertFalse(plaintextSharedPreferences.contains("b"));
+        assertEquals(0, sharedPreferences.getQuarantinedCount());
+        assertEquals(CorruptionEvent.Action.DELETED, events.get(0).getAction());
+        assertEquals("asd", sharedPreferences.getString("a", null));
+    }
+
+    @Test
+    public void resetPolicyStartsOverAfterKeystoreReset() {
+        writeValues(newSharedPreferences(backend, CorruptionPolicy.QUARANTINE));
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(newResetBackend(), CorruptionPolicy.RESET_STORE);
+
+        assertNull(sharedPreferences.getString("a", null));
+
+        assertEquals(1, events.size());
+        assertEquals(CorruptionEvent.Action.STORE_RESET, events.get(0).getAction());
+        assertTrue(plaintextSharedPreferences.getAll().isEmpty());
+
+        sharedPreferences
+            .edit()
+            .putString("a", "new")
+            .commit();
+        assertEquals("new", sharedPreferences.getString("a", null));
+        assertEquals(1, events.size());
+    }
+
+    private KeystoreSharedPreferences newSharedPreferences(final CryptoBackend backend,
+                                                           final CorruptionPolicy corruptionPolicy) {
+        final KeystoreSharedPreferences sharedPreferences = new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences)
+            .setBackend(backend)
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .setCorruptionPolicy(corruptionPolicy)
+            .build();
+        sharedPreferences.addCorruptionCallback(eventCallback);
+        return sharedPreferences;
+    }
+
+    // A keystore reset leaves the wrapped data key behind with a key pair that cannot unwrap it.
+    private CryptoBackend newResetBackend() {
+        // Unwrapped data keys are cached for the whole process, so the wrapped key has to change for a fresh unwrap.
+        corrupt(Constants.DATA_KEY_PREFERENCE);
+        return new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), "reset.p12"), "password".toCharArray());
+    }
+
+    private void writeValues(final SharedPreferences sharedPreferences) {
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .putInt("b", 1)
+            .putStringSet("c", Collections.singleton("set_value"))
+            .commit();
+    }
+
+    private void corrupt(final String key) {
+        final Object encryptedValue = plaintextSharedPreferences.getAll().get(key);
+        final SharedPreferences.Editor editor = plaintextSharedPreferences.edit();
+        if (encryptedValue instanceof String) {
+            editor.putString(key, flipCharacter((String) encryptedValue));
+        } else {
+            editor.putStringSet(key, Collections.singleton(flipCharacter((String) ((Set<?>) encryptedValue).iterator().next())));
+        }
+        editor.commit();
+    }
+
+    private static String flipCharacter(final String value) {
+        final int index = value.length() / 2;
+        return value.substring(0, index) + (value.charAt(index) == 'A' ? 'B' : 'A') + value.substring(index + 1);
+    }
+}
@@ -0,0 +1,148 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotSharedPreferencesTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+    private SecretKey key;
+
+    @Before
+    public void before() throws Exception {
+        file = new File(temporaryFolder.getRoot(), "test.snapshot");
+        final KeyGenerator generator = KeyGenerator.getInstance(Constants.DATA_KEY_ALGORITHM);
+        generator.init(Constants.DATA_KEY_SIZE_BITS);
+        key = generator.generateKey();
+    }
+
+    @Test
+    public void valuesSurviveReopening() throws Exception {
+        final Set<String> set = Collections.singleton("set_value");
+
+        SnapshotSharedPreferences.open(file, key, null)
+            .edit()
+            .putString("a", "asd")
+            .putInt("b", 1)
+            .putFloat("c", 2F)
+            .putLong("d", 3L)
+            .putBoolean("e", true)
+            .putStringSet("f", set)
+            .commit();
+
+        final Map<String, ?> allEntries = SnapshotSharedPreferences.open(file, key, null).getAll();
+
+        assertEquals(6, allEntries.size());
+        assertEquals("asd", allEntries.get("a"));
+        assertEquals(1, allEntries.get("b"));
+        assertEquals(2F, allEntries.get("c"));
+        assertEquals(3L, allEntries.get("d"));
+        assertEquals(true, allEntries.get("e"));
+        assertEquals(set, allEntries.get("f"));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void appliedValuesAreReadableImmediately() throws Exception {
+        final SharedPreferences sharedPreferences = SnapshotSharedPreferences.open(file, key, null);
+
+        sharedPreferences
+            .edit()
+            .putString("a", "first")
+            .apply();
+        sharedPreferences
+            .edit()
+            .clear()
+            .putString("b", "second")
+            .apply();
+
+        assertFalse(sharedPreferences.contains("a"));
+        assertEquals("second", sharedPreferences.getString("b", null));
+        assertEquals("second", SnapshotSharedPreferences.open(file, key, null).getString("b", null));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void tamperedFileIsRejected() throws Exception {
+        SnapshotSharedPreferences.open(file, key, null)
+            .edit()
+            .putString("a", "asd")
+            .commit();
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(randomAccessFile.length() - 1);
+        final int lastByte = randomAccessFile.read();
+        randomAccessFile.seek(randomAccessFile.length() - 1);
+        randomAccessFile.write(lastByte ^ 1);
+        randomAccessFile.close();
+
+        SnapshotSharedPreferences.open(file, key, null);
+    }
+
+    @Test(expected = IOException.class)
+    public void foreignFileIsRejected() throws Exception {
+        SnapshotFile.writeAtomically(file, new byte[] { 1, 2, 3, 4, 5, 6 });
+
+        SnapshotSharedPreferences.open(file, key, null);
+    }
+
+    @Test
+    public void failedWriteIsRetried() throws Exception {
+        final List<WriteBatch> writtenBatches = new ArrayList<>();
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        final SharedPreferences sharedPreferences = SnapshotSharedPreferences.open(new SnapshotStorage() {
+            @Override
+            public Map<String, Object> load() {
+                return new HashMap<>();
+            }
+
+            @Override
+            public void write(final List<WriteBatch> batches,
+                              final Source source) throws IOException {
+                if (failing.get()) {
+                    throw new IOException("Disk full");
+                }
+                writtenBatches.addAll(batches);
+            }
+        }, null);
+
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .apply();
+        failing.set(false);
+        assertTrue(sharedPreferences
+            .edit()
+            .putString("b", "second")
+            .commit());
+
+        assertEquals(2, writtenBatches.size());
+        assertEquals("asd", writtenBatches.get(0).mutations.get("a"));
+        assertEquals("second", writtenBatches.get(1).mutations.get("b"));
+    }
+}
@@ -0,0 +1,92 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SoftwareKeyStoreBackendTest {
+
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+    private SharedPreferences plaintextSharedPreferences;
+
+    @Before
+    public void before() {
+        file = new File(temporaryFolder.getRoot(), "test.p12");
+        plaintextSharedPreferences = new InMemorySharedPreferences();
+    }
+
+    @Test
+    public void valuesRoundTripThroughWrapper() {
+        final SharedPreferences sharedPreferences = newSharedPreferences(new SoftwareKeyStoreBackend(file, PASSWORD));
+        final Set<String> set = Collections.singleton("set_value");
+
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .putInt("b", 1)
+            .putFloat("c", 2F)
+            .putLong("d", 3L)
+            .putBoolean("e", true)
+            .putStringSet("f", set)
+            .commit();
+
+        final Map<String, ?> allEntries = sharedPreferences.getAll();
+
+        assertEquals(6, allEntries.size());
+        assertEquals("asd", sharedPreferences.getString("a", null));
+        assertEquals(1, sharedPreferences.getInt("b", 0));
+        assertEquals(2F, sharedPreferences.getFloat("c", 0F), 0F);
+        assertEquals(3L, sharedPreferences.getLong("d", 0L));
+        assertTrue(sharedPreferences.getBoolean("e", false));
+        assertEquals(set, sharedPreferences.getStringSet("f", null));
+        assertNotEquals("asd", plaintextSharedPreferences.getString("a", null));
+    }
+
+    @Test
+    public void keyPairSurvivesReopening() {
+        newSharedPreferences(new SoftwareKeyStoreBackend(file, PASSWORD))
+            .edit()
+            .putString("a", "asd")
+            .commit();
+
+        final SharedPreferences sharedPreferences = newSharedPreferences(new SoftwareKeyStoreBackend(file, PASSWORD));
+
+        assertTrue(file.exists());
+        assertEquals("asd", sharedPreferences.getString("a", null));
+    }
+
+    @Test
+    public void legacyValueIsReadable() {
+        final CryptoBackend backend = new SoftwareKeyStoreBackend(file, PASSWORD);
+        plaintextSharedPreferences
+            .edit()
+            .putString("a", KeyStoreProxy.encryptString(backend, "asd"))
+            .commit();
+
+        assertEquals("asd", newSharedPreferences(backend).getString("a", null));
+    }
+
+    private SharedPreferences newSharedPreferences(final CryptoBackend backend) {
+        return new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences)
+            .setBackend(backend)
+            .setExecutor(null)
+            .build();
+    }
+}
@@ -0,0 +1,135 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StoreBackupTest {
+
+    private static final int ENTRY_COUNT = 150;
+    private static final char[] PASSPHRASE = "correct horse battery staple".toCharArray();
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private CryptoBackend sourceBackend;
+    private CryptoBackend targetBackend;
+
+    @Before
+    public void before() {
+        sourceBackend = new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), "source.p12"), "password".toCharArray());
+        targetBackend = new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), "target.p12"), "password".toCharArray());
+    }
+
+    @Test
+    public void exportedStoreImportsUnderAnotherKey() {
+        final KeystoreSharedPreferences source = newSharedPreferences(sourceBackend, false);
+        writeEntries(source);
+        final SharedPreferences targetPlaintext = new InMemorySharedPreferences();
+        final KeystoreSharedPreferences target = new KeystoreSharedPreferences.Builder(null, targetPlaintext)
+            .setBackend(targetBackend)
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .build();
+
+        assertTrue(target.importFrom(new ByteArrayInputStream(export(source)), PASSPHRASE));
+
+        assertEquals(source.getAll(), target.getAll());
+        assertEquals(ENTRY_COUNT + 5, target.getAll().size());
+        assertTrue(targetPlaintext.contains(Constants.DATA_KEY_PREFERENCE));
+    }
+
+    @Test
+    public void hashedNamesAreRestored() {
+        final KeystoreSharedPreferences source = newSharedPreferences(sourceBackend, true);
+        writeEntries(source);
+        final KeystoreSharedPreferences target = newSharedPreferences(targetBackend, false);
+
+        assertTrue(target.importFrom(new ByteArrayInputStream(export(source)), PASSPHRASE));
+
+        assertEquals(source.getAll(), target.getAll());
+        assertEquals(7, target.getInt("key_7", -1));
+    }
+
+    @Test
+    public void wrongPassphraseImportsNothing() {
+        final KeystoreSharedPreferences source = newSharedPreferences(sourceBackend, false);
+        writeEntries(source);
+        final KeystoreSharedPreferences target = newSharedPreferences(targetBackend, false);
+
+        assertFalse(target.importFrom(new ByteArrayInputStream(export(source)), "wrong".toCharArray()));
+        assertTrue(target.getAll().isEmpty());
+    }
+
+    @Test
+    public void truncatedBackupFails() {
+        final KeystoreSharedPreferences source = newSharedPreferences(sourceBackend, false);
+        source
+            .edit()
+            .putString("a", "asd")
+            .putInt("b", 1)
+            .commit();
+        final byte[] backup = export(source);
+        final KeystoreSharedPreferences target = newSharedPreferences(targetBackend, false);
+
+        // Dropping the closing record leaves a file that still parses record by record.
+        assertFalse(target.importFrom(new ByteArrayInputStream(Arrays.copyOf(backup, backup.length - 4 - StreamFiles.TAG_LENGTH)), PASSPHRASE));
+        assertTrue(target.getAll().isEmpty());
+    }
+
+    @Test
+    public void tamperedBackupFails() {
+        final KeystoreSharedPreferences source = newSharedPreferences(sourceBackend, false);
+        source
+            .edit()
+            .putString("a", "asd")
+            .commit();
+        final byte[] backup = export(source);
+        backup[StoreBackup.HEADER_LENGTH + 4 + 2] ^= 1;
+
+        assertFalse(newSharedPreferences(targetBackend, false).importFrom(new ByteArrayInputStream(backup), PASSPHRASE));
+    }
+
+    private KeystoreSharedPreferences newSharedPreferences(final CryptoBackend backend,
+                                                           final boolean hashedKeys) {
+        return new KeystoreSharedPreferences.Builder(null, new InMemorySharedPreferences())
+            .setBackend(backend)
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .setHashedKeys(hashedKeys)
+            .build();
+    }
+
+    private static byte[] export(final KeystoreSharedPreferences sharedPreferences) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(sharedPreferences.exportTo(output, PASSPHRASE));
+        return output.toByteArray();
+    }
+
+    private static void writeEntries(final SharedPreferences sharedPreferences) {
+        final SharedPreferences.Editor editor = sharedPreferences.edit();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            editor.putInt("key_" + i, i);
+        }
+        editor
+            .putString("string", "asd")
+            .putLong("long", Long.MAX_VALUE)
+            .putFloat("float", 1.5F)
+            .putBoolean("boolean", true)
+            .putStringSet("set", new HashSet<>(Arrays.asList("x", "y")))
+            .commit();
+    }
+}
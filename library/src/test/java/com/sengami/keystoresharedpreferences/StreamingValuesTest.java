@@ -0,0 +1,215 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamingValuesTest {
+
+    private static final int CHUNK_SIZE = Constants.STREAM_CHUNK_SIZE_BYTES;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final InMemoryMetricsRecorder recorder = new InMemoryMetricsRecorder();
+    private CryptoBackend backend;
+    private SharedPreferences plaintextSharedPreferences;
+    private File streamDirectory;
+    private KeystoreSharedPreferences sharedPreferences;
+    private byte[] secret;
+
+    @Before
+    public void before() {
+        backend = new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), "test.p12"), "password".toCharArray());
+        plaintextSharedPreferences = new InMemorySharedPreferences();
+        streamDirectory = new File(temporaryFolder.getRoot(), "streams");
+        sharedPreferences = new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences)
+            .setBackend(backend)
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .setStreamDirectory(streamDirectory)
+            .build();
+        secret = new byte[CHUNK_SIZE * 3 + 1234];
+        new Random(42).nextBytes(secret);
+        Metrics.setRecorder(recorder);
+    }
+
+    @After
+    public void after() {
+        Metrics.setRecorder(null);
+    }
+
+    @Test
+    public void streamRoundTrips() throws Exception {
+        assertTrue(sharedPreferences.putStream("secret", new ByteArrayInputStream(secret)));
+
+        assertArrayEquals(secret, readFully(sharedPreferences.openStream("secret"), 1000));
+        assertArrayEquals(secret, readFully(sharedPreferences.openStream("secret"), CHUNK_SIZE * 2));
+        assertEquals(secret.length, ((StreamManifest) sharedPreferences.getAll().get("secret")).getLength());
+        assertTrue(plaintextSharedPreferences.getString("secret", null).length() < 200);
+    }
+
+    @Test
+    public void streamEntriesDoNotExposeTheirKey() {
+        assertTrue(sharedPreferences.putStream("secret", new ByteArrayInputStream(secret)));
+
+        assertEquals("default", sharedPreferences.getString("secret", "default"));
+        assertEquals(-1, sharedPreferences.getInt("secret", -1));
+        final StreamManifest manifest = (StreamManifest) sharedPreferences.getAll().get("secret");
+        assertNull(manifest.key);
+        assertNull(manifest.fileName);
+    }
+
+    @Test
+    public void emptyStreamRoundTrips() throws Exception {
+        assertTrue(sharedPreferences.putStream("empty", new ByteArrayInputStream(new byte[0])));
+
+        assertEquals(0, readFully(sharedPreferences.openStream("empty"), 16).length);
+    }
+
+    @Test
+    public void skippedChunksAreNotDecrypted() throws Exception {
+        assertTrue(sharedPreferences.putStream("secret", new ByteArrayInputStream(secret)));
+        final long decryptions = recorder.getOperationCount(CryptoMetrics.Operation.AES_DECRYPT);
+
+        final InputStream input = sharedPreferences.openStream("secret");
+        assertEquals(CHUNK_SIZE * 3L, input.skip(CHUNK_SIZE * 3L));
+        final byte[] tail = readFully(input, 100);
+        input.close();
+
+        assertArrayEquals(Arrays.copyOfRange(secret, CHUNK_SIZE * 3, secret.length), tail);
+        // One decryption for the manifest and one for the last chunk.
+        assertEquals(decryptions + 2, recorder.getOperationCount(CryptoMetrics.Operation.AES_DECRYPT));
+    }
+
+    @Test
+    public void tamperedChunkFailsToRead() throws Exception {
+        assertTrue(sharedPreferences.putStream("secret", new ByteArrayInputStream(secret)));
+        final RandomAccessFile file = new RandomAccessFile(streamDirectory.listFiles()[0], "rw");
+        final long position = StreamFiles.HEADER_LENGTH + CHUNK_SIZE + StreamFiles.TAG_LENGTH + 10;
+        file.seek(position);
+        final int tamperedByte = file.read() ^ 1;
+        file.seek(position);
+        file.write(tamperedByte);
+        file.close();
+
+        final InputStream input = sharedPreferences.openStream("secret");
+        final byte[] buffer = new byte[CHUNK_SIZE];
+        assertEquals(CHUNK_SIZE, input.read(buffer));
+        try {
+            input.read(buffer);
+            fail();
+        } catch (final IOException expected) {
+        }
+        input.close();
+    }
+
+    @Test
+    public void truncatedFileIsNotOpened() throws Exception {
+        assertTrue(sharedPreferences.putStream("secret", new ByteArrayInputStream(secret)));
+        final RandomAccessFile file = new RandomAccessFile(streamDirectory.listFiles()[0], "rw");
+        file.setLength(file.length() - CHUNK_SIZE);
+        file.close();
+
+        assertNull(sharedPreferences.openStream("secret"));
+    }
+
+    @Test
+    public void replacedStreamsAreDeleted() throws Exception {
+        assertTrue(sharedPreferences.putStream("a", new ByteArrayInputStream(secret)));
+        assertTrue(sharedPreferences.putStream("a", new ByteArrayInputStream(new byte[] { 1, 2, 3 })));
+        assertTrue(sharedPreferences.putStream("b", new ByteArrayInputStream(secret)));
+
+        assertEquals(2, streamDirectory.list().length);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, readFully(sharedPreferences.openStream("a"), 16));
+
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .commit();
+        assertEquals(1, streamDirectory.list().length);
+        assertNull(sharedPreferences.openStream("a"));
+
+        sharedPreferences
+            .edit()
+            .clear()
+            .commit();
+        assertEquals(0, streamDirectory.list().length);
+        assertFalse(sharedPreferences.contains("b"));
+    }
+
+    @Test
+    public void clearingLeavesOtherFilesAlone() throws Exception {
+        final KeystoreSharedPreferences otherSharedPreferences = new KeystoreSharedPreferences.Builder(null, new InMemorySharedPreferences())
+            .setBackend(backend)
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .setStreamDirectory(streamDirectory)
+            .build();
+        assertTrue(sharedPreferences.putStream("a", new ByteArrayInputStream(secret)));
+        assertTrue(otherSharedPreferences.putStream("a", new ByteArrayInputStream(new byte[] { 1, 2, 3 })));
+        final File unrelatedFile = new File(streamDirectory, "notes.txt");
+        assertTrue(unrelatedFile.createNewFile());
+
+        sharedPreferences
+            .edit()
+            .clear()
+            .commit();
+
+        assertEquals(2, streamDirectory.list().length);
+        assertTrue(unrelatedFile.exists());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, readFully(otherSharedPreferences.openStream("a"), 16));
+    }
+
+    @Test
+    public void fileNamesDoNotRevealKeys() throws Exception {
+        final SharedPreferences otherPlaintextSharedPreferences = new InMemorySharedPreferences();
+        final File otherStreamDirectory = new File(temporaryFolder.getRoot(), "other_streams");
+        final KeystoreSharedPreferences otherSharedPreferences = new KeystoreSharedPreferences.Builder(null, otherPlaintextSharedPreferences)
+            .setBackend(backend)
+            .setExecutor(null)
+            .setAsyncReadExecutor(null)
+            .setStreamDirectory(otherStreamDirectory)
+            .build();
+        assertTrue(sharedPreferences.putStream("a", new ByteArrayInputStream(secret)));
+        assertTrue(otherSharedPreferences.putStream("a", new ByteArrayInputStream(secret)));
+
+        final String fileName = streamDirectory.list()[0];
+        final String otherFileName = otherStreamDirectory.list()[0];
+        // The same key is named differently under another store's data key.
+        assertNotEquals(fileName.substring(0, fileName.lastIndexOf('.')), otherFileName.substring(0, otherFileName.lastIndexOf('.')));
+    }
+
+    private static byte[] readFully(final InputStream input,
+                                    final int bufferSize) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[bufferSize];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        input.close();
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,128 @@
+package com.sengami.keystoresharedpreferences;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ValueCodecTest {
+
+    @Test
+    public void stringRoundTrips() {
+        assertRoundTrip("\u017c\u00f3\u0142w \uD83D\uDE00");
+    }
+
+    @Test
+    public void intRoundTrips() {
+        assertRoundTrip(Integer.MIN_VALUE);
+        assertRoundTrip(-1);
+        assertRoundTrip(Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void longRoundTrips() {
+        assertRoundTrip(Long.MIN_VALUE);
+        assertRoundTrip(-1L);
+        assertRoundTrip(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void floatRoundTrips() {
+        assertRoundTrip(123.456F);
+        assertRoundTrip(Float.NaN);
+        assertRoundTrip(Float.NEGATIVE_INFINITY);
+    }
+
+    @Test
+    public void booleanRoundTrips() {
+        assertRoundTrip(true);
+        assertRoundTrip(false);
+    }
+
+    @Test
+    public void primitivesHaveFixedWidth() {
+        assertEquals(5, ValueCodec.encode(1).length);
+        assertEquals(9, ValueCodec.encode(1L).length);
+        assertEquals(5, ValueCodec.encode(1F).length);
+        assertEquals(2, ValueCodec.encode(true).length);
+    }
+
+    @Test
+    public void namedValueRoundTrips() {
+        final byte[] bytes = ValueCodec.encode(new NamedValue("\u017c\u00f3\u0142w", 42L));
+        final NamedValue namedValue = (NamedValue) ValueCodec.decode(bytes, 0, bytes.length);
+
+        assertEquals("\u017c\u00f3\u0142w", namedValue.name);
+        assertEquals(42L, namedValue.value);
+
+        final byte[] nameOnlyBytes = ValueCodec.encode(new NamedValue("set_key", null));
+        final NamedValue nameOnly = (NamedValue) ValueCodec.decode(nameOnlyBytes, 0, nameOnlyBytes.length);
+
+        assertEquals("set_key", nameOnly.name);
+        assertNull(nameOnly.value);
+    }
+
+    @Test
+    public void deflatedValueRoundTrips() {
+        final String json = newJson(200);
+        final byte[] bytes = ValueCodec.encode(json);
+        final byte[] deflatedBytes = ValueCodec.deflate(bytes);
+
+        assertEquals(ValueCodec.TYPE_DEFLATED, deflatedBytes[0]);
+        assertTrue(deflatedBytes.length < bytes.length / 4);
+        assertEquals(json, ValueCodec.decode(deflatedBytes, 0, deflatedBytes.length));
+    }
+
+    @Test
+    public void incompressibleValueIsNotDeflated() {
+        final byte[] randomBytes = new byte[1024];
+        new Random(42).nextBytes(randomBytes);
+        final byte[] bytes = new byte[1 + randomBytes.length];
+        bytes[0] = ValueCodec.TYPE_STRING;
+        System.arraycopy(randomBytes, 0, bytes, 1, randomBytes.length);
+
+        assertNull(ValueCodec.deflate(bytes));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deflatedValueLargerThanDeclaredIsRejected() {
+        final byte[] bytes = ValueCodec.deflate(ValueCodec.encode(newJson(200)));
+        ValueCodec.writeInt(bytes, 1, 100);
+        ValueCodec.decode(bytes, 0, bytes.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deflatedValueOverLimitIsRejected() {
+        final byte[] bytes = ValueCodec.deflate(ValueCodec.encode(newJson(200)));
+        ValueCodec.writeInt(bytes, 1, Constants.MAX_INFLATED_VALUE_BYTES + 1);
+        ValueCodec.decode(bytes, 0, bytes.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedDeflatedValueIsRejected() {
+        final byte[] bytes = ValueCodec.deflate(ValueCodec.encode(newJson(200)));
+        ValueCodec.decode(bytes, 0, bytes.length - 8);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedValueIsRejected() {
+        final byte[] bytes = ValueCodec.encode(1L);
+        ValueCodec.decode(bytes, 0, bytes.length - 1);
+    }
+
+    private static String newJson(final int entryCount) {
+        final StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < entryCount; i++) {
+            json.append(i > 0 ? "," : "").append("\"field_").append(i).append("\":\"value_").append(i).append('"');
+        }
+        return json.append('}').toString();
+    }
+
+    private static void assertRoundTrip(final Object value) {
+        final byte[] bytes = ValueCodec.encode(value);
+        assertEquals(value, ValueCodec.decode(bytes, 0, bytes.length));
+    }
+}
@@ -0,0 +1,128 @@
+package com.sengami.keystoresharedpreferences;
+
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WarmUpTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final InMemoryMetricsRecorder recorder = new InMemoryMetricsRecorder();
+    private final ExecutorService asyncReadExecutor = CryptoExecutors.newExecutor(1);
+    private CryptoBackend backend;
+    private SharedPreferences plaintextSharedPreferences;
+
+    @Before
+    public void before() {
+        backend = new SoftwareKeyStoreBackend(new File(temporaryFolder.getRoot(), "test.p12"), "password".toCharArray());
+        plaintextSharedPreferences = new InMemorySharedPreferences();
+        Metrics.setRecorder(recorder);
+    }
+
+    @After
+    public void after() {
+        Metrics.setRecorder(null);
+        asyncReadExecutor.shutdown();
+    }
+
+    @Test
+    public void warmUpPreparesKeyMaterial() throws Exception {
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(null, false);
+
+        assertTrue(sharedPreferences.warmUp().get(30, TimeUnit.SECONDS));
+        assertEquals(1, recorder.getPhaseCount(CryptoMetrics.Phase.KEY_GENERATION));
+        assertTrue(plaintextSharedPreferences.contains(Constants.DATA_KEY_PREFERENCE));
+
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .commit();
+
+        assertEquals(1, recorder.getPhaseCount(CryptoMetrics.Phase.KEY_GENERATION));
+        assertEquals(1, recorder.getOperationCount(CryptoMetrics.Operation.RSA_ENCRYPT));
+    }
+
+    @Test
+    public void prefetchDecryptsHotKeysIntoCache() throws Exception {
+        final DecryptedValueCache cache = new DecryptedValueCache(16, false);
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(cache, false);
+        sharedPreferences
+            .edit()
+            .putString("a", "asd")
+            .putInt("b", 1)
+            .putString("c", "cold")
+            .putStringSet("d", Collections.singleton("set_value"))
+            .commit();
+
+        assertTrue(sharedPreferences.prefetch(new HashSet<>(Arrays.asList("a", "b", "d", "missing"))).get(30, TimeUnit.SECONDS));
+        assertEquals(2, cache.size());
+        assertEquals(2, recorder.getOperationCount(CryptoMetrics.Operation.AES_DECRYPT));
+
+        assertEquals("asd", sharedPreferences.getString("a", null));
+        assertEquals(1, sharedPreferences.getInt("b", 0));
+        assertEquals(2, recorder.getOperationCount(CryptoMetrics.Operation.AES_DECRYPT));
+    }
+
+    @Test
+    public void prefetchResolvesLazyHandles() throws Exception {
+        newSharedPreferences(null, false)
+            .edit()
+            .putString("a", "asd")
+            .putStringSet("b", Collections.singleton("set_value"))
+            .commit();
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(null, true);
+
+        assertTrue(sharedPreferences.prefetch(new HashSet<>(Arrays.asList("a", "b"))).get(30, TimeUnit.SECONDS));
+        final long decryptions = recorder.getOperationCount(CryptoMetrics.Operation.AES_DECRYPT);
+
+        assertEquals("asd", sharedPreferences.getString("a", null));
+        assertEquals(Collections.singleton("set_value"), sharedPreferences.getStringSet("b", null));
+        assertEquals(decryptions, recorder.getOperationCount(CryptoMetrics.Operation.AES_DECRYPT));
+    }
+
+    @Test
+    public void getAllAsyncResolvesLazyHandlesOnExecutor() throws Exception {
+        newSharedPreferences(null, false)
+            .edit()
+            .putString("a", "asd")
+            .putStringSet("b", Collections.singleton("set_value"))
+            .commit();
+        final KeystoreSharedPreferences sharedPreferences = newSharedPreferences(null, true);
+
+        final Map<String, ?> allValues = sharedPreferences.getAllAsync().get(30, TimeUnit.SECONDS);
+        final long decryptions = recorder.getOperationCount(CryptoMetrics.Operation.AES_DECRYPT);
+
+        assertEquals(2, decryptions);
+        assertEquals("asd", allValues.get("a"));
+        assertEquals(Collections.singleton("set_value"), allValues.get("b"));
+        assertEquals(decryptions, recorder.getOperationCount(CryptoMetrics.Operation.AES_DECRYPT));
+    }
+
+    private KeystoreSharedPreferences newSharedPreferences(final DecryptedValueCache cache,
+                                                           final boolean lazyDecryption) {
+        return new KeystoreSharedPreferences.Builder(null, plaintextSharedPreferences)
+            .setBackend(backend)
+            .setCache(cache)
+            .setExecutor(null)
+            .setAsyncReadExecutor(asyncReadExecutor)
+            .setLazyDecryption(lazyDecryption)
+            .build();
+    }
+}
@@ -0,0 +1,206 @@
+package com.sengami.keystoresharedpreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteAheadLogTest {
+
+    private static final int BATCH_COUNT = 20;
+    private static final int TRUNCATION_COUNT = 200;
+    private static final long NO_COMPACTION = Long.MAX_VALUE;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+    private SecretKey key;
+
+    @Before
+    public void before() throws Exception {
+        file = new File(temporaryFolder.getRoot(), "test.snapshot");
+        final KeyGenerator generator = KeyGenerator.getInstance(Constants.DATA_KEY_ALGORITHM);
+        generator.init(Constants.DATA_KEY_SIZE_BITS);
+        key = generator.generateKey();
+    }
+
+    @Test
+    public void valuesSurviveReopening() throws Exception {
+        SnapshotSharedPreferences.open(newLog(NO_COMPACTION), null)
+            .edit()
+            .putString("a", "asd")
+            .putInt("b", 1)
+            .putStringSet("c", Collections.singleton("set_value"))
+            .commit();
+
+        final WriteAheadLog log = newLog(NO_COMPACTION);
+        final Map<String, ?> allEntries = SnapshotSharedPreferences.open(log, null).getAll();
+
+        assertEquals(3, allEntries.size());
+        assertEquals("asd", allEntries.get("a"));
+        assertEquals(1, allEntries.get("b"));
+        assertEquals(Collections.singleton("set_value"), allEntries.get("c"));
+        assertEquals(1, log.getReplayedRecordCount());
+        assertEquals(0, log.getDroppedBytes());
+    }
+
+    @Test
+    public void truncatedLogRecoversLastCompleteBatch() throws Exception {
+        final SnapshotSharedPreferences preferences = SnapshotSharedPreferences.open(newLog(NO_COMPACTION), null);
+        final List<Map<String, Object>> states = new ArrayList<>();
+        final List<Long> recordEnds = new ArrayList<>();
+        states.add(new HashMap<String, Object>());
+        recordEnds.add(0L);
+
+        final File logFile = new File(file.getPath() + ".log");
+        for (int i = 0; i < BATCH_COUNT; i++) {
+            final SnapshotSharedPreferences.Editor editor = preferences.edit();
+            if (i % 7 == 6) {
+                editor.clear();
+            }
+            editor.putString("key_" + (i % 5), "value_" + i)
+                .putInt("counter", i);
+            if (i % 3 == 2) {
+                editor.remove("key_" + ((i + 1) % 5));
+            }
+            editor.commit();
+
+            states.add(new HashMap<String, Object>(preferences.getAll()));
+            recordEnds.add(logFile.length());
+        }
+
+        final byte[] log = readFully(logFile);
+        final Random random = new Random(42);
+        for (int i = 0; i < TRUNCATION_COUNT; i++) {
+            final int offset = random.nextInt(log.length + 1);
+            writeTruncated(logFile, log, offset);
+
+            final WriteAheadLog truncatedLog = newLog(NO_COMPACTION);
+            final Map<String, ?> recovered = SnapshotSharedPreferences.open(truncatedLog, null).getAll();
+            final int completeRecords = countCompleteRecords(recordEnds, offset);
+
+            assertEquals("offset " + offset, states.get(completeRecords), recovered);
+            assertEquals(recordEnds.get(completeRecords).longValue(), logFile.length());
+            assertEquals(offset - recordEnds.get(completeRecords), truncatedLog.getDroppedBytes());
+        }
+    }
+
+    @Test
+    public void corruptedRecordStopsReplay() throws Exception {
+        final SnapshotSharedPreferences preferences = SnapshotSharedPreferences.open(newLog(NO_COMPACTION), null);
+        preferences.edit().putString("a", "first").commit();
+        final File logFile = new File(file.getPath() + ".log");
+        final long firstRecordEnd = logFile.length();
+        preferences.edit().putString("a", "second").commit();
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(logFile, "rw");
+        randomAccessFile.seek(logFile.length() - 1);
+        final int lastByte = randomAccessFile.read();
+        randomAccessFile.seek(logFile.length() - 1);
+        randomAccessFile.write(lastByte ^ 0xFF);
+        randomAccessFile.close();
+
+        assertEquals("first", SnapshotSharedPreferences.open(newLog(NO_COMPACTION), null).getString("a", null));
+        assertEquals(firstRecordEnd, logFile.length());
+    }
+
+    @Test
+    public void compactionFoldsLogIntoSnapshot() throws Exception {
+        final WriteAheadLog log = newLog(256);
+        final SnapshotSharedPreferences preferences = SnapshotSharedPreferences.open(log, null);
+        for (int i = 0; i < BATCH_COUNT; i++) {
+            preferences.edit().putString("key_" + i, "value_" + i).commit();
+        }
+
+        assertTrue(log.getCompactionCount() > 0);
+        assertTrue(log.getLogSizeBytes() <= 256);
+        assertTrue(file.exists());
+
+        final Map<String, ?> allEntries = SnapshotSharedPreferences.open(newLog(256), null).getAll();
+        assertEquals(BATCH_COUNT, allEntries.size());
+        assertEquals("value_" + (BATCH_COUNT - 1), allEntries.get("key_" + (BATCH_COUNT - 1)));
+    }
+
+    @Test
+    public void partialAppendIsDiscardedBeforeRetry() throws Exception {
+        final WriteAheadLog log = newLog(NO_COMPACTION);
+        final SnapshotSharedPreferences preferences = SnapshotSharedPreferences.open(log, null);
+        preferences.edit().putString("a", "first").commit();
+        log.logOutput.close();
+        log.logOutput = new FileOutputStream(log.getLogFile(), true) {
+            @Override
+            public void write(final byte[] bytes,
+                              final int offset,
+                              final int length) throws IOException {
+                super.write(bytes, offset, length / 2);
+                throw new IOException("Disk full");
+            }
+        };
+
+        assertFalse(preferences.edit().putString("b", "second").commit());
+        assertTrue(preferences.edit().putString("c", "third").commit());
+
+        final WriteAheadLog reopenedLog = newLog(NO_COMPACTION);
+        final Map<String, ?> allEntries = SnapshotSharedPreferences.open(reopenedLog, null).getAll();
+        assertEquals(3, allEntries.size());
+        assertEquals("second", allEntries.get("b"));
+        assertEquals("third", allEntries.get("c"));
+        assertEquals(0, reopenedLog.getDroppedBytes());
+    }
+
+    private WriteAheadLog newLog(final long maxLogSizeBytes) {
+        return new WriteAheadLog(file, key, null, maxLogSizeBytes, Float.MAX_VALUE);
+    }
+
+    private static int countCompleteRecords(final List<Long> recordEnds,
+                                            final int offset) {
+        int count = 0;
+        while (count + 1 < recordEnds.size() && recordEnds.get(count + 1) <= offset) {
+            count++;
+        }
+
+        return count;
+    }
+
+    private static void writeTruncated(final File file,
+                                       final byte[] bytes,
+                                       final int length) throws Exception {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            randomAccessFile.write(bytes, 0, length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static byte[] readFully(final File file) throws Exception {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final byte[] bytes = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(bytes);
+            return bytes;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}